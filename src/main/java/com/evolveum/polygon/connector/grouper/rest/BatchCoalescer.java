@@ -0,0 +1,192 @@
+/*
+ * Copyright (c) 2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.grouper.rest;
+
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Coalesces operations submitted concurrently (typically by different connector instances working against the same
+ * Grouper) into batches sent as one multi-entry request.
+ *
+ * The first operation arriving when there is no open batch opens one and becomes its leader. If no other batch is
+ * being executed, the leader executes its batch right away, so a lone operation is not delayed. Otherwise it waits
+ * for the batch window (or until the batch is full), closes the batch and executes it, using its own connection.
+ * Other operations joining the batch just wait for their outcomes. Outcomes are matched to the operations by their
+ * position. A coalescer with nothing to do is dropped from the registry.
+ */
+class BatchCoalescer<I, O> {
+
+	private static final Map<String, BatchCoalescer<?, ?>> COALESCERS = new ConcurrentHashMap<>();
+
+	/**
+	 * Executes a batch of items. Returns one outcome per item, in the order of the items; an exception thrown
+	 * from here fails all the items of the batch.
+	 */
+	interface BatchExecutor<I, O> {
+		List<Outcome<O>> execute(List<I> items);
+	}
+
+	private final String key;
+	private Batch<I, O> open;
+	private int executing;
+
+	private BatchCoalescer(String key) {
+		this.key = key;
+	}
+
+	/**
+	 * Returns the coalescer shared by all connector instances for the given key (e.g. Grouper endpoint plus operation).
+	 */
+	@SuppressWarnings("unchecked")
+	static <I, O> BatchCoalescer<I, O> get(String key) {
+		return (BatchCoalescer<I, O>) COALESCERS.computeIfAbsent(key, BatchCoalescer::new);
+	}
+
+	O submit(I item, long windowMillis, int maxBatchSize, BatchExecutor<I, O> executor) {
+		if (windowMillis <= 0 || maxBatchSize <= 1) {
+			return executor.execute(List.of(item)).get(0).get();
+		}
+
+		final Batch<I, O> batch;
+		final int index;
+		final boolean leader;
+		final boolean wait;
+		synchronized (this) {
+			leader = open == null;
+			if (leader) {
+				open = new Batch<>();
+			}
+			batch = open;
+			index = batch.items.size();
+			batch.items.add(item);
+			if (batch.items.size() >= maxBatchSize) {
+				open = null;
+				batch.close();
+			}
+			wait = executing > 0;
+		}
+
+		if (leader) {
+			if (wait) {
+				batch.awaitClosing(windowMillis);
+			}
+			synchronized (this) {
+				if (open == batch) {
+					open = null;
+				}
+				batch.close();
+				executing++;
+			}
+			try {
+				final List<Outcome<O>> outcomes = executor.execute(batch.items);
+				if (outcomes.size() != batch.items.size()) {
+					throw new IllegalStateException("Expected " + batch.items.size() + " results, got " + outcomes.size());
+				}
+				batch.outcomes.complete(outcomes);
+			} catch (Throwable t) {
+				// whatever the failure, the other operations in the batch must not wait for their outcomes forever
+				batch.outcomes.completeExceptionally(t);
+				throw t;
+			} finally {
+				synchronized (this) {
+					executing--;
+					if (executing == 0 && open == null) {
+						COALESCERS.remove(key, this);
+					}
+				}
+			}
+		}
+		return batch.getOutcome(index);
+	}
+
+	/**
+	 * Outcome of a single item: either a value or an exception to be thrown to the operation that submitted it.
+	 */
+	static class Outcome<O> {
+
+		private final O value;
+		private final RuntimeException error;
+
+		private Outcome(O value, RuntimeException error) {
+			this.value = value;
+			this.error = error;
+		}
+
+		static <O> Outcome<O> success(O value) {
+			return new Outcome<>(value, null);
+		}
+
+		static <O> Outcome<O> failure(RuntimeException error) {
+			return new Outcome<>(null, error);
+		}
+
+		O get() {
+			if (error != null) {
+				throw error;
+			}
+			return value;
+		}
+	}
+
+	private static class Batch<I, O> {
+
+		private final List<I> items = new ArrayList<>();
+		private final CompletableFuture<List<Outcome<O>>> outcomes = new CompletableFuture<>();
+		private boolean closed;
+
+		private synchronized void close() {
+			closed = true;
+			notifyAll();
+		}
+
+		private synchronized void awaitClosing(long windowMillis) {
+			final long deadline = System.currentTimeMillis() + windowMillis;
+			long remaining = windowMillis;
+			try {
+				while (!closed && remaining > 0) {
+					wait(remaining);
+					remaining = deadline - System.currentTimeMillis();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			closed = true;
+		}
+
+		private O getOutcome(int index) {
+			try {
+				return outcomes.get().get(index).get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new ConnectorException("Interrupted while waiting for a batched request", e);
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof RuntimeException) {
+					throw (RuntimeException) e.getCause();
+				} else if (e.getCause() instanceof Error) {
+					throw (Error) e.getCause();
+				}
+				throw new ConnectorException(e.getCause());
+			}
+		}
+	}
+}
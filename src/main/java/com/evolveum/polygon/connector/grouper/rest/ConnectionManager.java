@@ -0,0 +1,296 @@
+/*
+ * Copyright (c) 2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.grouper.rest;
+
+import org.apache.http.HttpHost;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.NoopHostnameVerifier;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.conn.ssl.TrustStrategy;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.ssl.SSLContextBuilder;
+import org.apache.http.ssl.SSLContexts;
+import org.identityconnectors.common.StringUtil;
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.ConfigurationException;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Owns the HTTP client used to talk to Grouper WS. The TLS context and the connection pool are built once
+ * per connector instance, so TLS sessions can be resumed and connections kept alive across requests.
+ * It also owns the worker threads used to issue independent requests concurrently.
+ */
+class ConnectionManager implements Closeable {
+
+	private static final Log LOG = Log.getLog(ConnectionManager.class);
+
+	private static final String PROTOCOL_HTTP = "http";
+	private static final String PROTOCOL_HTTPS = "https";
+
+	private static final int TLS_SESSION_CACHE_SIZE = 100;
+	private static final int TLS_SESSION_TIMEOUT_SECONDS = 3600;
+	private static final int MAX_CONNECTIONS = 10;
+	private static final long IDLE_CONNECTION_TIMEOUT_SECONDS = 60;
+
+	private final GrouperConfiguration configuration;
+	private final ConnectorMetrics metrics = new ConnectorMetrics();
+	private final CloseableHttpClient client;
+	private final RequestGovernor governor;
+	private final EndpointBalancer balancer;
+	private ExecutorService executor;
+	private ExecutorService pipelineExecutor;
+	private ExecutorService readAheadExecutor;
+	private volatile long lastSuccessAt;
+
+	ConnectionManager(GrouperConfiguration configuration) {
+		this.configuration = configuration;
+		this.client = createClient();
+		this.governor = RequestGovernor.get(configuration.getBaseUrl(), configuration.getMaxRequestsPerSecond(),
+				configuration.getAdaptiveConcurrencyLimit(), configuration.getReservedLookupRequests());
+		this.balancer = EndpointBalancer.get(getBaseUrls());
+	}
+
+	private List<String> getBaseUrls() {
+		final List<String> baseUrls = new ArrayList<>();
+		baseUrls.add(configuration.getBaseUrl());
+		if (configuration.getAdditionalBaseUrls() != null) {
+			baseUrls.addAll(Arrays.asList(configuration.getAdditionalBaseUrls()));
+		}
+		return baseUrls;
+	}
+
+	CloseableHttpResponse execute(HttpUriRequest request) throws IOException {
+		metrics.recordRequest();
+		return client.execute(request);
+	}
+
+	void recordSuccess() {
+		lastSuccessAt = System.currentTimeMillis();
+	}
+
+	/**
+	 * @return true if Grouper WS responded successfully within the given time
+	 */
+	boolean isRecentlyAlive(long windowMillis) {
+		return lastSuccessAt > 0 && System.currentTimeMillis() - lastSuccessAt < windowMillis;
+	}
+
+	/**
+	 * Rate and concurrency limits shared by all connector instances talking to the same Grouper WS.
+	 */
+	RequestGovernor getGovernor() {
+		return governor;
+	}
+
+	/**
+	 * Grouper WS nodes to send the requests to, shared by all connector instances using the same nodes.
+	 */
+	EndpointBalancer getBalancer() {
+		return balancer;
+	}
+
+	ConnectorMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Worker threads for concurrent requests; their number is limited by maxConcurrentRequests.
+	 */
+	synchronized ExecutorService getExecutor() {
+		if (executor == null) {
+			executor = Executors.newFixedThreadPool(configuration.getMaxConcurrentRequests(), new WorkerThreadFactory("worker"));
+		}
+		return executor;
+	}
+
+	/**
+	 * Threads for the stages of paged listings (see {@link PagePipeline}). Kept apart from the worker threads, as
+	 * listings are also run from worker threads and their stages must not wait for a free worker.
+	 */
+	synchronized ExecutorService getPipelineExecutor() {
+		if (pipelineExecutor == null) {
+			pipelineExecutor = Executors.newCachedThreadPool(new WorkerThreadFactory("pipeline"));
+		}
+		return pipelineExecutor;
+	}
+
+	/**
+	 * Threads fetching pages ahead of a paged listing (see {@link PagePipeline#concurrent}); their number is limited by
+	 * maxConcurrentRequests. Kept apart from the worker threads, as workers may be waiting for the thread needing
+	 * the pages (e.g. partitions of a scan waiting for the caller to take their groups). Their tasks are single
+	 * requests that never wait for other tasks.
+	 */
+	synchronized ExecutorService getReadAheadExecutor() {
+		if (readAheadExecutor == null) {
+			readAheadExecutor = Executors.newFixedThreadPool(configuration.getMaxConcurrentRequests(), new WorkerThreadFactory("read-ahead"));
+		}
+		return readAheadExecutor;
+	}
+
+	@Override
+	public void close() {
+		synchronized (this) {
+			if (executor != null) {
+				executor.shutdownNow();
+				executor = null;
+			}
+			if (pipelineExecutor != null) {
+				pipelineExecutor.shutdownNow();
+				pipelineExecutor = null;
+			}
+			if (readAheadExecutor != null) {
+				readAheadExecutor.shutdownNow();
+				readAheadExecutor = null;
+			}
+		}
+		try {
+			client.close();
+		} catch (IOException e) {
+			LOG.warn("Failed to close HTTP client: {0}", e, e);
+		}
+	}
+
+	private CloseableHttpClient createClient() {
+		Registry<ConnectionSocketFactory> registry = RegistryBuilder.<ConnectionSocketFactory>create()
+				.register(PROTOCOL_HTTP, PlainConnectionSocketFactory.getSocketFactory())
+				.register(PROTOCOL_HTTPS, createSslSocketFactory())
+				.build();
+		PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager(registry);
+		int maxConnections = Math.max(MAX_CONNECTIONS, configuration.getMaxConcurrentRequests());
+		connectionManager.setMaxTotal(maxConnections);
+		connectionManager.setDefaultMaxPerRoute(maxConnections);
+		return HttpClientBuilder.create()
+				.setConnectionManager(connectionManager)
+				.evictIdleConnections(IDLE_CONNECTION_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+				.build();
+	}
+
+	private SSLConnectionSocketFactory createSslSocketFactory() {
+		try {
+			SSLContext sslContext;
+			HostnameVerifier hostnameVerifier;
+			if (Boolean.TRUE.equals(configuration.getIgnoreSslValidation())) {
+				LOG.warn("Ignoring SSL validation: avoid this in production");
+				sslContext = new SSLContextBuilder()
+						.loadTrustMaterial(null, (TrustStrategy) (chain, authType) -> true)
+						.build();
+				hostnameVerifier = NoopHostnameVerifier.INSTANCE;
+			} else if (StringUtil.isNotBlank(configuration.getTrustStorePath())) {
+				sslContext = new SSLContextBuilder()
+						.loadTrustMaterial(loadTrustStore(), null)
+						.build();
+				hostnameVerifier = SSLConnectionSocketFactory.getDefaultHostnameVerifier();
+			} else {
+				sslContext = SSLContexts.createDefault();
+				hostnameVerifier = SSLConnectionSocketFactory.getDefaultHostnameVerifier();
+			}
+			sslContext.getClientSessionContext().setSessionCacheSize(TLS_SESSION_CACHE_SIZE);
+			sslContext.getClientSessionContext().setSessionTimeout(TLS_SESSION_TIMEOUT_SECONDS);
+			return new MeteredSslSocketFactory(sslContext, hostnameVerifier);
+		} catch (ConfigurationException e) {
+			throw e;
+		} catch (Exception e) {
+			String msg = "Couldn't create SSL context: " + e.getLocalizedMessage();
+			LOG.error("{0}", msg);
+			throw new ConfigurationException(msg, e);
+		}
+	}
+
+	private KeyStore loadTrustStore() {
+		String path = configuration.getTrustStorePath();
+		try (InputStream in = Files.newInputStream(Paths.get(path))) {
+			KeyStore trustStore = KeyStore.getInstance(configuration.getTrustStoreType());
+			trustStore.load(in, configuration.getTrustStorePasswordPlain());
+			return trustStore;
+		} catch (Exception e) {
+			String msg = "Couldn't load trust store from " + path + ": " + e.getLocalizedMessage();
+			LOG.error("{0}", msg);
+			throw new ConfigurationException(msg, e);
+		}
+	}
+
+	/**
+	 * Measures TLS handshakes performed when new connections are opened. A handshake is considered to be
+	 * resumed if the negotiated session existed before the connection was established.
+	 */
+	private class MeteredSslSocketFactory extends SSLConnectionSocketFactory {
+
+		private MeteredSslSocketFactory(SSLContext sslContext, HostnameVerifier hostnameVerifier) {
+			super(sslContext, hostnameVerifier);
+		}
+
+		@Override
+		public Socket createLayeredSocket(Socket socket, String target, int port, HttpContext context) throws IOException {
+			long startMillis = System.currentTimeMillis();
+			long start = System.nanoTime();
+			Socket layered = super.createLayeredSocket(socket, target, port, context);
+			if (layered instanceof SSLSocket) {
+				SSLSession session = ((SSLSocket) layered).getSession();
+				boolean resumed = session.getCreationTime() < startMillis;
+				metrics.recordHandshake(System.nanoTime() - start, resumed);
+				LOG.ok("TLS handshake with {0} finished (resumed: {1})", new HttpHost(target, port), resumed);
+			}
+			return layered;
+		}
+	}
+
+	/**
+	 * Creates daemon threads named by the kind of work they do.
+	 */
+	static class WorkerThreadFactory implements ThreadFactory {
+
+		private final String kind;
+		private final AtomicInteger counter = new AtomicInteger();
+
+		WorkerThreadFactory(String kind) {
+			this.kind = kind;
+		}
+
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "grouper-connector-" + kind + "-" + counter.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.grouper.rest;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Simple counters describing the traffic between this connector and Grouper WS.
+ * They are logged when the connector is disposed and after the Test connection operation.
+ */
+public class ConnectorMetrics {
+
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong handshakes = new AtomicLong();
+	private final AtomicLong resumedHandshakes = new AtomicLong();
+	private final AtomicLong handshakeNanos = new AtomicLong();
+	private final AtomicLong throttleNanos = new AtomicLong();
+	private final AtomicLong sharedRequests = new AtomicLong();
+	private final AtomicLong failovers = new AtomicLong();
+
+	void recordRequest() {
+		requests.incrementAndGet();
+	}
+
+	void recordHandshake(long nanos, boolean resumed) {
+		handshakes.incrementAndGet();
+		handshakeNanos.addAndGet(nanos);
+		if (resumed) {
+			resumedHandshakes.incrementAndGet();
+		}
+	}
+
+	void recordThrottle(long nanos) {
+		throttleNanos.addAndGet(nanos);
+	}
+
+	void recordSharedRequest() {
+		sharedRequests.incrementAndGet();
+	}
+
+	void recordFailover() {
+		failovers.incrementAndGet();
+	}
+
+	public long getRequests() {
+		return requests.get();
+	}
+
+	public long getHandshakes() {
+		return handshakes.get();
+	}
+
+	public long getResumedHandshakes() {
+		return resumedHandshakes.get();
+	}
+
+	public long getHandshakeTimeMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(handshakeNanos.get());
+	}
+
+	/**
+	 * Requests not sent because they joined an identical request already in flight.
+	 */
+	public long getSharedRequests() {
+		return sharedRequests.get();
+	}
+
+	/**
+	 * Time requests spent waiting for the rate and concurrency limits.
+	 */
+	public long getThrottleTimeMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(throttleNanos.get());
+	}
+
+	/**
+	 * Requests retried on another Grouper WS node after the one they were sent to failed.
+	 */
+	public long getFailovers() {
+		return failovers.get();
+	}
+
+	@Override
+	public String toString() {
+		return "ConnectorMetrics{" +
+				"requests=" + requests +
+				", handshakes=" + handshakes +
+				", resumedHandshakes=" + resumedHandshakes +
+				", handshakeTimeMillis=" + getHandshakeTimeMillis() +
+				", throttleTimeMillis=" + getThrottleTimeMillis() +
+				", sharedRequests=" + sharedRequests +
+				", failovers=" + failovers +
+				'}';
+	}
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.grouper.rest;
+
+import org.apache.http.client.utils.URIBuilder;
+import org.identityconnectors.framework.common.exceptions.ConfigurationException;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Spreads requests over Grouper WS nodes (base URLs), shared by all connector instances in this JVM using the same
+ * nodes.
+ *
+ * A request goes to the available node with the fewest requests in flight, then the lowest smoothed latency (nodes
+ * not yet measured first). A node failing {@link #EJECTION_THRESHOLD} times in a row (no response, or
+ * HTTP 429, 502, 503 or 504) is ejected: it gets no requests for a while, starting at {@link #MIN_EJECTION_MILLIS}
+ * and doubling with each further ejection up to {@link #MAX_EJECTION_MILLIS}. After that, one more failure ejects it
+ * again, while a successful response resets it. If all nodes are ejected, the one returning soonest is used.
+ */
+class EndpointBalancer {
+
+	private static final Map<String, EndpointBalancer> BALANCERS = new ConcurrentHashMap<>();
+
+	private static final int EJECTION_THRESHOLD = 2;
+	private static final long MIN_EJECTION_MILLIS = TimeUnit.SECONDS.toMillis(10);
+	private static final long MAX_EJECTION_MILLIS = TimeUnit.MINUTES.toMillis(5);
+	private static final double LATENCY_SMOOTHING = 0.2;
+
+	private final List<Node> nodes;
+
+	private EndpointBalancer(List<Node> nodes) {
+		this.nodes = nodes;
+	}
+
+	/**
+	 * Returns the balancer shared by all connector instances using the same base URLs.
+	 */
+	static EndpointBalancer get(List<String> baseUrls) {
+		return BALANCERS.computeIfAbsent(String.join("|", baseUrls), k -> {
+			final List<Node> nodes = new ArrayList<>();
+			for (String baseUrl : baseUrls) {
+				try {
+					nodes.add(new Node(new URI(baseUrl.trim())));
+				} catch (URISyntaxException e) {
+					throw new ConfigurationException("Invalid base URL " + baseUrl + ": " + e.getMessage(), e);
+				}
+			}
+			return new EndpointBalancer(Collections.unmodifiableList(nodes));
+		});
+	}
+
+	int size() {
+		return nodes.size();
+	}
+
+	/**
+	 * Chooses the node for a request and counts the request as in flight there.
+	 *
+	 * @param excluded nodes already tried by the request
+	 */
+	synchronized Node acquire(Collection<Node> excluded) {
+		final long now = System.currentTimeMillis();
+		Node best = null;
+		Node soonestBack = null;
+		for (Node node : nodes) {
+			if (excluded.contains(node)) {
+				continue;
+			}
+			if (node.ejectedUntil > now) {
+				if (soonestBack == null || node.ejectedUntil < soonestBack.ejectedUntil) {
+					soonestBack = node;
+				}
+			} else if (best == null || node.isBetterThan(best)) {
+				best = node;
+			}
+		}
+		if (best == null) {
+			best = soonestBack != null ? soonestBack : nodes.get(0);
+		}
+		best.inFlight++;
+		return best;
+	}
+
+	/**
+	 * Records the outcome of a request sent to the node.
+	 *
+	 * @param start System.nanoTime() when the request was sent
+	 */
+	synchronized void release(Node node, long start, boolean failed) {
+		node.inFlight--;
+		if (!failed) {
+			final double latency = System.nanoTime() - start;
+			node.latency = node.latency == 0 ? latency : node.latency + LATENCY_SMOOTHING * (latency - node.latency);
+			node.failures = 0;
+			node.ejections = 0;
+			return;
+		}
+		node.failures++;
+		if (nodes.size() > 1 && node.failures >= EJECTION_THRESHOLD && node.ejectedUntil <= System.currentTimeMillis()) {
+			final long ejection = Math.min(MAX_EJECTION_MILLIS, MIN_EJECTION_MILLIS << Math.min(node.ejections, 16));
+			node.ejections++;
+			node.ejectedUntil = System.currentTimeMillis() + ejection;
+			Processor.LOG.warn("Grouper WS node {0} failed {1} times in a row, not using it for {2} s", node, node.failures,
+					TimeUnit.MILLISECONDS.toSeconds(ejection));
+		}
+	}
+
+	/**
+	 * A Grouper WS node.
+	 */
+	static class Node {
+
+		private final URI baseUri;
+		private int inFlight;
+		private double latency;
+		private int failures;
+		private int ejections;
+		private long ejectedUntil;
+
+		private Node(URI baseUri) {
+			this.baseUri = baseUri;
+		}
+
+		private boolean isBetterThan(Node other) {
+			if (inFlight != other.inFlight) {
+				return inFlight < other.inFlight;
+			}
+			return latency < other.latency;
+		}
+
+		/**
+		 * Returns the URI of a request (built against any of the base URLs) pointing to this node.
+		 */
+		URI route(URI uri) throws URISyntaxException {
+			return new URIBuilder(uri)
+					.setScheme(baseUri.getScheme())
+					.setHost(baseUri.getHost())
+					.setPort(baseUri.getPort())
+					.build();
+		}
+
+		@Override
+		public String toString() {
+			return baseUri.toString();
+		}
+	}
+}
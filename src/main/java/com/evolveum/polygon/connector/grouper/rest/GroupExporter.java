@@ -0,0 +1,363 @@
+/*
+ * Copyright (c) 2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.grouper.rest;
+
+import org.identityconnectors.common.StringUtil;
+import org.identityconnectors.framework.common.exceptions.ConfigurationException;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.identityconnectors.framework.common.exceptions.ConnectorIOException;
+import org.identityconnectors.framework.common.objects.*;
+import org.identityconnectors.framework.common.objects.filter.FilterBuilder;
+import org.json.JSONObject;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+
+/**
+ * Exports all groups (optionally with members) into a file, invoked as a script on connector. The file is given
+ * relative to the configured export directory; it is written under a temporary name and replaces the previous export
+ * only when complete.
+ *
+ * Groups are listed without members first; members of each group are then fetched on the worker pool of the connection
+ * manager (maxConcurrentRequests threads), while the listing goes on. The number of groups waiting to be written is bounded,
+ * so memory use does not depend on the number of groups. Supported formats:
+ * <ul>
+ *   <li>{@code ndjson}: one JSON object per line with uuid, name, extension and members,</li>
+ *   <li>{@code binary}: the compact format of the group snapshot (see {@link GroupSnapshot}), with member IDs
+ *   dictionary-encoded.</li>
+ * </ul>
+ * Returns a report with the numbers of groups and memberships written, the file size and the throughput.
+ */
+class GroupExporter {
+
+	static final String SCRIPT_LANGUAGE = "GroupExport";
+
+	static final String ARG_FILE = "file";
+	static final String ARG_FORMAT = "format";
+	static final String ARG_MEMBERS = "members";
+
+	static final String FORMAT_NDJSON = "ndjson";
+	static final String FORMAT_BINARY = "binary";
+
+	static final String REPORT_GROUPS = "groups";
+	static final String REPORT_MEMBERSHIPS = "memberships";
+	static final String REPORT_BYTES = "bytes";
+	static final String REPORT_MILLIS = "millis";
+	static final String REPORT_GROUPS_PER_SECOND = "groupsPerSecond";
+
+	private static final int OUTSTANDING_PER_THREAD = 2;
+
+	private final GrouperConfiguration configuration;
+	private final GroupProcessor groupProcessor;
+
+	GroupExporter(GrouperConfiguration configuration, GroupProcessor groupProcessor) {
+		this.configuration = configuration;
+		this.groupProcessor = groupProcessor;
+	}
+
+	/**
+	 * @param fileName file to export to, if not given as an argument
+	 */
+	Map<String, Object> export(String fileName, Map<String, Object> arguments) {
+		final Map<String, Object> args = arguments != null ? arguments : Collections.emptyMap();
+		final String file = args.get(ARG_FILE) != null ? String.valueOf(args.get(ARG_FILE)) : fileName;
+		if (StringUtil.isBlank(file)) {
+			throw new IllegalArgumentException("No file to export groups to");
+		}
+		final String format = args.get(ARG_FORMAT) != null ? String.valueOf(args.get(ARG_FORMAT)) : FORMAT_NDJSON;
+		final boolean withMembers = args.get(ARG_MEMBERS) == null || Boolean.parseBoolean(String.valueOf(args.get(ARG_MEMBERS)));
+		final Path path = resolveExportFile(file);
+
+		Processor.LOG.info("Exporting groups (with members: {0}) to {1} in {2} format", withMembers, path, format);
+		final long start = System.currentTimeMillis();
+		final long[] counts = new long[2];
+		try {
+			Files.createDirectories(path.getParent());
+		} catch (IOException e) {
+			throw new ConnectorIOException("Couldn't create directory for export of groups " + path.getParent() + ": " + e.getMessage(), e);
+		}
+		try (ExportWriter writer = createWriter(path, format)) {
+			if (withMembers) {
+				exportWithMembers(group -> {
+					counts[0]++;
+					counts[1] += writer.write(group);
+				});
+			} else {
+				groupProcessor.read(null, group -> {
+					counts[0]++;
+					writer.write(group);
+					return true;
+				}, new OperationOptions(new HashMap<>()));
+			}
+			writer.commit();
+		} catch (IOException | UncheckedIOException e) {
+			throw new ConnectorIOException("Couldn't export groups to " + path + ": " + e.getMessage(), e);
+		}
+
+		final long millis = Math.max(1, System.currentTimeMillis() - start);
+		final Map<String, Object> report = new LinkedHashMap<>();
+		report.put(REPORT_GROUPS, counts[0]);
+		report.put(REPORT_MEMBERSHIPS, counts[1]);
+		report.put(REPORT_BYTES, getSize(path));
+		report.put(REPORT_MILLIS, millis);
+		report.put(REPORT_GROUPS_PER_SECOND, counts[0] * 1000 / millis);
+		Processor.LOG.info("Export of groups to {0} finished: {1}", path, report);
+		return report;
+	}
+
+	/**
+	 * Resolves the file to export to against the export directory. Absolute paths and paths leading out of
+	 * the directory are not allowed.
+	 */
+	private Path resolveExportFile(String file) {
+		final String directory = configuration.getExportDirectory();
+		if (StringUtil.isBlank(directory)) {
+			throw new ConfigurationException("Export of groups requires the export directory to be configured");
+		}
+		final Path relative;
+		try {
+			relative = Paths.get(file);
+		} catch (InvalidPathException e) {
+			throw new IllegalArgumentException("Invalid file to export groups to: " + file, e);
+		}
+		if (relative.isAbsolute() || relative.getRoot() != null) {
+			throw new IllegalArgumentException("File to export groups to must be relative to the export directory: " + file);
+		}
+		for (Path element : relative) {
+			if ("..".equals(element.toString())) {
+				throw new IllegalArgumentException("File to export groups to must not refer to a parent directory: " + file);
+			}
+		}
+		final Path base = Paths.get(directory).toAbsolutePath().normalize();
+		final Path path = base.resolve(relative).normalize();
+		if (!path.startsWith(base) || path.equals(base)) {
+			throw new IllegalArgumentException("File to export groups to must be within the export directory: " + file);
+		}
+		return path;
+	}
+
+	private void exportWithMembers(GroupConsumer consumer) {
+		final int threads = configuration.getMaxConcurrentRequests();
+		final CompletionService<List<ConnectorObject>> completion =
+				new ExecutorCompletionService<>(groupProcessor.connectionManager.getExecutor());
+		final OperationOptions membersOptions = new OperationOptionsBuilder()
+				.setAttributesToGet(GroupProcessor.ATTR_EXTENSION, GroupProcessor.ATTR_MEMBER)
+				.build();
+		// the pool is shared, so an export that fails or is stopped cancels only its own tasks
+		final Set<Future<List<ConnectorObject>>> outstanding = new HashSet<>();
+		try {
+			groupProcessor.read(null, group -> {
+				final Uid uid = group.getUid();
+				outstanding.add(completion.submit(RequestKind.propagate(() -> {
+					final List<ConnectorObject> found = new ArrayList<>(1);
+					groupProcessor.read(FilterBuilder.equalTo(uid), found::add, membersOptions);
+					return found;
+				})));
+				while (outstanding.size() >= threads * OUTSTANDING_PER_THREAD) {
+					writeCompleted(take(completion), consumer, outstanding);
+				}
+				for (Future<List<ConnectorObject>> done = completion.poll(); done != null; done = completion.poll()) {
+					writeCompleted(done, consumer, outstanding);
+				}
+				return true;
+			}, new OperationOptions(new HashMap<>()));
+			while (!outstanding.isEmpty()) {
+				writeCompleted(take(completion), consumer, outstanding);
+			}
+		} finally {
+			outstanding.forEach(future -> future.cancel(true));
+		}
+	}
+
+	private static Future<List<ConnectorObject>> take(CompletionService<List<ConnectorObject>> completion) {
+		try {
+			return completion.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ConnectorException("Interrupted while exporting groups", e);
+		}
+	}
+
+	private void writeCompleted(Future<List<ConnectorObject>> future, GroupConsumer consumer,
+			Set<Future<List<ConnectorObject>>> outstanding) {
+		outstanding.remove(future);
+		try {
+			// a group deleted after it was listed is not found; it is just skipped
+			for (ConnectorObject group : future.get()) {
+				consumer.accept(group);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ConnectorException("Interrupted while exporting groups", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new ConnectorException(e.getCause());
+		}
+	}
+
+	private ExportWriter createWriter(Path path, String format) throws IOException {
+		if (FORMAT_NDJSON.equals(format)) {
+			return new JsonLinesWriter(path);
+		} else if (FORMAT_BINARY.equals(format)) {
+			return new BinaryWriter(path);
+		} else {
+			throw new IllegalArgumentException("Unsupported export format: " + format + ", expected " + FORMAT_NDJSON + " or " + FORMAT_BINARY);
+		}
+	}
+
+	private static long getSize(Path path) {
+		try {
+			return Files.size(path);
+		} catch (IOException e) {
+			return -1;
+		}
+	}
+
+	private static List<String> getMembers(ConnectorObject group) {
+		final Attribute attribute = group.getAttributeByName(GroupProcessor.ATTR_MEMBER);
+		if (attribute == null || attribute.getValue() == null) {
+			return Collections.emptyList();
+		}
+		final List<String> members = new ArrayList<>(attribute.getValue().size());
+		for (Object member : attribute.getValue()) {
+			members.add((String) member);
+		}
+		return members;
+	}
+
+	private static String getExtension(ConnectorObject group) {
+		final Attribute attribute = group.getAttributeByName(GroupProcessor.ATTR_EXTENSION);
+		return attribute != null ? (String) AttributeUtil.getSingleValue(attribute) : null;
+	}
+
+	@FunctionalInterface
+	private interface GroupConsumer {
+		void accept(ConnectorObject group);
+	}
+
+	private interface ExportWriter extends Closeable {
+
+		/**
+		 * @return number of members written
+		 */
+		int write(ConnectorObject group);
+
+		void commit() throws IOException;
+	}
+
+	/**
+	 * Writes into a temporary file that replaces the target file on commit, like {@link GroupSnapshot.Writer}.
+	 */
+	private static class JsonLinesWriter implements ExportWriter {
+
+		private final Path target;
+		private final Path temporary;
+		private final BufferedWriter out;
+		private boolean committed;
+
+		private JsonLinesWriter(Path target) throws IOException {
+			this.target = target;
+			this.temporary = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+			this.out = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8);
+		}
+
+		@Override
+		public int write(ConnectorObject group) {
+			final List<String> members = getMembers(group);
+			final JSONObject line = new JSONObject()
+					.put(GroupProcessor.ATTR_UUID, group.getUid().getUidValue())
+					.put(GroupProcessor.ATTR_NAME, group.getName().getNameValue())
+					.put(GroupProcessor.ATTR_EXTENSION, getExtension(group))
+					.put(GroupProcessor.ATTR_MEMBER, members);
+			try {
+				out.write(line.toString());
+				out.newLine();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			return members.size();
+		}
+
+		@Override
+		public void commit() throws IOException {
+			out.close();
+			Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			committed = true;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (!committed) {
+				out.close();
+				Files.deleteIfExists(temporary);
+			}
+		}
+	}
+
+	private static class BinaryWriter implements ExportWriter {
+
+		private final GroupSnapshot.Writer out;
+
+		private BinaryWriter(Path path) throws IOException {
+			this.out = new GroupSnapshot.Writer(path, System.currentTimeMillis());
+		}
+
+		@Override
+		public int write(ConnectorObject group) {
+			final List<String> members = getMembers(group);
+			final String name = group.getName().getNameValue();
+			final String extension = getExtension(group);
+			try {
+				out.add(group.getUid().getUidValue(), name, extension, members, GroupSnapshot.fingerprint(name, extension, members));
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			return members.size();
+		}
+
+		@Override
+		public void commit() throws IOException {
+			out.commit();
+		}
+
+		@Override
+		public void close() throws IOException {
+			out.close();
+		}
+	}
+}
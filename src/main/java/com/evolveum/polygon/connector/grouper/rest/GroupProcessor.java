@@ -18,17 +18,29 @@ package com.evolveum.polygon.connector.grouper.rest;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.utils.URIBuilder;
 import org.identityconnectors.common.StringUtil;
+import org.identityconnectors.framework.common.exceptions.AlreadyExistsException;
 import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.identityconnectors.framework.common.exceptions.InvalidAttributeValueException;
+import org.identityconnectors.framework.common.exceptions.PermissionDeniedException;
+import org.identityconnectors.framework.common.exceptions.UnknownUidException;
 import org.identityconnectors.framework.common.objects.*;
 import org.identityconnectors.framework.common.objects.filter.AttributeFilter;
 import org.identityconnectors.framework.common.objects.filter.ContainsFilter;
 import org.identityconnectors.framework.common.objects.filter.EqualsFilter;
 import org.identityconnectors.framework.common.objects.filter.Filter;
+import org.identityconnectors.framework.spi.SearchResultsHandler;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import java.net.URISyntaxException;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
@@ -40,27 +52,51 @@ public class GroupProcessor extends Processor {
 
 	private static final String J_WS_REST_GET_MEMBERS_REQUEST = "WsRestGetMembersRequest";
 	private static final String J_WS_REST_FIND_GROUPS_REQUEST = "WsRestFindGroupsRequest";
-	private static final String J_WS_REST_FIND_STEMS_REQUEST = "WsRestFindStemsRequest";
+	private static final String J_WS_REST_GET_MEMBERSHIPS_REQUEST = "WsRestGetMembershipsRequest";
 	private static final String J_WS_REST_ATTRIBUTE_ASSIGNMENT_LITE_REQUEST = "WsRestGetAttributeAssignmentsLiteRequest";
+	private static final String J_WS_REST_ATTRIBUTE_ASSIGNMENTS_REQUEST = "WsRestGetAttributeAssignmentsRequest";
+	private static final String J_WS_REST_ADD_MEMBER_REQUEST = "WsRestAddMemberRequest";
+	private static final String J_WS_REST_DELETE_MEMBER_REQUEST = "WsRestDeleteMemberRequest";
+	private static final String J_WS_REST_GROUP_SAVE_REQUEST = "WsRestGroupSaveRequest";
+	private static final String J_WS_REST_GROUP_DELETE_REQUEST = "WsRestGroupDeleteRequest";
 
 	private static final String J_WS_QUERY_FILTER = "wsQueryFilter";
-	private static final String J_WS_STEM_QUERY_FILTER = "wsStemQueryFilter";
-	private static final String J_STEM_QUERY_FILTER_TYPE = "stemQueryFilterType";
 	private static final String J_INCLUDE_SUBJECT_DETAIL = "includeSubjectDetail";
+	private static final String J_INCLUDE_GROUP_DETAIL = "includeGroupDetail";
+	private static final String J_SUBJECT_ATTRIBUTE_NAMES = "subjectAttributeNames";
 	private static final String J_QUERY_FILTER_TYPE = "queryFilterType";
 	private static final String J_STEM_NAME = "stemName";
 	private static final String J_STEM_NAME_SCOPE = "stemNameScope";
 	private static final String J_GROUP_NAME = "groupName";
+	private static final String J_SOURCE_IDS = "sourceIds";
+	private static final String J_MEMBER_FILTER = "memberFilter";
+	private static final String J_WS_SUBJECT_LOOKUPS = "wsSubjectLookups";
+	private static final String J_SUBJECT_ID = "subjectId";
+	private static final String J_SUBJECT_SOURCE_ID = "subjectSourceId";
+	private static final String J_FIELD_NAME = "fieldName";
+	private static final String J_WS_STEM_LOOKUP = "wsStemLookup";
+	private static final String J_STEM_SCOPE = "stemScope";
 
 	private static final String J_WS_FIND_GROUPS_RESULTS = "WsFindGroupsResults";
-	private static final String J_WS_FIND_STEMS_RESULTS = "WsFindStemsResults";
 	private static final String J_WS_GET_MEMBERS_RESULTS = "WsGetMembersResults";
+	private static final String J_WS_GET_MEMBERSHIPS_RESULTS = "WsGetMembershipsResults";
 	private static final String J_WS_ATTRIBUTE_ASSIGNMENT_RESULTS = "WsGetAttributeAssignmentsResults";
+	private static final String J_WS_ADD_MEMBER_RESULTS = "WsAddMemberResults";
+	private static final String J_WS_DELETE_MEMBER_RESULTS = "WsDeleteMemberResults";
+	private static final String J_WS_GROUP_SAVE_RESULTS = "WsGroupSaveResults";
+	private static final String J_WS_GROUP_DELETE_RESULTS = "WsGroupDeleteResults";
 
 	private static final String J_RESULTS = "results";
-	private static final String J_STEM_RESULTS = "stemResults";
 	private static final String J_GROUP_RESULTS = "groupResults";
 	private static final String J_WS_GROUP_LOOKUPS = "wsGroupLookups";
+	private static final String J_WS_GROUP_LOOKUP = "wsGroupLookup";
+	private static final String J_SUBJECT_LOOKUPS = "subjectLookups";
+	private static final String J_REPLACE_ALL_EXISTING = "replaceAllExisting";
+	private static final String J_WS_SUBJECT = "wsSubject";
+	private static final String J_WS_GROUP_TO_SAVES = "wsGroupToSaves";
+	private static final String J_SAVE_MODE = "saveMode";
+	private static final String J_DISPLAY_EXTENSION = "displayExtension";
+	private static final String J_RESULT_MESSAGE = "resultMessage";
 	private static final String J_RESULT_METADATA = "resultMetadata";
 	private static final String J_RESULT_CODE = "resultCode";
 	private static final String J_SUCCESS = "success";
@@ -81,35 +117,76 @@ public class GroupProcessor extends Processor {
 	private static final String J_PAGE_NUMBER = "pageNumber";
 	private static final String J_ATTRIBUTE_NAME = "wsAttributeDefNameName";
 	private static final String J_ATTRIBUTE_VALUE = "wsAttributeDefValueValue";
+	private static final String J_WS_ATTRIBUTE_DEF_NAME_LOOKUPS = "wsAttributeDefNameLookups";
+	private static final String J_WS_OWNER_GROUP_LOOKUPS = "wsOwnerGroupLookups";
+	private static final String J_WS_ATTRIBUTE_ASSIGNS = "wsAttributeAssigns";
+	private static final String J_WS_ATTRIBUTE_ASSIGN_VALUES = "wsAttributeAssignValues";
+	private static final String J_OWNER_GROUP_ID = "ownerGroupId";
+	private static final String J_ATTRIBUTE_DEF_NAME_NAME = "attributeDefNameName";
+	private static final String J_VALUE_SYSTEM = "valueSystem";
 
 	private static final String VAL_T = "T";
+	private static final String VAL_F = "F";
 	private static final String VAL_FIND_BY_STEM_NAME = "FIND_BY_STEM_NAME";
+	private static final String VAL_FIND_BY_GROUP_NAME_APPROXIMATE = "FIND_BY_GROUP_NAME_APPROXIMATE";
 	private static final String VAL_ALL_IN_SUBTREE = "ALL_IN_SUBTREE";
+	private static final String VAL_ONE_LEVEL = "ONE_LEVEL";
+	private static final String VAL_MEMBERS = "members";
+	private static final String VAL_IMMEDIATE = "Immediate";
+	private static final String VAL_ALL = "All";
+	private static final String VAL_GROUP_SOURCE_ID = "g:gsa";
+	private static final String VAL_INSERT = "INSERT";
+	private static final String VAL_SUCCESS_GROUP_NOT_FOUND = "SUCCESS_GROUP_NOT_FOUND";
+	private static final String VAL_INSUFFICIENT_PRIVILEGES = "INSUFFICIENT_PRIVILEGES";
+	private static final String VAL_STEM_NOT_FOUND = "STEM_NOT_FOUND";
+	private static final String VAL_GROUP_ALREADY_EXISTS = "GROUP_ALREADY_EXISTS";
 
 	private static final String PATH_GROUPS = "/groups";
 	private static final String PATH_STEMS = "/stems";
 	private static final String PATH_ATTRIBUTES = "/attributeAssignments";
+	private static final String PATH_MEMBERSHIPS = "/memberships";
 
-	private static final String ATTR_EXTENSION = J_EXTENSION;
 	private static final String DEFAULT_BASE_STEM = ":";
 
 	public static final String OBJECT_CLASS_NAME = "Group";
 	public static final String ATTR_NAME = "name";
 	public static final String ATTR_UUID = "uuid";
+	public static final String ATTR_EXTENSION = J_EXTENSION;
 	public static final String ATTR_MEMBER = "member";
+	public static final String ATTR_MEMBER_COUNT = "memberCount";
+	public static final String ATTR_MEMBER_DIGEST = "memberDigest";
 
-	private final Map<String,String> attributeNameValueMap = new HashMap<>();
+	/**
+	 * Operation option (Boolean) asking a full listing of groups to resume the checkpointed listing that failed.
+	 */
+	public static final String OP_RESUME_SCAN = "RESUME_SCAN";
 
+	private static final int MAX_SCAN_SPLIT_DEPTH = 3;
+	private static final int MAX_REPORTED_FAILURES = 20;
+	private static final int MAX_WRITE_BATCH_SIZE = 100;
 
-	GroupProcessor(GrouperConfiguration configuration) {
-		super(configuration);
+	private static final Set<String> MEMBERSHIP_ATTRIBUTES = Set.of(ATTR_MEMBER, ATTR_MEMBER_COUNT, ATTR_MEMBER_DIGEST);
+
+	private final Map<String,String> attributeNameValueMap;
+
+
+	private final SubjectCache subjectCache;
+	private final StemProcessor stemProcessor;
+
+	GroupProcessor(GrouperConfiguration configuration, ConnectionManager connectionManager, SubjectCache subjectCache,
+			StemProcessor stemProcessor) {
+		super(configuration, connectionManager);
+		this.subjectCache = subjectCache;
+		this.stemProcessor = stemProcessor;
 
 		if (configuration.getGroupAttribute() != null && configuration.getGroupAttribute().length >0) {
-			attributeNameValueMap.putAll(
+			attributeNameValueMap = Map.copyOf(
 					Arrays.stream(configuration.getGroupAttribute())
 							.map(str -> str.split("\\|\\|"))
 							.collect(Collectors.toMap(str -> str[0].trim(), str -> str[1].trim()))
 					);
+		} else {
+			attributeNameValueMap = Map.of();
 		}
 	}
 
@@ -118,8 +195,12 @@ public class GroupProcessor extends Processor {
 	}
 
 	void read(Filter filter, ResultsHandler handler, OperationOptions options) {
+		final NameSlice slice = filter != null ? NameSlice.of(filter, ATTR_NAME) : null;
 		if (filter == null) {
-			getAllGroups(handler, options);
+			getAllGroups(handler, options, null);
+		} else if (slice != null) {
+			LOG.info("Retrieving groups in {0}", slice);
+			getAllGroups(handler, options, slice);
 		} else if (filter instanceof EqualsFilter || filter instanceof ContainsFilter) {
 			Attribute attribute = ((AttributeFilter) filter).getAttribute();
 			if (attribute != null) {
@@ -133,6 +214,8 @@ public class GroupProcessor extends Processor {
 					getGroupByName((String) values.get(0), handler, options);
 				} else if (attribute.is(Uid.NAME) || attribute.is(ATTR_UUID)) {
 					getGroupByUuid((String) values.get(0), handler, options);
+				} else if (attribute.is(ATTR_MEMBER)) {
+					getGroupsByMember((String) values.get(0), handler, options);
 				} else {
 					throw new IllegalArgumentException("Equal filter used on unsupported attribute: " + attribute);
 				}
@@ -144,10 +227,17 @@ public class GroupProcessor extends Processor {
 		}
 	}
 
-	private boolean executeGrouperRequest(final String name, final String uuid, final boolean withMembers, final boolean shouldPage, final ResultsHandler handler) {
+	/**
+	 * @param checkpointTag if not null, a full paged scan made by a single query is checkpointed (if configured), and
+	 *                      the tag (describing what the handler does with the groups) becomes a part of the checkpoint key
+	 * @param resumeScan whether the checkpointed scan should continue a failed one
+	 */
+	private boolean executeGrouperRequest(final String name, final String uuid, final Set<String> membershipAttributes, final boolean shouldPage,
+			final ResultsHandler handler, final StemProcessor.SearchScope scope, final String checkpointTag, final boolean resumeScan) {
+		final boolean withMembers = !membershipAttributes.isEmpty();
 		final URIBuilder uriBuilder;
 
-		if (attributeNameValueMap.isEmpty() || StringUtil.isNotBlank(name) || StringUtil.isNotBlank(uuid)) {
+		if (!useAttributeAssignmentQueries(name, uuid)) {
 			uriBuilder = getUriBuilderForGroups();
 		} else {
 			uriBuilder = getUriBuilderForAttributes();
@@ -156,17 +246,27 @@ public class GroupProcessor extends Processor {
 		try {
 			final HttpPost request = new HttpPost(uriBuilder.build());
 			final List<JSONObject> requestBodies = createWsFindGroupsRequest(name, uuid, withMembers);
+			final ResultsHandler scopedHandler = scope != null ? restrictToScope(requestBodies, handler, scope) : handler;
 
 			final boolean paging = !requestBodies.get(0).has(J_WS_REST_ATTRIBUTE_ASSIGNMENT_LITE_REQUEST) && shouldPage; //TODO Grouper WS WsRestGetAttributeAssignmentsLiteRequest should really implement paging, if/when they do this can be removed!
 
+			if (requestBodies.size() > 1 && !withMembers) {
+				return executeFindGroupsConcurrently(uriBuilder, requestBodies, scopedHandler);
+			}
+
+			final ScanCheckpoint checkpoint = checkpointTag != null && paging && !withMembers && requestBodies.size() == 1 ?
+					ScanCheckpoint.open(configuration.getCheckpointDirectory(),
+							getEndpointKey() + "|" + checkpointTag + "|" + canonicalize(requestBodies.get(0)), resumeScan) : null;
 			boolean result = false;
 			for (final JSONObject body : requestBodies) {
 				boolean localResult;
 
 				if (withMembers) {
-					localResult = executeGetMembers(request, body, handler, paging);
+					localResult = executeGetMembers(request, body, scopedHandler, paging, membershipAttributes);
+				} else if (isPagedAttributeDiscovery(name, uuid)) {
+					localResult = executeFindGroupsFilteredByAttributes(request, body, scopedHandler, paging, checkpoint);
 				} else {
-					localResult = executeFindGroups(request, body, handler, paging);
+					localResult = executeFindGroups(request, body, scopedHandler, paging, checkpoint);
 				}
 
 				if (!localResult) {
@@ -182,143 +282,1225 @@ public class GroupProcessor extends Processor {
 		}
 	}
 
+	/**
+	 * Restricts group listing to the given stem scope: stem queries are narrowed on the Grouper side, groups found
+	 * by other queries (attribute assignments) are filtered by name. If the scope is limited to a name slice whose
+	 * names share a prefix beyond the stem, stem queries become approximate name queries for the prefix within
+	 * the stem; as these match also other groups (e.g. by display name), the results are filtered by name as well.
+	 */
+	private ResultsHandler restrictToScope(final List<JSONObject> requestBodies, final ResultsHandler handler, final StemProcessor.SearchScope scope) {
+		final String namePrefix = scope.getNameSlice() != null ? scope.getNameSlice().getCommonPrefix() : "";
+		final boolean approximate = namePrefix.length() > namePrefix.lastIndexOf(':') + 1;
+		for (final JSONObject body : requestBodies) {
+			final JSONObject request = body.optJSONObject(J_WS_REST_FIND_GROUPS_REQUEST);
+			final JSONObject queryFilter = request != null ? request.optJSONObject(J_WS_QUERY_FILTER) : null;
+			if (queryFilter != null && VAL_FIND_BY_STEM_NAME.equals(queryFilter.optString(J_QUERY_FILTER_TYPE))) {
+				queryFilter.put(J_STEM_NAME, scope.getStemName());
+				queryFilter.put(J_STEM_NAME_SCOPE, scope.isSubtree() ? VAL_ALL_IN_SUBTREE : VAL_ONE_LEVEL);
+				if (approximate) {
+					queryFilter.put(J_QUERY_FILTER_TYPE, VAL_FIND_BY_GROUP_NAME_APPROXIMATE);
+					queryFilter.put(J_GROUP_NAME, namePrefix);
+				}
+			}
+		}
+		return connectorObject -> !scope.contains(connectorObject.getName().getNameValue()) || handler.handle(connectorObject);
+	}
+
+	/**
+	 * Whether the groups are discovered using (unpaged) attribute assignment queries, one per configured attribute.
+	 */
+	private boolean useAttributeAssignmentQueries(final String name, final String uuid) {
+		return !attributeNameValueMap.isEmpty() && StringUtil.isBlank(name) && StringUtil.isBlank(uuid)
+				&& !Boolean.TRUE.equals(configuration.getPagedAttributeDiscovery());
+	}
+
+	/**
+	 * Whether the groups are discovered page by page under the base stem, filtering each page by attribute assignments.
+	 */
+	private boolean isPagedAttributeDiscovery(final String name, final String uuid) {
+		return !attributeNameValueMap.isEmpty() && StringUtil.isBlank(name) && StringUtil.isBlank(uuid)
+				&& Boolean.TRUE.equals(configuration.getPagedAttributeDiscovery());
+	}
+
 	private void getGroupByName(String name, ResultsHandler handler, OperationOptions options) {
 		if (!isGetMembers(options)) {
 			LOG.info("Retrieving single group without membership by name...");
-			executeGrouperRequest(name, null, false, false, handler);
+			executeGrouperRequest(name, null, Collections.emptySet(), false, handler, null, null, false);
 		} else {
 			LOG.info("Retrieving single group with membership by name...");
-			executeGrouperRequest(name, null, true, true, handler);
+			executeGrouperRequest(name, null, getMembershipAttributes(options), true, handler, null, null, false);
 		}
 	}
 
 	private boolean getGroupByUuid(String uuid, ResultsHandler handler, OperationOptions options) {
 		if (!isGetMembers(options)) {
 			LOG.info("Retrieving single group without membership by UUID...");
-			return executeGrouperRequest(null, uuid, false, false, handler);
+			return executeGrouperRequest(null, uuid, Collections.emptySet(), false, handler, null, null, false);
 		} else {
 			LOG.info("Retrieving single group with membership by UUID...");
-			return executeGrouperRequest(null, uuid, true, true, handler);
+			return executeGrouperRequest(null, uuid, getMembershipAttributes(options), true, handler, null, null, false);
+		}
+	}
+
+	/**
+	 * Finds groups the given subject is a member of, using a single memberships query instead of scanning all the groups.
+	 */
+	private void getGroupsByMember(final String subjectId, final ResultsHandler handler, final OperationOptions options) {
+		LOG.info("Retrieving groups of member {0} (with memberships: {1})...", subjectId, isGetMembers(options));
+		final URIBuilder uriBuilder = getUriBuilderForMemberships();
+		try {
+			final HttpPost request = new HttpPost(uriBuilder.build());
+			final JSONObject response = callRequest(request, createWsGetMembershipsRequest(subjectId), null).getResponse();
+			checkSuccess(response, Collections.singletonList(J_WS_GET_MEMBERSHIPS_RESULTS));
+			final JSONArray groups = getArray(response, false, List.of(J_WS_GET_MEMBERSHIPS_RESULTS), List.of(J_WS_GROUPS));
+			if (groups == null) {
+				LOG.info("Found no groups for member {0}", subjectId);
+				return;
+			}
+
+			final Set<String> matching = !attributeNameValueMap.isEmpty() ?
+					getGroupsWithAttributes(new HttpPost(getUriBuilderForAttributes().build()), groups) : null;
+			final ResultsHandler localHandler = isGetMembers(options) ?
+					connectorObject -> getGroupByUuid(connectorObject.getUid().getUidValue(), handler, options) : handler;
+			int result = 0;
+			for (Object group : groups) {
+				if (matching != null && group instanceof JSONObject && !matching.contains(getStringOrNull((JSONObject) group, J_UUID))) {
+					continue;
+				}
+				if (!handleGroupJsonObject(group, localHandler)) {
+					break;
+				}
+				result++;
+			}
+			LOG.info("Found {0} group(s) for member {1}", result, subjectId);
+		} catch (RuntimeException | URISyntaxException e) {
+			throw processException(e, uriBuilder, "Get groups by member");
+		}
+	}
+
+	private JSONObject createWsGetMembershipsRequest(final String subjectId) {
+		final JSONObject subjectLookup = new JSONObject().put(J_SUBJECT_ID, subjectId);
+		if (StringUtil.isNotBlank(configuration.getSubjectSource())) {
+			subjectLookup.put(J_SUBJECT_SOURCE_ID, configuration.getSubjectSource());
+		}
+		final JSONObject request = new JSONObject()
+				.put(J_WS_SUBJECT_LOOKUPS, new JSONObject[] { subjectLookup })
+				.put(J_FIELD_NAME, VAL_MEMBERS)
+				.put(J_INCLUDE_GROUP_DETAIL, false)
+				.put(J_INCLUDE_SUBJECT_DETAIL, false);
+		final String baseStem = configuration.getBaseStem();
+		if (StringUtil.isNotBlank(baseStem) && !DEFAULT_BASE_STEM.equals(baseStem)) {
+			request.put(J_WS_STEM_LOOKUP, new JSONObject().put(J_STEM_NAME, baseStem));
+			request.put(J_STEM_SCOPE, VAL_ALL_IN_SUBTREE);
+		}
+		if (StringUtil.isNotBlank(configuration.getMemberFilter())) {
+			request.put(J_MEMBER_FILTER, configuration.getMemberFilter());
 		}
+		return new JSONObject().put(J_WS_REST_GET_MEMBERSHIPS_REQUEST, request);
 	}
 
-	private void getAllGroups(final ResultsHandler handler, final OperationOptions options) {
+	/**
+	 * Lists all groups under the base stem or, if a container stem is given in the options, in its scope.
+	 *
+	 * @param slice if not null, only groups with names in the slice are returned
+	 */
+	private void getAllGroups(final ResultsHandler handler, final OperationOptions options, final NameSlice slice) {
 		boolean getMembers = isGetMembers(options);
-		if (!getMembers) {
+		StemProcessor.SearchScope scope = stemProcessor.resolveContainer(options);
+		if (slice != null) {
+			scope = narrowToSlice(scope, slice);
+		}
+		if (isPagedSearch(options)) {
+			LOG.info("Retrieving a page of groups (with memberships: {0})...", getMembers);
+			ResultsHandler localHandler = getMembers ?
+					connectorObject -> getGroupByUuid(connectorObject.getUid().getUidValue(), handler, options) : handler;
+			getGroupsPage(localHandler, handler, options, scope);
+		} else if (!getMembers) {
 			LOG.info("Retrieving all groups without memberships...");
-			getAllGroupsNoMembers(handler);
+			getAllGroupsNoMembers(handler, scope, "groups", isResumeScan(options));
+		} else if (isMembershipGraphUsable()) {
+			LOG.info("Retrieving all groups with memberships computed from immediate memberships...");
+			getAllGroupsUsingMembershipGraph(handler, getMembershipAttributes(options), scope);
 		} else {
 			LOG.info("Retrieving all groups with memberships...");
 			ResultsHandler localHandler = connectorObject -> getGroupByUuid(connectorObject.getUid().getUidValue(), handler, options);
-			getAllGroupsNoMembers(localHandler);
+			getAllGroupsNoMembers(localHandler, scope, "groups with " + new TreeSet<>(getMembershipAttributes(options)),
+					isResumeScan(options));
 		}
 	}
 
-	private void getAllGroupsNoMembers(ResultsHandler handler) {
-		executeGrouperRequest(null, null, false, true, handler);
+	/**
+	 * Restricts the search to the groups in a name slice. Names in the slice sharing a stem prefix, the search is
+	 * restricted to that stem, if it lies within the searched one; the rest of the common prefix is looked for by
+	 * an approximate name query (see {@link #restrictToScope(List, ResultsHandler, StemProcessor.SearchScope)}).
+	 */
+	private StemProcessor.SearchScope narrowToSlice(final StemProcessor.SearchScope scope, final NameSlice slice) {
+		String stemName = scope != null ? scope.getStemName() : stemProcessor.getBaseStemName();
+		final boolean subtree = scope == null || scope.isSubtree();
+		final String prefix = slice.getCommonPrefix();
+		final int separator = prefix.lastIndexOf(':');
+		if (subtree && separator > 0) {
+			final String prefixStem = prefix.substring(0, separator);
+			if (new StemProcessor.SearchScope(stemName, true).contains(prefixStem) && stemProcessor.getStemByName(prefixStem) != null) {
+				stemName = prefixStem;
+			}
+		}
+		LOG.info("Groups in {0} are searched for in stem {1} ({2})", slice, stemName, subtree ? "subtree" : "one level");
+		return new StemProcessor.SearchScope(stemName, subtree, slice);
 	}
 
-	private boolean executeFindGroups(HttpPost request, JSONObject body, ResultsHandler handler, boolean shouldPage) {
-		int pageNumber = 1;
-		int result = 0;
-		boolean done = !shouldPage;
+	private boolean isPagedSearch(final OperationOptions options) {
+		if (options == null || options.getPageSize() == null || options.getPageSize() <= 0) {
+			return false;
+		}
+		if (useAttributeAssignmentQueries(null, null)) {
+			LOG.warn("Paged search is not supported by attribute assignment queries, returning all groups. Consider using paged attribute discovery.");
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns one page of the group listing, as requested by the page size and offset (or cookie) in the options.
+	 * Offsets are counted in the listing as returned by Grouper (i.e. before include/exclude patterns or attribute
+	 * filters are applied), so a page may contain fewer groups than requested. The cookie is the offset of
+	 * the next page.
+	 */
+	private void getGroupsPage(final ResultsHandler groupHandler, final ResultsHandler resultsHandler, final OperationOptions options,
+			final StemProcessor.SearchScope scope) {
+		final int pageSize = options.getPageSize();
+		final int offset = getPagedResultsOffset(options);
+		final URIBuilder uriBuilder = getUriBuilderForGroups();
+
+		try {
+			final HttpPost request = new HttpPost(uriBuilder.build());
+			final HttpPost attributesRequest = isPagedAttributeDiscovery(null, null) ? new HttpPost(getUriBuilderForAttributes().build()) : null;
+			final JSONObject body = createWsFindGroupsRequest(null, null, false).get(0);
+			body.getJSONObject(J_WS_REST_FIND_GROUPS_REQUEST).getJSONObject(J_WS_QUERY_FILTER).put(J_PAGE_SIZE, pageSize);
+			final ResultsHandler scopedHandler = scope != null ? restrictToScope(List.of(body), groupHandler, scope) : groupHandler;
+
+			int pageNumber = (offset - 1) / pageSize + 1;
+			int skip = (offset - 1) % pageSize;
+			int consumed = 0;
+			int remainingInLastPage = -1;
+			boolean stopped = false;
+
+			while (consumed < pageSize && remainingInLastPage < 0 && !stopped) {
+				addPageNumber(body, pageNumber, true);
+				final JSONArray groups = fetchGroups(request, body);
+				final int count = groups != null ? groups.length() : 0;
+				final Set<String> matching = attributesRequest != null && count > 0 ? getGroupsWithAttributes(attributesRequest, groups) : null;
+
+				int index = skip;
+				for (; index < count && consumed < pageSize; index++) {
+					consumed++;
+					final Object group = groups.get(index);
+					if (matching != null && group instanceof JSONObject && !matching.contains(getStringOrNull((JSONObject) group, J_UUID))) {
+						continue;
+					}
+					if (!handleGroupJsonObject(group, scopedHandler)) {
+						stopped = true;
+						break;
+					}
+				}
+				if (count < pageSize) {
+					remainingInLastPage = Math.max(0, count - index);
+				}
+				skip = 0;
+				pageNumber++;
+			}
+
+			final boolean allReturned = remainingInLastPage == 0;
+			final String cookie = allReturned ? null : String.valueOf(offset + consumed);
+			LOG.info("Returned page of groups at offset {0}: {1} group(s) consumed, next cookie: {2}", offset, consumed, cookie);
+			if (resultsHandler instanceof SearchResultsHandler) {
+				((SearchResultsHandler) resultsHandler).handleResult(new SearchResult(cookie, remainingInLastPage, allReturned));
+			}
+		} catch (RuntimeException | URISyntaxException e) {
+			throw processException(e, uriBuilder, "Get page of groups");
+		}
+	}
+
+	private void getAllGroupsNoMembers(ResultsHandler handler, StemProcessor.SearchScope scope, String checkpointTag, boolean resumeScan) {
+		if (isStemPartitionedScan(scope)) {
+			executeStemPartitionedScan(scope != null ? scope.getStemName() : stemProcessor.getBaseStemName(), handler);
+		} else {
+			executeGrouperRequest(null, null, Collections.emptySet(), true, handler, scope, checkpointTag, resumeScan);
+		}
+	}
+
+	private boolean executeFindGroups(HttpPost request, JSONObject body, ResultsHandler handler, boolean shouldPage,
+			ScanCheckpoint checkpoint) {
+		return runGroupPipeline(pageNumber -> {
+			addPageNumber(body, pageNumber, shouldPage);
+			return fetchGroups(request, body);
+		}, handler, shouldPage, checkpoint, "group(s)");
+	}
+
+	/**
+	 * Pages are fetched and turned into connector objects in a {@link PagePipeline}, while the handler processes
+	 * the previous ones on the calling thread. Without paging, only the first page is fetched. The checkpoint
+	 * (if any) decides the first page and records the progress.
+	 *
+	 * @param what description of the groups found, for the log
+	 */
+	private boolean runGroupPipeline(PagePipeline.Fetcher<JSONArray> fetcher, ResultsHandler handler, boolean shouldPage,
+			ScanCheckpoint checkpoint, String what) {
+		final int firstPage = checkpoint != null ? checkpoint.getStartPage() : 1;
+		final int[] counts = new int[2];
+
+		final PagePipeline<JSONArray, List<GroupItem>> pipeline = new PagePipeline<>(getPipelineExecutor(shouldPage),
+				pageNumber -> !shouldPage && pageNumber > firstPage ? null : fetcher.fetch(pageNumber),
+				this::toGroupItems);
+		try {
+			pipeline.run(firstPage, items -> {
+				for (GroupItem item : items) {
+					if (!handleGroupItem(item, handler, checkpoint)) {
+						return false;
+					}
+					counts[0]++;
+				}
+				counts[1]++;
+				if (checkpoint != null) {
+					checkpoint.pageDone();
+				}
+				return true;
+			});
+		} catch (RuntimeException e) {
+			if (checkpoint != null) {
+				checkpoint.failed();
+			}
+			throw e;
+		}
+		if (checkpoint != null) {
+			checkpoint.finished();
+		}
+
+		LOG.info("Found {0} {1} in {2} pages!", counts[0], what, counts[1]);
+		return counts[0] > 0;
+	}
+
+	private JSONArray fetchGroups(HttpPost request, JSONObject body) {
+		final JSONObject response = callRequest(request, body, null).getResponse();
+
+		final List<String> responseTypes = List.of(J_WS_FIND_GROUPS_RESULTS, J_WS_ATTRIBUTE_ASSIGNMENT_RESULTS);
+		checkSuccess(response, responseTypes);
+
+		return getArray(response, false, responseTypes, List.of(J_GROUP_RESULTS, J_WS_GROUPS));
+	}
 
-		do {
+	/**
+	 * Pages through the groups under the base stem and keeps only those having one of the configured attribute
+	 * name/value pairs assigned. Each page is checked by a single attribute assignments query restricted to the groups
+	 * of that page, so the size of every response stays bounded regardless of the number of tagged groups.
+	 */
+	private boolean executeFindGroupsFilteredByAttributes(HttpPost request, JSONObject body, ResultsHandler handler, boolean shouldPage,
+			ScanCheckpoint checkpoint) throws URISyntaxException {
+		final HttpPost attributesRequest = new HttpPost(getUriBuilderForAttributes().build());
+		return runGroupPipeline(pageNumber -> {
 			addPageNumber(body, pageNumber, shouldPage);
-			final JSONObject response = callRequest(request, body, null).getResponse();
+			final JSONArray groups = fetchGroups(request, body);
+			return groups != null ? filterByAttributes(attributesRequest, groups) : null;
+		}, handler, shouldPage, checkpoint, "group(s) with matching attributes");
+	}
+
+	/**
+	 * Returns UUIDs of those groups (from the given page) that have any of the configured attribute values assigned.
+	 */
+	private Set<String> getGroupsWithAttributes(HttpPost attributesRequest, JSONArray groups) {
+		final List<JSONObject> ownerLookups = new ArrayList<>();
+		for (Object group : groups) {
+			if (group instanceof JSONObject) {
+				ownerLookups.add(new JSONObject().put(J_UUID, getStringOrNull((JSONObject) group, J_UUID)));
+			}
+		}
+		if (ownerLookups.isEmpty()) {
+			return Collections.emptySet();
+		}
 
-			final List<String> responseTypes = List.of(J_WS_FIND_GROUPS_RESULTS, J_WS_ATTRIBUTE_ASSIGNMENT_RESULTS);
-			checkSuccess(response, responseTypes);
+		final List<JSONObject> attributeLookups = attributeNameValueMap.keySet().stream()
+				.map(attributeName -> new JSONObject().put(J_NAME, attributeName))
+				.collect(Collectors.toList());
+		final JSONObject body = new JSONObject().put(J_WS_REST_ATTRIBUTE_ASSIGNMENTS_REQUEST, new JSONObject()
+				.put(J_WS_ATTRIBUTE_ASSIGN_TYPE, J_WS_GROUP_TYPE)
+				.put(J_WS_ATTRIBUTE_DEF_NAME_LOOKUPS, attributeLookups)
+				.put(J_WS_OWNER_GROUP_LOOKUPS, ownerLookups));
+
+		final JSONObject response = callRequest(attributesRequest, body, null).getResponse();
+		checkSuccess(response, Collections.singletonList(J_WS_ATTRIBUTE_ASSIGNMENT_RESULTS));
+		final JSONArray assigns = getArray(response, false, List.of(J_WS_ATTRIBUTE_ASSIGNMENT_RESULTS), List.of(J_WS_ATTRIBUTE_ASSIGNS));
+
+		final Set<String> matching = new HashSet<>();
+		if (assigns != null) {
+			for (Object assignObject : assigns) {
+				if (assignObject instanceof JSONObject && attributeValueMatches((JSONObject) assignObject)) {
+					matching.add(getStringOrNull((JSONObject) assignObject, J_OWNER_GROUP_ID));
+				}
+			}
+		}
+		return matching;
+	}
+
+	private boolean attributeValueMatches(JSONObject assign) {
+		final String expectedValue = attributeNameValueMap.get(getStringOrNull(assign, J_ATTRIBUTE_DEF_NAME_NAME));
+		if (expectedValue == null) {
+			return false;
+		}
+		final JSONArray values = assign.optJSONArray(J_WS_ATTRIBUTE_ASSIGN_VALUES);
+		if (values != null) {
+			for (Object value : values) {
+				if (value instanceof JSONObject && expectedValue.equals(getStringOrNull((JSONObject) value, J_VALUE_SYSTEM))) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
 
-			final JSONArray groups = getArray(response, false, responseTypes, List.of(J_GROUP_RESULTS, J_WS_GROUPS));
+	/**
+	 * Sends independent (unpaged) group queries concurrently and merges their results, so that a group matched
+	 * by more queries is delivered to the handler only once. The handler itself is called from the calling thread.
+	 */
+	private boolean executeFindGroupsConcurrently(URIBuilder uriBuilder, List<JSONObject> requestBodies, ResultsHandler handler) throws URISyntaxException {
+		final CompletionService<JSONArray> completionService = new ExecutorCompletionService<>(connectionManager.getExecutor());
+		final List<Future<JSONArray>> futures = new ArrayList<>();
+		for (final JSONObject body : requestBodies) {
+			final HttpPost request = new HttpPost(uriBuilder.build());
+			futures.add(completionService.submit(RequestKind.propagate(() -> fetchGroups(request, body))));
+		}
 
-			if (groups != null) {
+		final UuidSet seen = new UuidSet();
+		int result = 0;
+		int duplicates = 0;
+		try {
+			for (int i = 0; i < futures.size(); i++) {
+				final JSONArray groups = completionService.take().get();
+				if (groups == null) {
+					continue;
+				}
 				for (Object group : groups) {
+					if (group instanceof JSONObject && !seen.add(getStringOrNull((JSONObject) group, J_UUID))) {
+						duplicates++;
+						continue;
+					}
 					if (!handleGroupJsonObject(group, handler)) {
-						done = true;
-						break;
+						return true;
 					}
 					result++;
 				}
-				pageNumber++;
-
-			} else {
-				done = true;
 			}
-		} while (!done);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ConnectorException("Interrupted while waiting for group queries", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new ConnectorException(e.getCause());
+		} finally {
+			futures.forEach(future -> future.cancel(true));
+		}
 
-		LOG.info("Found {0} group(s) in {1} pages!", result, pageNumber-1);
+		LOG.info("Found {0} group(s) using {1} concurrent queries ({2} duplicate(s) skipped)!", result, requestBodies.size(), duplicates);
 		return result > 0;
 	}
 
-	private boolean executeGetMembers(HttpPost request, JSONObject body, ResultsHandler handler, boolean shouldPage) {
-		final List<String> members = new ArrayList<>();
-		boolean done = !shouldPage;
-		int pageNumber = 1;
-		ConnectorObjectBuilder builder = null;
-		String name;
+	/**
+	 * Whether a full listing is split by child stems into independent paged queries run in parallel.
+	 */
+	private boolean isStemPartitionedScan(final StemProcessor.SearchScope scope) {
+		return Boolean.TRUE.equals(configuration.getParallelStemScan()) && !useAttributeAssignmentQueries(null, null)
+				&& (scope == null || scope.isSubtree() && scope.getNameSlice() == null);
+	}
 
-		do {
-			addPageNumber(body, pageNumber, shouldPage);
-			final CallResponse callResponse = callRequest(request, body, (statusCode, responseBody) -> {
-				final JSONObject errorResponse = new JSONObject(responseBody);
-				if (errorResponse.toString().contains(J_WS_GROUP_NOT_FOUND)) {
-					return CallResponse.error(responseBody);
+	/**
+	 * Lists all groups under the given stem by scanning the groups directly in it (one level) and the subtree of each
+	 * of its child stems as independent paged queries on the worker pool. A subtree whose first page is full is split
+	 * further by its own child stems (up to {@link #MAX_SCAN_SPLIT_DEPTH} levels), so that large stems do not end up
+	 * in one long sequence of deep pages.
+	 *
+	 * Pages are passed to the calling thread through a bounded queue; the handler is called from the calling thread
+	 * only and every group is delivered exactly once (a split stem re-lists the groups of its first page).
+	 */
+	private boolean executeStemPartitionedScan(final String rootStemName, final ResultsHandler handler) {
+		final URIBuilder uriBuilder = getUriBuilderForGroups();
+		final BlockingQueue<ScanMessage> queue = new ArrayBlockingQueue<>(2 * configuration.getMaxConcurrentRequests());
+		final List<Future<?>> futures = new ArrayList<>();
+		final UuidSet seen = new UuidSet();
+		int outstanding = 0;
+		int partitions = 0;
+		int result = 0;
+		int duplicates = 0;
+
+		LOG.info("Retrieving all groups under {0} partitioned by child stems...", rootStemName);
+		try {
+			final List<ScanPartition> initial = new ArrayList<>();
+			initial.add(new ScanPartition(rootStemName, false, 0));
+			for (StemTreeCache.Stem child : stemProcessor.getChildStems(rootStemName)) {
+				initial.add(new ScanPartition(child.getName(), true, 1));
+			}
+			for (ScanPartition partition : initial) {
+				futures.add(connectionManager.getExecutor().submit(RequestKind.propagate(() -> scanPartition(uriBuilder, partition, queue))));
+				outstanding++;
+				partitions++;
+			}
+
+			while (outstanding > 0) {
+				final ScanMessage message = queue.take();
+				if (message.error != null) {
+					throw message.error;
+				} else if (message.split != null) {
+					for (ScanPartition partition : message.split) {
+						futures.add(connectionManager.getExecutor().submit(RequestKind.propagate(() -> scanPartition(uriBuilder, partition, queue))));
+						outstanding++;
+						partitions++;
+					}
+				} else if (message.groups != null) {
+					for (Object group : message.groups) {
+						if (group instanceof JSONObject && !seen.add(getStringOrNull((JSONObject) group, J_UUID))) {
+							duplicates++;
+							continue;
+						}
+						if (!handleGroupJsonObject(group, handler)) {
+							return true;
+						}
+						result++;
+					}
 				} else {
-					return null;
+					outstanding--;
 				}
-			});
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ConnectorException("Interrupted while waiting for group queries", e);
+		} catch (ConnectorException e) {
+			throw e;
+		} catch (RuntimeException e) {
+			throw processException(e, uriBuilder, "Get all groups partitioned by stems");
+		} finally {
+			futures.forEach(future -> future.cancel(true));
+		}
 
-			if (!callResponse.isSuccess()) {
-				return true;
+		LOG.info("Found {0} group(s) using {1} stem partitions ({2} duplicate(s) skipped)!", result, partitions, duplicates);
+		return result > 0;
+	}
+
+	/**
+	 * Pages through the groups of one partition (runs on a worker thread) and sends the pages to the queue.
+	 */
+	private void scanPartition(final URIBuilder uriBuilder, final ScanPartition partition, final BlockingQueue<ScanMessage> queue) {
+		try {
+			try {
+				final HttpPost request = new HttpPost(uriBuilder.build());
+				final HttpPost attributesRequest = isPagedAttributeDiscovery(null, null) ? new HttpPost(getUriBuilderForAttributes().build()) : null;
+				final JSONObject body = createWsFindGroupsRequest(null, null, false).get(0);
+				final JSONObject queryFilter = body.getJSONObject(J_WS_REST_FIND_GROUPS_REQUEST).getJSONObject(J_WS_QUERY_FILTER);
+				queryFilter.put(J_STEM_NAME, partition.stemName);
+				queryFilter.put(J_STEM_NAME_SCOPE, partition.subtree ? VAL_ALL_IN_SUBTREE : VAL_ONE_LEVEL);
+				final int pageSize = configuration.getPageSize();
+				int pageNumber = 1;
+
+				while (true) {
+					addPageNumber(body, pageNumber, true);
+					final JSONArray groups = fetchGroups(request, body);
+					final int count = groups != null ? groups.length() : 0;
+					if (count > 0) {
+						queue.put(ScanMessage.groups(attributesRequest != null ? filterByAttributes(attributesRequest, groups) : groups));
+					}
+					if (count < pageSize) {
+						break;
+					}
+					if (pageNumber == 1 && partition.subtree && partition.depth < MAX_SCAN_SPLIT_DEPTH) {
+						final List<StemTreeCache.Stem> children = stemProcessor.getChildStems(partition.stemName);
+						if (!children.isEmpty()) {
+							LOG.info("Splitting scan of stem {0} by {1} child stem(s)", partition.stemName, children.size());
+							final List<ScanPartition> split = new ArrayList<>();
+							split.add(new ScanPartition(partition.stemName, false, partition.depth));
+							children.forEach(child -> split.add(new ScanPartition(child.getName(), true, partition.depth + 1)));
+							queue.put(ScanMessage.split(split));
+							break;
+						}
+					}
+					pageNumber++;
+				}
+			} catch (RuntimeException | URISyntaxException e) {
+				queue.put(ScanMessage.error(e instanceof RuntimeException ? (RuntimeException) e : new ConnectorException(e)));
+				return;
+			}
+			queue.put(ScanMessage.DONE);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private JSONArray filterByAttributes(final HttpPost attributesRequest, final JSONArray groups) {
+		final Set<String> matching = getGroupsWithAttributes(attributesRequest, groups);
+		final JSONArray filtered = new JSONArray();
+		for (Object group : groups) {
+			if (group instanceof JSONObject && matching.contains(getStringOrNull((JSONObject) group, J_UUID))) {
+				filtered.put(group);
 			}
+		}
+		return filtered;
+	}
 
-			final JSONObject response = callResponse.getResponse();
-			checkSuccess(response, Collections.singletonList(J_WS_GET_MEMBERS_RESULTS));
-			final JSONObject gObject = (JSONObject) get(response, List.of(J_WS_GET_MEMBERS_RESULTS, J_RESULTS), List.of(J_WS_GROUP));
-			name = getStringOrNull(gObject, J_NAME);
+	/**
+	 * Part of a stem partitioned scan: groups directly in a stem, or in its whole subtree.
+	 */
+	private static class ScanPartition {
 
-			if (groupNameMatches(name)) {
-				if (builder == null) {
-					builder = startGroupObjectBuilding(gObject, name);
+		private final String stemName;
+		private final boolean subtree;
+		private final int depth;
+
+		private ScanPartition(String stemName, boolean subtree, int depth) {
+			this.stemName = stemName;
+			this.subtree = subtree;
+			this.depth = depth;
+		}
+	}
+
+	/**
+	 * Message sent from a partition scan to the calling thread: a page of groups, partitions replacing a split one,
+	 * an error, or the end of the partition.
+	 */
+	private static class ScanMessage {
+
+		private static final ScanMessage DONE = new ScanMessage(null, null, null);
+
+		private final JSONArray groups;
+		private final List<ScanPartition> split;
+		private final RuntimeException error;
+
+		private ScanMessage(JSONArray groups, List<ScanPartition> split, RuntimeException error) {
+			this.groups = groups;
+			this.split = split;
+			this.error = error;
+		}
+
+		private static ScanMessage groups(JSONArray groups) {
+			return new ScanMessage(groups, null, null);
+		}
+
+		private static ScanMessage split(List<ScanPartition> split) {
+			return new ScanMessage(null, split, null);
+		}
+
+		private static ScanMessage error(RuntimeException error) {
+			return new ScanMessage(null, null, error);
+		}
+	}
+
+	/**
+	 * Members computed from the membership graph are all members (immediate and effective), so the graph is used only
+	 * if no other members are asked for by the member filter; otherwise the listing falls back to Grouper's filtering.
+	 */
+	private boolean isMembershipGraphUsable() {
+		if (!Boolean.TRUE.equals(configuration.getNestedGroupGraph())) {
+			return false;
+		}
+		final String memberFilter = configuration.getMemberFilter();
+		if (StringUtil.isNotBlank(memberFilter) && !VAL_ALL.equals(memberFilter)) {
+			LOG.info("Member filter {0} is used, so members are not computed from the membership graph", memberFilter);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Lists all groups and computes their effective members locally: only immediate memberships (subjects and nested
+	 * groups) are fetched, for the listed groups and for any groups nested in them, and effective members are taken
+	 * from the transitive closure of the resulting membership graph. So members of a nested group are transferred
+	 * once, not once per every group it is (indirectly) nested in.
+	 */
+	private void getAllGroupsUsingMembershipGraph(final ResultsHandler handler, final Set<String> membershipAttributes,
+			final StemProcessor.SearchScope scope) {
+		final List<ConnectorObject> groups = new ArrayList<>();
+		getAllGroupsNoMembers(groups::add, scope, null, false);
+
+		final MembershipGraph graph = new MembershipGraph();
+		loadImmediateMemberships(graph, groups.stream().map(group -> group.getUid().getUidValue()).collect(Collectors.toList()));
+		LOG.info("Membership graph built: {0} group(s), {1} subject(s)", graph.getGroupCount(), graph.getSubjectCount());
+
+		for (ConnectorObject group : groups) {
+			final List<String> members = graph.getEffectiveMembers(group.getUid().getUidValue());
+			final ConnectorObjectBuilder builder = new ConnectorObjectBuilder();
+			builder.setObjectClass(getObjectClass());
+			builder.setUid(group.getUid());
+			builder.setName(group.getName());
+			final Attribute extension = group.getAttributeByName(ATTR_EXTENSION);
+			if (extension != null) {
+				builder.addAttribute(extension);
+			}
+			if (membershipAttributes.contains(ATTR_MEMBER)) {
+				builder.addAttribute(ATTR_MEMBER, members);
+			}
+			if (membershipAttributes.contains(ATTR_MEMBER_COUNT)) {
+				builder.addAttribute(ATTR_MEMBER_COUNT, members.size());
+			}
+			if (membershipAttributes.contains(ATTR_MEMBER_DIGEST)) {
+				final MembershipDigest digest = new MembershipDigest();
+				members.forEach(digest::add);
+				builder.addAttribute(ATTR_MEMBER_DIGEST, digest.getDigest());
+			}
+			if (!handler.handle(builder.build())) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Fetches immediate members of the given groups, and transitively of the groups nested in them, on the worker pool.
+	 * The graph is updated from the calling thread only.
+	 */
+	private void loadImmediateMemberships(final MembershipGraph graph, final List<String> groupUuids) {
+		final CompletionService<ImmediateMembers> completionService = new ExecutorCompletionService<>(connectionManager.getExecutor());
+		final List<Future<ImmediateMembers>> futures = new ArrayList<>();
+		final Set<String> requested = new HashSet<>();
+		int pending = 0;
+		for (String uuid : groupUuids) {
+			if (requested.add(uuid)) {
+				futures.add(completionService.submit(RequestKind.propagate(() -> fetchImmediateMembers(uuid))));
+				pending++;
+			}
+		}
+		try {
+			while (pending > 0) {
+				final ImmediateMembers members = completionService.take().get();
+				pending--;
+				graph.addGroup(members.groupUuid, members.subjectIds, members.groupUuids);
+				for (String nested : members.groupUuids) {
+					if (requested.add(nested)) {
+						futures.add(completionService.submit(RequestKind.propagate(() -> fetchImmediateMembers(nested))));
+						pending++;
+					}
 				}
-				final JSONArray membersJsonArray = getArray(response, false, List.of(J_WS_GET_MEMBERS_RESULTS, J_RESULTS), List.of(J_WS_SUBJECTS));
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ConnectorException("Interrupted while waiting for group members", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new ConnectorException(e.getCause());
+		} finally {
+			futures.forEach(future -> future.cancel(true));
+		}
+	}
 
-				if (membersJsonArray != null) {
-					for (Object memberObject : membersJsonArray) {
-						handleMemberJsonObject(memberObject, members);
+	/**
+	 * Pages through immediate members of a group, separating subjects (from the configured source) and nested groups.
+	 */
+	private ImmediateMembers fetchImmediateMembers(final String uuid) {
+		final ImmediateMembers result = new ImmediateMembers(uuid);
+		final URIBuilder uriBuilder = getUriBuilderForGroups();
+		try {
+			final HttpPost request = new HttpPost(uriBuilder.build());
+			final JSONObject body = createWsGetMembersRequest(new JSONObject().put(J_UUID, uuid), getCachedSubjectAttributeNames(), true);
+			int pageNumber = 1;
+			while (true) {
+				addPageNumber(body, pageNumber, true);
+				final CallResponse callResponse = callRequest(request, body, (statusCode, responseBody) ->
+						responseBody != null && responseBody.contains(J_WS_GROUP_NOT_FOUND) ? CallResponse.error(responseBody) : null);
+				if (!callResponse.isSuccess()) {
+					LOG.info("Nested group {0} not found, ignoring it", uuid);
+					return result;
+				}
+				final JSONObject response = callResponse.getResponse();
+				checkSuccess(response, Collections.singletonList(J_WS_GET_MEMBERS_RESULTS));
+				final JSONArray membersJsonArray = getArray(response, false, List.of(J_WS_GET_MEMBERS_RESULTS, J_RESULTS), List.of(J_WS_SUBJECTS));
+				if (membersJsonArray == null) {
+					return result;
+				}
+				final JSONArray subjectAttributeNames = response.getJSONObject(J_WS_GET_MEMBERS_RESULTS).optJSONArray(J_SUBJECT_ATTRIBUTE_NAMES);
+				for (Object memberObject : membersJsonArray) {
+					if (memberObject instanceof JSONObject && VAL_GROUP_SOURCE_ID.equals(getStringOrNull((JSONObject) memberObject, J_SOURCE_ID))) {
+						result.groupUuids.add(getStringOrNull((JSONObject) memberObject, J_ID));
+						continue;
 					}
-					pageNumber++;
+					final String subjectId = handleMemberJsonObject(memberObject);
+					if (subjectId != null) {
+						subjectCache.put(toSubjectEntry((JSONObject) memberObject, subjectAttributeNames));
+						result.subjectIds.add(subjectId);
+					}
+				}
+				if (isLastMembersPage(callResponse)) {
+					return result;
+				}
+				pageNumber++;
+			}
+		} catch (RuntimeException | URISyntaxException e) {
+			throw processException(e, uriBuilder, "Get immediate members");
+		}
+	}
 
-				} else {
-					done = true;
+	/**
+	 * Immediate members of a group: subjects and nested groups.
+	 */
+	private static class ImmediateMembers {
+
+		private final String groupUuid;
+		private final List<String> subjectIds = new ArrayList<>();
+		private final List<String> groupUuids = new ArrayList<>();
+
+		private ImmediateMembers(String groupUuid) {
+			this.groupUuid = groupUuid;
+		}
+	}
+
+	/**
+	 * Pages through the members of a group. Pages are fetched and their members extracted in a {@link PagePipeline},
+	 * while the members of the previous ones are being collected on the calling thread. If the first page is full,
+	 * the following ones are fetched concurrently (up to maxConcurrentRequests at a time) by the read-ahead threads,
+	 * not the workers: members are also read for groups delivered by a stem partitioned scan, whose workers wait for
+	 * the calling thread. The list of members is kept only if the member attribute is requested; member count and
+	 * digest are computed on the fly.
+	 */
+	private boolean executeGetMembers(HttpPost request, JSONObject body, ResultsHandler handler, boolean shouldPage, Set<String> membershipAttributes) {
+		final List<String> members = membershipAttributes.contains(ATTR_MEMBER) ? new ArrayList<>() : null;
+		final MembershipDigest digest = new MembershipDigest();
+		final ConnectorObjectBuilder[] builder = new ConnectorObjectBuilder[1];
+		final String[] name = new String[1];
+		final int[] pages = new int[1];
+
+		final String template = body.toString();
+		final PagePipeline.Fetcher<CallResponse> fetcher = PagePipeline.concurrent(
+				pageNumber -> fetchMembersPage(new HttpPost(request.getURI()), new JSONObject(template), pageNumber, shouldPage),
+				connectionManager.getReadAheadExecutor(), shouldPage ? configuration.getMaxConcurrentRequests() : 1,
+				callResponse -> !shouldPage || isLastMembersPage(callResponse));
+		final PagePipeline<CallResponse, MembersPage> pipeline = new PagePipeline<>(getPipelineExecutor(shouldPage),
+				fetcher, this::toMembersPage);
+
+		pipeline.run(1, page -> {
+			if (page == MembersPage.NOT_FOUND) {
+				builder[0] = null;
+				return false;
+			}
+			name[0] = page.name;
+			if (!groupNameMatches(page.name)) {
+				return false;
+			}
+			if (builder[0] == null) {
+				builder[0] = startGroupObjectBuilding(page.group, page.name);
+			}
+			if (page.subjectIds != null) {
+				for (String subjectId : page.subjectIds) {
+					digest.add(subjectId);
+					if (members != null) {
+						members.add(subjectId);
+					}
 				}
+				pages[0]++;
+			}
+			return true;
+		});
+		LOG.info("Found {0} group member(s) in {1} pages for Group: {2}!", digest.getCount(), pages[0], name[0]);
+
+
+		if (builder[0] != null) {
+			if (members != null) {
+				builder[0].addAttribute(ATTR_MEMBER, members);
+			}
+			if (membershipAttributes.contains(ATTR_MEMBER_COUNT)) {
+				builder[0].addAttribute(ATTR_MEMBER_COUNT, digest.getCount());
+			}
+			if (membershipAttributes.contains(ATTR_MEMBER_DIGEST)) {
+				builder[0].addAttribute(ATTR_MEMBER_DIGEST, digest.getDigest());
+			}
+			return handler.handle(builder[0].build());
+		}
+
+		return true;
+	}
 
+	private CallResponse fetchMembersPage(final HttpPost request, final JSONObject body, final int pageNumber, final boolean shouldPage) {
+		addPageNumber(body, pageNumber, shouldPage);
+		final CallResponse callResponse = callRequest(request, body, (statusCode, responseBody) -> {
+			final JSONObject errorResponse = new JSONObject(responseBody);
+			if (errorResponse.toString().contains(J_WS_GROUP_NOT_FOUND)) {
+				return CallResponse.error(responseBody);
 			} else {
-				break;
+				return null;
 			}
-		} while (!done);
-		LOG.info("Found {0} group member(s) in {1} pages for Group: {2}!", members.size(), pageNumber-1, name);
+		});
+		if (callResponse.isSuccess()) {
+			checkSuccess(callResponse.getResponse(), Collections.singletonList(J_WS_GET_MEMBERS_RESULTS));
+		}
+		return callResponse;
+	}
 
+	/**
+	 * A page with fewer members than the page size (or with none) is the last one.
+	 */
+	private boolean isLastMembersPage(final CallResponse callResponse) {
+		if (!callResponse.isSuccess()) {
+			return true;
+		}
+		final JSONArray membersJsonArray = getArray(callResponse.getResponse(), false, List.of(J_WS_GET_MEMBERS_RESULTS, J_RESULTS), List.of(J_WS_SUBJECTS));
+		return membersJsonArray == null || membersJsonArray.length() < configuration.getMemberPageSize();
+	}
 
-		if (builder != null) {
-			builder.addAttribute(ATTR_MEMBER, members);
-			return handler.handle(builder.build());
+	/**
+	 * Extracts the group and IDs of its members from a page of get members response (build stage of the pipeline).
+	 */
+	private MembersPage toMembersPage(final CallResponse callResponse) {
+		if (!callResponse.isSuccess()) {
+			return MembersPage.NOT_FOUND;
+		}
+		final JSONObject response = callResponse.getResponse();
+		final JSONObject gObject = (JSONObject) get(response, List.of(J_WS_GET_MEMBERS_RESULTS, J_RESULTS), List.of(J_WS_GROUP));
+		final String name = getStringOrNull(gObject, J_NAME);
+		final JSONArray membersJsonArray = getArray(response, false, List.of(J_WS_GET_MEMBERS_RESULTS, J_RESULTS), List.of(J_WS_SUBJECTS));
+		if (membersJsonArray == null || !groupNameMatches(name)) {
+			return new MembersPage(gObject, name, null);
 		}
 
-		return true;
+		final List<String> subjectIds = new ArrayList<>(membersJsonArray.length());
+		final JSONArray subjectAttributeNames = response.getJSONObject(J_WS_GET_MEMBERS_RESULTS).optJSONArray(J_SUBJECT_ATTRIBUTE_NAMES);
+		for (Object memberObject : membersJsonArray) {
+			final String subjectId = handleMemberJsonObject(memberObject);
+			if (subjectId != null) {
+				subjectCache.put(toSubjectEntry((JSONObject) memberObject, subjectAttributeNames));
+				subjectIds.add(subjectId);
+			}
+		}
+		return new MembersPage(gObject, name, subjectIds);
+	}
+
+	/**
+	 * A page of members of a group; subjectIds are null if the page has no members (the listing ends with it).
+	 */
+	private static class MembersPage {
+
+		private static final MembersPage NOT_FOUND = new MembersPage(null, null, null);
+
+		private final JSONObject group;
+		private final String name;
+		private final List<String> subjectIds;
+
+		private MembersPage(JSONObject group, String name, List<String> subjectIds) {
+			this.group = group;
+			this.name = name;
+			this.subjectIds = subjectIds;
+		}
+	}
+
+	/**
+	 * Applies changes of the member attribute of a group. Added and removed members are sent in batched add/delete
+	 * member requests, each carrying up to membershipChunkSize subject lookups. Replacing the whole member list is
+	 * turned into adds and removes against the current immediate members, as only those can be removed.
+	 *
+	 * Subjects that could not be added or removed do not stop the processing of the others; they are reported
+	 * together at the end.
+	 */
+	Set<AttributeDelta> updateDelta(final Uid uid, final Set<AttributeDelta> modifications) {
+		final Set<String> toAdd = new LinkedHashSet<>();
+		final Set<String> toRemove = new LinkedHashSet<>();
+		for (AttributeDelta delta : modifications) {
+			if (!delta.is(ATTR_MEMBER)) {
+				throw new InvalidAttributeValueException("Attribute " + delta.getName() + " of a group cannot be modified");
+			}
+			if (delta.getValuesToReplace() != null) {
+				final Set<String> replacement = toStringSet(delta.getValuesToReplace());
+				final Set<String> current = getImmediateMembers(uid.getUidValue());
+				replacement.stream().filter(member -> !current.contains(member)).forEach(toAdd::add);
+				current.stream().filter(member -> !replacement.contains(member)).forEach(toRemove::add);
+			} else {
+				toAdd.addAll(toStringSet(delta.getValuesToAdd()));
+				toRemove.addAll(toStringSet(delta.getValuesToRemove()));
+			}
+		}
+
+		LOG.info("Updating members of group {0}: {1} to add, {2} to remove", uid.getUidValue(), toAdd.size(), toRemove.size());
+		final Map<String, String> failures = new LinkedHashMap<>();
+		changeMembers(uid.getUidValue(), new ArrayList<>(toAdd), true, failures);
+		changeMembers(uid.getUidValue(), new ArrayList<>(toRemove), false, failures);
+
+		checkMemberFailures(uid.getUidValue(), failures);
+		return Collections.emptySet();
+	}
+
+	private void checkMemberFailures(final String uuid, final Map<String, String> failures) {
+		if (!failures.isEmpty()) {
+			final String reported = failures.entrySet().stream()
+					.limit(MAX_REPORTED_FAILURES)
+					.map(entry -> entry.getKey() + " (" + entry.getValue() + ")")
+					.collect(Collectors.joining(", "));
+			throw new ConnectorException("Failed to update " + failures.size() + " member(s) of group " + uuid
+					+ ": " + reported + (failures.size() > MAX_REPORTED_FAILURES ? ", ..." : ""));
+		}
+	}
+
+	/**
+	 * Creates a group (given by its full name) under the base stem, optionally with initial members.
+	 *
+	 * Groups created concurrently (by any connector instance using the same Grouper endpoint) within the write batch
+	 * window are sent in a single multi-entry group save request; each caller gets the outcome of its own group.
+	 * If the initial members cannot be added, the group is deleted again, so that the create can be retried.
+	 */
+	Uid create(final Set<Attribute> attributes) {
+		String name = null;
+		List<String> members = Collections.emptyList();
+		for (Attribute attribute : attributes) {
+			if (attribute.is(Name.NAME) || attribute.is(ATTR_NAME)) {
+				name = (String) AttributeUtil.getSingleValue(attribute);
+			} else if (attribute.is(ATTR_MEMBER)) {
+				members = new ArrayList<>(toStringSet(attribute.getValue()));
+			} else {
+				throw new InvalidAttributeValueException("Attribute " + attribute.getName() + " cannot be set when creating a group");
+			}
+		}
+		if (StringUtil.isBlank(name)) {
+			throw new InvalidAttributeValueException("Group name is not provided");
+		}
+		if (!stemProcessor.isInBaseStem(StemTreeCache.getParentName(name)) || !groupNameMatches(name)) {
+			throw new InvalidAttributeValueException("Group " + name + " would not be visible to this connector (base stem or group name patterns)");
+		}
+
+		LOG.info("Creating group {0} with {1} member(s)", name, members.size());
+		final String uuid = BatchCoalescer.<String, String>get(getEndpointKey() + "|" + J_WS_REST_GROUP_SAVE_REQUEST)
+				.submit(name, configuration.getWriteBatchWindow(), MAX_WRITE_BATCH_SIZE, this::saveGroups);
+
+		if (!members.isEmpty()) {
+			try {
+				final Map<String, String> failures = new LinkedHashMap<>();
+				changeMembers(uuid, members, true, failures);
+				checkMemberFailures(uuid, failures);
+			} catch (RuntimeException e) {
+				deleteAfterFailedCreate(name, uuid, e);
+				throw e;
+			}
+		}
+		return new Uid(uuid);
+	}
+
+	/**
+	 * Deletes a group whose initial members could not be added, so that the failed create can be retried.
+	 */
+	private void deleteAfterFailedCreate(final String name, final String uuid, final RuntimeException failure) {
+		LOG.warn("Adding initial members of group {0} failed, deleting the group: {1}", name, failure.getMessage());
+		try {
+			delete(new Uid(uuid));
+		} catch (RuntimeException e) {
+			LOG.error("Couldn't delete group {0} ({1}) after its initial members could not be added: {2}", name, uuid, e.getMessage());
+			failure.addSuppressed(e);
+		}
+	}
+
+	/**
+	 * Deletes a group; concurrent deletions are coalesced into multi-entry group delete requests the same way
+	 * as creations are.
+	 */
+	void delete(final Uid uid) {
+		LOG.info("Deleting group {0}", uid.getUidValue());
+		BatchCoalescer.<String, String>get(getEndpointKey() + "|" + J_WS_REST_GROUP_DELETE_REQUEST)
+				.submit(uid.getUidValue(), configuration.getWriteBatchWindow(), MAX_WRITE_BATCH_SIZE, this::deleteGroups);
+	}
+
+	/**
+	 * Inserts the given groups using one group save request; returns their UUIDs (or failures).
+	 */
+	private List<BatchCoalescer.Outcome<String>> saveGroups(final List<String> names) {
+		final List<JSONObject> groupsToSave = names.stream()
+				.map(name -> new JSONObject()
+						.put(J_WS_GROUP, new JSONObject()
+								.put(J_NAME, name)
+								.put(J_DISPLAY_EXTENSION, name.substring(name.lastIndexOf(':') + 1)))
+						.put(J_WS_GROUP_LOOKUP, new JSONObject().put(J_GROUP_NAME, name))
+						.put(J_SAVE_MODE, VAL_INSERT))
+				.collect(Collectors.toList());
+		final JSONObject body = new JSONObject().put(J_WS_REST_GROUP_SAVE_REQUEST, new JSONObject()
+				.put(J_WS_GROUP_TO_SAVES, groupsToSave)
+				.put(J_INCLUDE_GROUP_DETAIL, false));
+
+		final JSONArray results = executeGroupWrite(body, J_WS_GROUP_SAVE_RESULTS, names.size(), "Save groups");
+		final List<BatchCoalescer.Outcome<String>> outcomes = new ArrayList<>();
+		for (int i = 0; i < names.size(); i++) {
+			final JSONObject result = results.getJSONObject(i);
+			final JSONObject metadata = result.getJSONObject(J_RESULT_METADATA);
+			final JSONObject group = result.optJSONObject(J_WS_GROUP);
+			if (isSuccess(metadata) && group != null && getStringOrNull(group, J_UUID) != null) {
+				outcomes.add(BatchCoalescer.Outcome.success(getStringOrNull(group, J_UUID)));
+			} else {
+				outcomes.add(BatchCoalescer.Outcome.failure(toGroupWriteException("Creation of group " + names.get(i), metadata)));
+			}
+		}
+		LOG.info("Saved {0} group(s) in one request", names.size());
+		return outcomes;
+	}
+
+	private List<BatchCoalescer.Outcome<String>> deleteGroups(final List<String> uuids) {
+		final List<JSONObject> lookups = uuids.stream()
+				.map(uuid -> new JSONObject().put(J_UUID, uuid))
+				.collect(Collectors.toList());
+		final JSONObject body = new JSONObject().put(J_WS_REST_GROUP_DELETE_REQUEST, new JSONObject()
+				.put(J_WS_GROUP_LOOKUPS, lookups));
+
+		final JSONArray results = executeGroupWrite(body, J_WS_GROUP_DELETE_RESULTS, uuids.size(), "Delete groups");
+		final List<BatchCoalescer.Outcome<String>> outcomes = new ArrayList<>();
+		for (int i = 0; i < uuids.size(); i++) {
+			final JSONObject metadata = results.getJSONObject(i).getJSONObject(J_RESULT_METADATA);
+			final String resultCode = getStringOrNull(metadata, J_RESULT_CODE);
+			if (VAL_SUCCESS_GROUP_NOT_FOUND.equals(resultCode)) {
+				outcomes.add(BatchCoalescer.Outcome.failure(new UnknownUidException(new Uid(uuids.get(i)), getObjectClass())));
+			} else if (isSuccess(metadata)) {
+				outcomes.add(BatchCoalescer.Outcome.success(uuids.get(i)));
+			} else {
+				outcomes.add(BatchCoalescer.Outcome.failure(toGroupWriteException("Deletion of group " + uuids.get(i), metadata)));
+			}
+		}
+		LOG.info("Deleted {0} group(s) in one request", uuids.size());
+		return outcomes;
+	}
+
+	/**
+	 * Sends a multi-entry group write request and returns its per-group results (in the order of the entries).
+	 * Failures of individual entries come with a non-2xx status, so such responses are parsed as well.
+	 */
+	private JSONArray executeGroupWrite(final JSONObject body, final String resultsName, final int expectedResults, final String operationName) {
+		final URIBuilder uriBuilder = getUriBuilderForGroups();
+		try {
+			final HttpPost request = new HttpPost(uriBuilder.build());
+			final JSONObject response = callRequest(request, body, (statusCode, responseBody) ->
+					responseBody != null && responseBody.contains(resultsName) ? CallResponse.error(responseBody) : null).getResponse();
+			final JSONObject results = response.getJSONObject(resultsName);
+			final JSONArray entries = results.optJSONArray(J_RESULTS);
+			if (entries == null || entries.length() != expectedResults) {
+				throw new IllegalStateException("Request was not successful: " + results.optJSONObject(J_RESULT_METADATA));
+			}
+			return entries;
+		} catch (RuntimeException | URISyntaxException e) {
+			throw processException(e, uriBuilder, operationName);
+		}
+	}
+
+	private RuntimeException toGroupWriteException(final String what, final JSONObject metadata) {
+		final String resultCode = getStringOrNull(metadata, J_RESULT_CODE);
+		final String message = what + " failed: " + resultCode + " " + getStringOrNull(metadata, J_RESULT_MESSAGE);
+		LOG.warn("{0}", message);
+		if (VAL_INSUFFICIENT_PRIVILEGES.equals(resultCode)) {
+			return new PermissionDeniedException(message);
+		} else if (VAL_STEM_NOT_FOUND.equals(resultCode)) {
+			return new InvalidAttributeValueException(message);
+		} else if (VAL_GROUP_ALREADY_EXISTS.equals(resultCode)) {
+			return new AlreadyExistsException(message);
+		} else {
+			return new ConnectorException(message);
+		}
+	}
+
+	private Set<String> toStringSet(final List<Object> values) {
+		final Set<String> strings = new LinkedHashSet<>();
+		if (values != null) {
+			values.forEach(value -> strings.add((String) value));
+		}
+		return strings;
+	}
+
+	/**
+	 * Returns the immediate members of a group (from the configured subject source), i.e. the ones that can be
+	 * removed, regardless of the configured member filter.
+	 */
+	private Set<String> getImmediateMembers(final String uuid) {
+		final Set<String> members = new HashSet<>();
+		final List<ConnectorObject> groups = new ArrayList<>();
+		final JSONObject body = createWsGetMembersRequest(new JSONObject().put(J_UUID, uuid), Collections.emptyList(), false);
+		body.getJSONObject(J_WS_REST_GET_MEMBERS_REQUEST).put(J_MEMBER_FILTER, VAL_IMMEDIATE);
+		try {
+			executeGetMembers(new HttpPost(getUriBuilderForGroups().build()), body, groups::add, true, Collections.singleton(ATTR_MEMBER));
+		} catch (URISyntaxException e) {
+			throw new IllegalStateException(e.getMessage(), e);
+		}
+		for (ConnectorObject group : groups) {
+			final Attribute attribute = group.getAttributeByName(ATTR_MEMBER);
+			if (attribute != null && attribute.getValue() != null) {
+				attribute.getValue().forEach(member -> members.add((String) member));
+			}
+		}
+		if (groups.isEmpty()) {
+			throw new UnknownUidException(new Uid(uuid), getObjectClass());
+		}
+		return members;
+	}
+
+	/**
+	 * Adds or removes members in chunks; failed subjects (with their result codes) are put into the failures map.
+	 */
+	private void changeMembers(final String uuid, final List<String> subjectIds, final boolean add, final Map<String, String> failures) {
+		if (subjectIds.isEmpty()) {
+			return;
+		}
+		final String requestName = add ? J_WS_REST_ADD_MEMBER_REQUEST : J_WS_REST_DELETE_MEMBER_REQUEST;
+		final String resultsName = add ? J_WS_ADD_MEMBER_RESULTS : J_WS_DELETE_MEMBER_RESULTS;
+		final int chunkSize = configuration.getMembershipChunkSize();
+		final URIBuilder uriBuilder = getUriBuilderForGroups();
+		try {
+			final HttpPost request = new HttpPost(uriBuilder.build());
+			for (int from = 0; from < subjectIds.size(); from += chunkSize) {
+				final List<String> chunk = subjectIds.subList(from, Math.min(from + chunkSize, subjectIds.size()));
+				final JSONObject body = new JSONObject().put(requestName, createWsMemberChangeRequest(uuid, chunk, add));
+				// failed assignments are reported with a non-2xx status but still carry per-subject results
+				final JSONObject response = callRequest(request, body, (statusCode, responseBody) ->
+						responseBody != null && responseBody.contains(resultsName) ? CallResponse.error(responseBody) : null).getResponse();
+				processMemberChangeResults(uuid, chunk, response.getJSONObject(resultsName), failures);
+			}
+		} catch (UnknownUidException e) {
+			throw e;
+		} catch (RuntimeException | URISyntaxException e) {
+			throw processException(e, uriBuilder, add ? "Add members" : "Delete members");
+		}
+		LOG.info("{0} {1} member(s) of group {2} in {3} request(s)", add ? "Added" : "Removed", subjectIds.size(),
+				uuid, (subjectIds.size() + chunkSize - 1) / chunkSize);
+	}
+
+	private JSONObject createWsMemberChangeRequest(final String uuid, final List<String> subjectIds, final boolean add) {
+		final List<JSONObject> subjectLookups = subjectIds.stream()
+				.map(subjectId -> {
+					final JSONObject lookup = new JSONObject().put(J_SUBJECT_ID, subjectId);
+					if (StringUtil.isNotBlank(configuration.getSubjectSource())) {
+						lookup.put(J_SUBJECT_SOURCE_ID, configuration.getSubjectSource());
+					}
+					return lookup;
+				})
+				.collect(Collectors.toList());
+		final JSONObject request = new JSONObject()
+				.put(J_WS_GROUP_LOOKUP, new JSONObject().put(J_UUID, uuid))
+				.put(J_SUBJECT_LOOKUPS, subjectLookups);
+		if (add) {
+			request.put(J_REPLACE_ALL_EXISTING, VAL_F);
+		}
+		return request;
+	}
+
+	private void processMemberChangeResults(final String uuid, final List<String> chunk, final JSONObject results, final Map<String, String> failures) {
+		final JSONArray subjectResults = results.optJSONArray(J_RESULTS);
+		if (subjectResults == null) {
+			final JSONObject metadata = results.optJSONObject(J_RESULT_METADATA);
+			final String resultCode = metadata != null ? getStringOrNull(metadata, J_RESULT_CODE) : null;
+			if (J_WS_GROUP_NOT_FOUND.equals(resultCode)) {
+				throw new UnknownUidException(new Uid(uuid), getObjectClass());
+			}
+			throw new IllegalStateException("Request was not successful: " + metadata);
+		}
+		for (int i = 0; i < subjectResults.length(); i++) {
+			final JSONObject subjectResult = subjectResults.getJSONObject(i);
+			final JSONObject metadata = subjectResult.optJSONObject(J_RESULT_METADATA);
+			if (metadata != null && isSuccess(metadata)) {
+				continue;
+			}
+			final JSONObject subject = subjectResult.optJSONObject(J_WS_SUBJECT);
+			final String subjectId = subject != null && getStringOrNull(subject, J_ID) != null ?
+					getStringOrNull(subject, J_ID) : (i < chunk.size() ? chunk.get(i) : "#" + i);
+			final String resultCode = metadata != null ? getStringOrNull(metadata, J_RESULT_CODE) : null;
+			LOG.warn("Member {0} of group {1} could not be changed: {2}", subjectId, uuid, resultCode);
+			failures.put(subjectId, resultCode);
+		}
 	}
 
 	private List<JSONObject> createWsFindGroupsRequest(final String name, final String uuid, final boolean withMembers) {
 		final JSONObject wsRequest = new JSONObject();
 
-		//TODO subject source filtering using WS Object!
-//		if (shouldCheckSubjectSource && (sourceId == null || !sourceId.equalsIgnoreCase(configuration.getSubjectSource()))) {
-//			LOG.info("Skipping member with wrong source (e.g. one that is not a person) (source={0})", sourceId);
-//		} else {
-//
-//		}
-
 		//TODO Group Name Filtering using WS Object
 //		private boolean groupNameMatches(String name) {
 //			if (name == null) {
@@ -354,34 +1536,26 @@ public class GroupProcessor extends Processor {
 
 		//Specific group or member requests
 		if (StringUtil.isNotBlank(uuid) && !withMembers) {
-			return List.of(new JSONObject().put(J_WS_REST_FIND_GROUPS_REQUEST, new JSONObject()
+			return List.of(createWsFindGroupsRequest(new JSONObject()
 					.put(J_WS_GROUP_LOOKUPS, new JSONObject[] { new JSONObject()
 							.put(J_UUID, uuid) })));
 
 		} else if (StringUtil.isNotBlank(uuid)) {
-			return List.of(new JSONObject().put(J_WS_REST_GET_MEMBERS_REQUEST, new JSONObject()
-					.put(J_PAGE_SIZE, configuration.getPageSize())
-					.put(J_WS_GROUP_LOOKUPS, new JSONObject[] { new JSONObject()
-							.put(J_UUID, uuid) })
-					.put(J_INCLUDE_SUBJECT_DETAIL, true)));
+			return List.of(createWsGetMembersRequest(new JSONObject().put(J_UUID, uuid), getCachedSubjectAttributeNames(), false));
 		}
 
 		if (StringUtil.isNotBlank(name) && !withMembers) {
-			return List.of(new JSONObject().put(J_WS_REST_FIND_GROUPS_REQUEST, new JSONObject()
+			return List.of(createWsFindGroupsRequest(new JSONObject()
 					.put(J_WS_GROUP_LOOKUPS, new JSONObject[]{new JSONObject()
 							.put(J_GROUP_NAME, name)})));
 
 		} else if (StringUtil.isNotBlank(name)) {
-			return List.of(new JSONObject().put(J_WS_REST_GET_MEMBERS_REQUEST, new JSONObject()
-					.put(J_PAGE_SIZE, configuration.getPageSize())
-					.put(J_WS_GROUP_LOOKUPS, new JSONObject[] { new JSONObject()
-							.put(J_GROUP_NAME, name) })
-					.put(J_INCLUDE_SUBJECT_DETAIL, true)));
+			return List.of(createWsGetMembersRequest(new JSONObject().put(J_GROUP_NAME, name), getCachedSubjectAttributeNames(), false));
 		}
 
 		//Get All Requests
-		if (attributeNameValueMap.isEmpty()) {
-			return List.of(new JSONObject().put(J_WS_REST_FIND_GROUPS_REQUEST, new JSONObject()
+		if (attributeNameValueMap.isEmpty() || Boolean.TRUE.equals(configuration.getPagedAttributeDiscovery())) {
+			return List.of(createWsFindGroupsRequest(new JSONObject()
 					.put(J_WS_QUERY_FILTER, new JSONObject()
 							.put(J_QUERY_FILTER_TYPE, VAL_FIND_BY_STEM_NAME)
 							.put(J_STEM_NAME, (configuration.getBaseStem() != null) ? configuration.getBaseStem() : DEFAULT_BASE_STEM)
@@ -397,6 +1571,57 @@ public class GroupProcessor extends Processor {
 		}
 	}
 
+	/**
+	 * Only basic group data (name, UUID, extension) are used, so in slim payload mode the group detail is explicitly
+	 * turned off.
+	 */
+	private JSONObject createWsFindGroupsRequest(final JSONObject request) {
+		if (isSlimPayloads()) {
+			request.put(J_INCLUDE_GROUP_DETAIL, false);
+		}
+		return new JSONObject().put(J_WS_REST_FIND_GROUPS_REQUEST, request);
+	}
+
+	/**
+	 * Members are restricted to the configured subject source (and member filter, if set) already on the Grouper side,
+	 * so that subjects we are not interested in are neither resolved nor transferred. The check in handleMemberJsonObject
+	 * is kept as a safety net.
+	 *
+	 * In slim payload mode neither subject nor group detail is requested, as only subject ID and source ID are needed.
+	 * Subject attributes are requested explicitly by their names (if there are any).
+	 *
+	 * When building the membership graph, immediate members are requested, including member groups.
+	 */
+	private JSONObject createWsGetMembersRequest(final JSONObject groupLookup, final Collection<String> subjectAttributeNames,
+			final boolean immediateWithGroups) {
+		final JSONObject request = new JSONObject()
+				.put(J_PAGE_SIZE, configuration.getMemberPageSize())
+				.put(J_WS_GROUP_LOOKUPS, new JSONObject[] { groupLookup });
+		if (isSlimPayloads()) {
+			request.put(J_INCLUDE_SUBJECT_DETAIL, false);
+			request.put(J_INCLUDE_GROUP_DETAIL, false);
+		} else {
+			request.put(J_INCLUDE_SUBJECT_DETAIL, true);
+		}
+		if (!subjectAttributeNames.isEmpty()) {
+			request.put(J_SUBJECT_ATTRIBUTE_NAMES, subjectAttributeNames);
+		}
+		if (immediateWithGroups) {
+			if (StringUtil.isNotBlank(configuration.getSubjectSource())) {
+				request.put(J_SOURCE_IDS, new String[] { configuration.getSubjectSource(), VAL_GROUP_SOURCE_ID });
+			}
+			request.put(J_MEMBER_FILTER, VAL_IMMEDIATE);
+		} else {
+			if (StringUtil.isNotBlank(configuration.getSubjectSource())) {
+				request.put(J_SOURCE_IDS, new String[] { configuration.getSubjectSource() });
+			}
+			if (StringUtil.isNotBlank(configuration.getMemberFilter())) {
+				request.put(J_MEMBER_FILTER, configuration.getMemberFilter());
+			}
+		}
+		return new JSONObject().put(J_WS_REST_GET_MEMBERS_REQUEST, request);
+	}
+
 	private void addPageNumber(final JSONObject body, final int pageNumber, final boolean shouldPage) {
 		try {
 			if (shouldPage) {
@@ -405,7 +1630,8 @@ public class GroupProcessor extends Processor {
 				} else if (body.has(J_WS_REST_FIND_GROUPS_REQUEST)) {
 					if (body.getJSONObject(J_WS_REST_FIND_GROUPS_REQUEST).has(J_WS_QUERY_FILTER)){
 						final Object queryFilterType = body.getJSONObject(J_WS_REST_FIND_GROUPS_REQUEST).getJSONObject(J_WS_QUERY_FILTER).get(J_QUERY_FILTER_TYPE);
-						if (String.valueOf(queryFilterType).equalsIgnoreCase(VAL_FIND_BY_STEM_NAME)) { //Currently WS only supports paging on Group FIND by STEM or Approximate Group Name query types ONLY!!
+						if (String.valueOf(queryFilterType).equalsIgnoreCase(VAL_FIND_BY_STEM_NAME)
+								|| String.valueOf(queryFilterType).equalsIgnoreCase(VAL_FIND_BY_GROUP_NAME_APPROXIMATE)) { //Currently WS only supports paging on Group FIND by STEM or Approximate Group Name query types ONLY!!
 							body.getJSONObject(J_WS_REST_FIND_GROUPS_REQUEST).getJSONObject(J_WS_QUERY_FILTER).put(J_PAGE_NUMBER, pageNumber);
 						}
 					}
@@ -417,6 +1643,61 @@ public class GroupProcessor extends Processor {
 		}
 	}
 
+	/**
+	 * Builds connector objects of a page of groups (build stage of the pipeline); groups with names not matching
+	 * the configured patterns get no object.
+	 */
+	private List<GroupItem> toGroupItems(final JSONArray groups) {
+		final List<GroupItem> items = new ArrayList<>(groups.length());
+		for (Object group : groups) {
+			if (!(group instanceof JSONObject)) {
+				throw new IllegalStateException("Expected group as JSONObject, got " + group);
+			}
+			final JSONObject gObject = (JSONObject) group;
+			final String name = getStringOrNull(gObject, J_NAME);
+			items.add(new GroupItem(getStringOrNull(gObject, J_UUID),
+					groupNameMatches(name) ? startGroupObjectBuilding(gObject, name).build() : null));
+		}
+		return items;
+	}
+
+	/**
+	 * Passes a group to the handler, skipping groups delivered by the failed scan being resumed, and records groups
+	 * delivered in the checkpoint (if any).
+	 */
+	private boolean handleGroupItem(final GroupItem item, final ResultsHandler handler, final ScanCheckpoint checkpoint) {
+		if (checkpoint != null && checkpoint.isDelivered(item.uuid)) {
+			return true;
+		}
+		final boolean proceed = item.object == null || handler.handle(item.object);
+		if (checkpoint != null) {
+			checkpoint.delivered(item.uuid);
+		}
+		return proceed;
+	}
+
+	/**
+	 * A listed group with its connector object, or with none if its name does not match the configured patterns.
+	 */
+	private static class GroupItem {
+
+		private final String uuid;
+		private final ConnectorObject object;
+
+		private GroupItem(String uuid, ConnectorObject object) {
+			this.uuid = uuid;
+			this.object = object;
+		}
+	}
+
+	/**
+	 * Paged listings of bulk operations run their stages on the pipeline threads. A single request, as well as
+	 * a lookup (e.g. of a group with its members), is processed on the calling thread, not to start threads for it.
+	 */
+	private ExecutorService getPipelineExecutor(final boolean shouldPage) {
+		return shouldPage && RequestKind.isBulk() ? connectionManager.getPipelineExecutor() : null;
+	}
+
 	private boolean handleGroupJsonObject(final Object group, final ResultsHandler handler) {
 		if (group instanceof JSONObject) {
 			final JSONObject gObject = (JSONObject) group;
@@ -432,7 +1713,10 @@ public class GroupProcessor extends Processor {
 		}
 	}
 
-	private void handleMemberJsonObject(final Object memberObject, final List<String> members) {
+	/**
+	 * @return ID of the member, or null if the member is to be skipped
+	 */
+	private String handleMemberJsonObject(final Object memberObject) {
 		if (memberObject instanceof JSONObject) {
 			final JSONObject member = (JSONObject) memberObject;
 			final String sourceId = getStringOrNull(member, J_SOURCE_ID);
@@ -442,11 +1726,12 @@ public class GroupProcessor extends Processor {
 			} else {
 				final String subjectId = getStringOrNull(member, J_ID);
 				if (subjectId != null) {
-					members.add(subjectId);
+					return subjectId;
 				} else {
 					LOG.warn("Skipping unnamed member (source={0})", member);
 					}
 				}
+			return null;
 		} else {
 			throw new IllegalStateException("Expected member as JSONObject, got " + memberObject);
 		}
@@ -463,27 +1748,6 @@ public class GroupProcessor extends Processor {
 		return builder;
 	}
 
-	private void checkStemExists(String stemName) { //TODO do we need to update/refactor this WS Query?
-		URIBuilder uriBuilder = getUriBuilderForStems();
-		JSONArray stems;
-		try {
-			HttpPost request = new HttpPost(uriBuilder.build());
-			JSONObject body = new JSONObject()
-					.put(J_WS_REST_FIND_STEMS_REQUEST, new JSONObject()
-							.put(J_WS_STEM_QUERY_FILTER, new JSONObject()
-									.put(J_STEM_QUERY_FILTER_TYPE, VAL_FIND_BY_STEM_NAME)
-									.put(J_STEM_NAME, stemName)));
-			JSONObject response = callRequest(request, body, null).getResponse();
-			checkSuccess(response, Collections.singletonList(J_WS_FIND_STEMS_RESULTS));
-			stems = getArray(response, true, List.of(J_WS_FIND_STEMS_RESULTS), List.of(J_STEM_RESULTS));
-		} catch (RuntimeException | URISyntaxException e) {
-			throw processException(e, uriBuilder, "Find stems request");
-		}
-		if (stems.length() == 0) {
-			throw new ConnectorException("Expected to find the stem '" + stemName + "', found none");
-		}
-	}
-
 	private void checkGroupExists(String groupName) {
 		List<ConnectorObject> groups = new ArrayList<>();
 		getGroupByName(groupName, groups::add, null);
@@ -499,9 +1763,36 @@ public class GroupProcessor extends Processor {
 		}
 	}
 
+	/**
+	 * Subject attributes requested with members, so that the members can be put into the subject cache.
+	 */
+	private List<String> getCachedSubjectAttributeNames() {
+		return subjectCache.isEnabled() ? getSubjectAttributeNames() : Collections.emptyList();
+	}
+
+	private boolean isSlimPayloads() {
+		return Boolean.TRUE.equals(configuration.getSlimPayloads());
+	}
+
+	private boolean isResumeScan(OperationOptions options) {
+		return options != null && options.getOptions() != null && Boolean.TRUE.equals(options.getOptions().get(OP_RESUME_SCAN));
+	}
+
 	private boolean isGetMembers(OperationOptions options) {
+		return !getMembershipAttributes(options).isEmpty();
+	}
+
+	/**
+	 * Returns requested attributes that require paging through group members: member, memberCount and memberDigest.
+	 */
+	private Set<String> getMembershipAttributes(OperationOptions options) {
 		String[] attrs = options != null ? options.getAttributesToGet() : null;
-		return attrs != null && Arrays.asList(attrs).contains(ATTR_MEMBER);
+		if (attrs == null) {
+			return Collections.emptySet();
+		}
+		Set<String> membershipAttributes = new HashSet<>(Arrays.asList(attrs));
+		membershipAttributes.retainAll(MEMBERSHIP_ATTRIBUTES);
+		return membershipAttributes;
 	}
 
 	private boolean groupNameMatches(String name) {
@@ -542,12 +1833,26 @@ public class GroupProcessor extends Processor {
 						.build());
 		builder.addAttributeInfo(
 				new AttributeInfoBuilder(ATTR_EXTENSION, String.class)
+						.setCreateable(false)
+						.setUpdateable(false)
 						.build());
 		builder.addAttributeInfo(
 				new AttributeInfoBuilder(ATTR_MEMBER, String.class)
 						.setMultiValued(true)
 						.setReturnedByDefault(false)
 						.build());
+		builder.addAttributeInfo(
+				new AttributeInfoBuilder(ATTR_MEMBER_COUNT, Integer.class)
+						.setReturnedByDefault(false)
+						.setCreateable(false)
+						.setUpdateable(false)
+						.build());
+		builder.addAttributeInfo(
+				new AttributeInfoBuilder(ATTR_MEMBER_DIGEST, String.class)
+						.setReturnedByDefault(false)
+						.setCreateable(false)
+						.setUpdateable(false)
+						.build());
 		return builder;
 	}
 
@@ -576,9 +1881,13 @@ public class GroupProcessor extends Processor {
 		return getUriBuilderRelative(PATH_ATTRIBUTES);
 	}
 
+	public URIBuilder getUriBuilderForMemberships() {
+		return getUriBuilderRelative(PATH_MEMBERSHIPS);
+	}
+
 	public void test() {
 		if (configuration.getTestStem() != null) {
-			checkStemExists(configuration.getTestStem());
+			stemProcessor.checkStemExists(configuration.getTestStem());
 		}
 		if (configuration.getTestGroup() != null) {
 			checkGroupExists(configuration.getTestGroup());
@@ -0,0 +1,254 @@
+/*
+ * Copyright (c) 2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.grouper.rest;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Snapshot of groups (UUID, name, extension and members) as returned by the previous synchronization, kept in a
+ * compact binary file that is memory-mapped when read.
+ *
+ * File layout (big endian):
+ * <pre>
+ *   header:     int magic, int version, long generation
+ *   groups:     string uuid, string name, string extension, long fingerprint, int memberCount, int[memberCount] members
+ *   dictionary: string subjectId (member codes are indices into this list)
+ *   footer:     int groupCount, int subjectCount, long dictionaryOffset
+ * </pre>
+ * Strings are stored as int length followed by UTF-8 bytes. The fingerprint is a hash of name, extension and
+ * members, so a group can be compared with the snapshot without decoding its members.
+ */
+class GroupSnapshot {
+
+	private static final int MAGIC = 0x47525331;
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 16;
+	private static final int FOOTER_SIZE = 16;
+
+	private final long generation;
+	private final ByteBuffer buffer;
+	private final Map<String, Integer> recordOffsets;
+
+	private GroupSnapshot(long generation, ByteBuffer buffer, Map<String, Integer> recordOffsets) {
+		this.generation = generation;
+		this.buffer = buffer;
+		this.recordOffsets = recordOffsets;
+	}
+
+	/**
+	 * Maps the snapshot file into memory and indexes its groups.
+	 *
+	 * @return the snapshot, or null if there is no (valid) snapshot file
+	 */
+	static GroupSnapshot open(Path file) throws IOException {
+		if (!Files.isRegularFile(file)) {
+			return null;
+		}
+		final MappedByteBuffer buffer;
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			if (channel.size() < HEADER_SIZE + FOOTER_SIZE || channel.size() > Integer.MAX_VALUE) {
+				Processor.LOG.warn("Ignoring snapshot file {0} of unexpected size {1}", file, channel.size());
+				return null;
+			}
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+			Processor.LOG.warn("Ignoring snapshot file {0} of unknown format", file);
+			return null;
+		}
+		final long generation = buffer.getLong(8);
+		final int footer = buffer.limit() - FOOTER_SIZE;
+		final int groupCount = buffer.getInt(footer);
+		final int dictionaryOffset = (int) buffer.getLong(footer + 8);
+
+		final Map<String, Integer> recordOffsets = new HashMap<>(groupCount * 2);
+		final ByteBuffer reader = buffer.duplicate();
+		reader.position(HEADER_SIZE);
+		for (int i = 0; i < groupCount; i++) {
+			final int offset = reader.position();
+			final String uuid = readString(reader);
+			recordOffsets.put(uuid, offset);
+			skipString(reader);
+			skipString(reader);
+			reader.getLong();
+			final int memberCount = reader.getInt();
+			reader.position(reader.position() + memberCount * Integer.BYTES);
+		}
+		if (reader.position() != dictionaryOffset) {
+			Processor.LOG.warn("Ignoring corrupted snapshot file {0}", file);
+			return null;
+		}
+		return new GroupSnapshot(generation, buffer, recordOffsets);
+	}
+
+	long getGeneration() {
+		return generation;
+	}
+
+	Set<String> getUuids() {
+		return Collections.unmodifiableSet(recordOffsets.keySet());
+	}
+
+	/**
+	 * @return fingerprint of the group, or null if the group is not in the snapshot
+	 */
+	Long getFingerprint(String uuid) {
+		final Integer offset = recordOffsets.get(uuid);
+		if (offset == null) {
+			return null;
+		}
+		final ByteBuffer reader = recordReader(offset);
+		return reader.getLong();
+	}
+
+	/**
+	 * Returns a reader positioned at the fingerprint of the record starting at the given offset.
+	 */
+	private ByteBuffer recordReader(int offset) {
+		final ByteBuffer reader = buffer.duplicate();
+		reader.position(offset);
+		skipString(reader);
+		skipString(reader);
+		skipString(reader);
+		return reader;
+	}
+
+	/**
+	 * Order-independent fingerprint (64-bit FNV-1a) of group data as stored in the snapshot.
+	 */
+	static long fingerprint(String name, String extension, Collection<String> members) {
+		final List<String> sorted = new ArrayList<>(members);
+		Collections.sort(sorted);
+		long hash = 0xcbf29ce484222325L;
+		hash = fnv(hash, name);
+		hash = fnv(hash, extension);
+		for (String member : sorted) {
+			hash = fnv(hash, member);
+		}
+		return hash;
+	}
+
+	private static long fnv(long hash, String value) {
+		if (value != null) {
+			for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+				hash ^= b & 0xff;
+				hash *= 0x100000001b3L;
+			}
+		}
+		hash ^= 0xff;
+		return hash * 0x100000001b3L;
+	}
+
+	private static String readString(ByteBuffer reader) {
+		final byte[] bytes = new byte[reader.getInt()];
+		reader.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static void skipString(ByteBuffer reader) {
+		final int length = reader.getInt();
+		reader.position(reader.position() + length);
+	}
+
+	/**
+	 * Writes a new snapshot into a temporary file that replaces the snapshot file on commit. A writer closed without
+	 * being committed leaves the previous snapshot in place.
+	 */
+	static class Writer implements Closeable {
+
+		private final Path target;
+		private final Path temporary;
+		private final DataOutputStream out;
+		private final Map<String, Integer> subjectCodes = new HashMap<>();
+		private final List<String> subjects = new ArrayList<>();
+		private long position;
+		private int groupCount;
+		private boolean committed;
+
+		Writer(Path target, long generation) throws IOException {
+			this.target = target;
+			this.temporary = Files.createTempFile(target.toAbsolutePath().getParent(), target.getFileName().toString(), ".tmp");
+			this.out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(generation);
+			position = HEADER_SIZE;
+		}
+
+		void add(String uuid, String name, String extension, Collection<String> members, long fingerprint) throws IOException {
+			writeString(uuid);
+			writeString(name);
+			writeString(extension);
+			out.writeLong(fingerprint);
+			out.writeInt(members.size());
+			position += Long.BYTES + Integer.BYTES;
+			for (String member : members) {
+				out.writeInt(subjectCodes.computeIfAbsent(member, id -> {
+					subjects.add(id);
+					return subjects.size() - 1;
+				}));
+				position += Integer.BYTES;
+			}
+			groupCount++;
+		}
+
+		void commit() throws IOException {
+			final long dictionaryOffset = position;
+			for (String subject : subjects) {
+				writeString(subject);
+			}
+			out.writeInt(groupCount);
+			out.writeInt(subjects.size());
+			out.writeLong(dictionaryOffset);
+			out.close();
+			Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			committed = true;
+		}
+
+		private void writeString(String value) throws IOException {
+			final byte[] bytes = value != null ? value.getBytes(StandardCharsets.UTF_8) : new byte[0];
+			out.writeInt(bytes.length);
+			out.write(bytes);
+			position += Integer.BYTES + bytes.length;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (!committed) {
+				out.close();
+				Files.deleteIfExists(temporary);
+			}
+		}
+	}
+}
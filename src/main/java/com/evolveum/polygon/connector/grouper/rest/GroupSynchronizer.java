@@ -0,0 +1,248 @@
+/*
+ * Copyright (c) 2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.grouper.rest;
+
+import org.identityconnectors.common.StringUtil;
+import org.identityconnectors.framework.common.exceptions.ConfigurationException;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.identityconnectors.framework.common.objects.*;
+import org.identityconnectors.framework.spi.SyncTokenResultsHandler;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Reports groups changed since the previous synchronization by comparing a full listing (with members) against
+ * the group snapshot stored by that synchronization.
+ *
+ * The sync token is the generation of the snapshot. A token matching the stored snapshot gets only groups whose name,
+ * extension or members differ from the snapshot, plus deletions of groups no longer present. Any other token
+ * (including none) gets all groups. The new snapshot replaces the old one only after all changes were accepted
+ * by the handler.
+ *
+ * The snapshot is locked (by a companion lock file) for the whole synchronization, so that connector instances
+ * sharing the snapshot directory never synchronize against the same snapshot at once: a synchronization finding
+ * the snapshot locked fails right away.
+ */
+class GroupSynchronizer {
+
+	private static final String SNAPSHOT_FILE_PREFIX = "grouper-groups-";
+	private static final String SNAPSHOT_FILE_SUFFIX = ".snapshot";
+	private static final String LOCK_SUFFIX = ".lock";
+
+	private final GrouperConfiguration configuration;
+	private final GroupProcessor groupProcessor;
+
+	GroupSynchronizer(GrouperConfiguration configuration, GroupProcessor groupProcessor) {
+		this.configuration = configuration;
+		this.groupProcessor = groupProcessor;
+	}
+
+	SyncToken getLatestSyncToken() {
+		final GroupSnapshot snapshot = openSnapshot(getSnapshotFile());
+		return new SyncToken(snapshot != null ? snapshot.getGeneration() : 0L);
+	}
+
+	void sync(SyncToken token, SyncResultsHandler handler) {
+		final Path file = getSnapshotFile();
+		final FileChannel lockChannel = lock(file);
+		try {
+			sync(file, token, handler);
+		} finally {
+			try {
+				lockChannel.close();
+			} catch (IOException e) {
+				Processor.LOG.warn("Couldn't release group snapshot lock {0}: {1}", getLockFile(file), e.getMessage());
+			}
+		}
+	}
+
+	private void sync(Path file, SyncToken token, SyncResultsHandler handler) {
+		final GroupSnapshot previous = openSnapshot(file);
+		final boolean incremental = previous != null && token != null && token.getValue() instanceof Number
+				&& ((Number) token.getValue()).longValue() == previous.getGeneration();
+		final long generation = Math.max(System.currentTimeMillis(), previous != null ? previous.getGeneration() + 1 : 0L);
+		final SyncToken newToken = new SyncToken(generation);
+		Processor.LOG.info("Synchronizing groups from token {0} (snapshot {1}, incremental: {2})", token,
+				previous != null ? previous.getGeneration() : null, incremental);
+
+		final Set<String> present = new HashSet<>();
+		final int[] changes = new int[1];
+		final boolean[] stopped = new boolean[1];
+		try (GroupSnapshot.Writer writer = new GroupSnapshot.Writer(file, generation)) {
+			groupProcessor.read(null, group -> {
+				final String uuid = group.getUid().getUidValue();
+				final String name = group.getName().getNameValue();
+				final String extension = getSingleValue(group, GroupProcessor.ATTR_EXTENSION);
+				final List<String> members = getValues(group, GroupProcessor.ATTR_MEMBER);
+				final long fingerprint = GroupSnapshot.fingerprint(name, extension, members);
+				try {
+					writer.add(uuid, name, extension, members, fingerprint);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+				present.add(uuid);
+				if (incremental && Long.valueOf(fingerprint).equals(previous.getFingerprint(uuid))) {
+					return true;
+				}
+				changes[0]++;
+				if (!handler.handle(new SyncDeltaBuilder()
+						.setDeltaType(SyncDeltaType.CREATE_OR_UPDATE)
+						.setToken(newToken)
+						.setObject(group)
+						.build())) {
+					stopped[0] = true;
+					return false;
+				}
+				return true;
+			}, getSyncOptions());
+			if (stopped[0]) {
+				Processor.LOG.info("Synchronization stopped by the handler after {0} changes, snapshot not updated", changes[0]);
+				return;
+			}
+
+			if (previous != null) {
+				for (String uuid : previous.getUuids()) {
+					if (present.contains(uuid)) {
+						continue;
+					}
+					changes[0]++;
+					if (!handler.handle(new SyncDeltaBuilder()
+							.setDeltaType(SyncDeltaType.DELETE)
+							.setToken(newToken)
+							.setObjectClass(groupProcessor.getObjectClass())
+							.setUid(new Uid(uuid))
+							.build())) {
+						Processor.LOG.info("Synchronization stopped by the handler after {0} changes, snapshot not updated", changes[0]);
+						return;
+					}
+				}
+			}
+			writer.commit();
+		} catch (IOException | UncheckedIOException e) {
+			throw new ConnectorException("Couldn't write group snapshot " + file + ": " + e.getMessage(), e);
+		}
+
+		Processor.LOG.info("Synchronization finished with {0} changes, {1} groups in snapshot {2}", changes[0], present.size(), generation);
+		if (handler instanceof SyncTokenResultsHandler) {
+			((SyncTokenResultsHandler) handler).handleResult(newToken);
+		}
+	}
+
+	private OperationOptions getSyncOptions() {
+		final Map<String, Object> options = new HashMap<>();
+		options.put(OperationOptions.OP_ATTRIBUTES_TO_GET, new String[] { GroupProcessor.ATTR_EXTENSION, GroupProcessor.ATTR_MEMBER });
+		return new OperationOptions(options);
+	}
+
+	/**
+	 * The snapshot file is specific to the Grouper endpoint and to the set of groups the connector is configured to see.
+	 */
+	private Path getSnapshotFile() {
+		final String directory = configuration.getSnapshotDirectory();
+		if (StringUtil.isBlank(directory)) {
+			throw new ConfigurationException("Synchronization requires the snapshot directory to be configured");
+		}
+		final List<String> scope = new ArrayList<>();
+		scope.add(configuration.getBaseStem());
+		scope.addAll(asList(configuration.getGroupIncludePattern()));
+		scope.addAll(asList(configuration.getGroupExcludePattern()));
+		scope.addAll(asList(configuration.getGroupAttribute()));
+		final long key = GroupSnapshot.fingerprint(groupProcessor.getEndpointKey(), configuration.getSubjectSource(), scope);
+		return Paths.get(directory, SNAPSHOT_FILE_PREFIX + Long.toHexString(key) + SNAPSHOT_FILE_SUFFIX);
+	}
+
+	/**
+	 * Locks the snapshot for the current synchronization.
+	 *
+	 * @return channel holding the lock
+	 */
+	private static FileChannel lock(Path file) {
+		FileChannel channel = null;
+		try {
+			Files.createDirectories(file.getParent());
+			channel = FileChannel.open(getLockFile(file), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+			if (channel.tryLock() != null) {
+				return channel;
+			}
+		} catch (OverlappingFileLockException e) {
+			// locked by another synchronization in this JVM
+		} catch (IOException e) {
+			closeQuietly(channel);
+			throw new ConnectorException("Couldn't lock group snapshot " + file + ": " + e.getMessage(), e);
+		}
+		closeQuietly(channel);
+		throw new ConnectorException("Group snapshot " + file + " is locked by another synchronization of the same groups");
+	}
+
+	private static Path getLockFile(Path file) {
+		return file.resolveSibling(file.getFileName() + LOCK_SUFFIX);
+	}
+
+	private static void closeQuietly(FileChannel channel) {
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// nothing to do
+			}
+		}
+	}
+
+	private GroupSnapshot openSnapshot(Path file) {
+		try {
+			Files.createDirectories(file.getParent());
+			return GroupSnapshot.open(file);
+		} catch (IOException e) {
+			throw new ConnectorException("Couldn't read group snapshot " + file + ": " + e.getMessage(), e);
+		}
+	}
+
+	private static List<String> asList(String[] values) {
+		return values != null ? Arrays.asList(values) : Collections.emptyList();
+	}
+
+	private static String getSingleValue(ConnectorObject object, String name) {
+		final List<String> values = getValues(object, name);
+		return values.isEmpty() ? null : values.get(0);
+	}
+
+	private static List<String> getValues(ConnectorObject object, String name) {
+		final Attribute attribute = object.getAttributeByName(name);
+		if (attribute == null || attribute.getValue() == null) {
+			return Collections.emptyList();
+		}
+		final List<String> values = new ArrayList<>(attribute.getValue().size());
+		for (Object value : attribute.getValue()) {
+			values.add((String) value);
+		}
+		return values;
+	}
+}
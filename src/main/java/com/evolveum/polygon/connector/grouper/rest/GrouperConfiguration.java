@@ -22,7 +22,11 @@ import org.identityconnectors.framework.common.exceptions.ConfigurationException
 import org.identityconnectors.framework.spi.AbstractConfiguration;
 import org.identityconnectors.framework.spi.ConfigurationProperty;
 import org.identityconnectors.framework.spi.StatefulConfiguration;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.security.KeyStore;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -38,22 +42,53 @@ public class GrouperConfiguration extends AbstractConfiguration implements State
     private static final String DEFAULT_CONTENT_TYPE_JSON = "application/json; charset=utf-8";
     private static final String DEFAULT_URI_BASE_PATH = "/grouper-ws/servicesRest/json/v2_4_000";
     private static final int DEFAULT_PAGE_SIZE = 100;
+    private static final int DEFAULT_MAX_CONCURRENT_REQUESTS = 4;
+    private static final int DEFAULT_SUBJECT_CACHE_SIZE = 10000;
+    private static final int DEFAULT_STEM_CACHE_TTL = 300;
+    private static final int DEFAULT_MEMBERSHIP_CHUNK_SIZE = 1000;
+    private static final int DEFAULT_WRITE_BATCH_WINDOW = 20;
+    private static final int DEFAULT_ALIVE_CHECK_INTERVAL = 60;
+    private static final int DEFAULT_RESERVED_LOOKUP_REQUESTS = 1;
+    private static final List<String> MEMBER_FILTERS = List.of("All", "Effective", "Immediate", "Composite", "NonImmediate");
 
     private String baseUrl;
+    private String[] additionalBaseUrls;
     private String uriBasePath;
     private String username;
     private GuardedString password;
     private Boolean ignoreSslValidation;
+    private String trustStorePath;
+    private GuardedString trustStorePassword;
+    private String trustStoreType;
     private String contentType;
 
     private String baseStem;
     private String[] groupIncludePattern;
     private String[] groupExcludePattern;
     private String[] groupAttribute;
+    private Boolean pagedAttributeDiscovery;
     private String subjectSource;
+    private String memberFilter;
+    private String[] subjectAttributes;
+    private Integer subjectCacheSize;
+    private Boolean nestedGroupGraph;
+    private Integer stemCacheTtl;
     private String testStem;
     private String testGroup;
     private Integer pageSize;
+    private Integer memberPageSize;
+    private Integer maxConcurrentRequests;
+    private Integer maxRequestsPerSecond;
+    private Integer adaptiveConcurrencyLimit;
+    private Integer reservedLookupRequests;
+    private Integer aliveCheckInterval;
+    private Boolean parallelStemScan;
+    private Integer membershipChunkSize;
+    private Integer writeBatchWindow;
+    private Boolean slimPayloads;
+    private String snapshotDirectory;
+    private String checkpointDirectory;
+    private String exportDirectory;
     private Boolean logRequestResponses;
 
 
@@ -66,6 +101,15 @@ public class GrouperConfiguration extends AbstractConfiguration implements State
         this.baseUrl = baseUrl;
     }
 
+    @ConfigurationProperty(order = 15, displayMessageKey = "additionalBaseUrls.display", helpMessageKey = "additionalBaseUrls.help")
+    public String[] getAdditionalBaseUrls() {
+        return additionalBaseUrls;
+    }
+
+    public void setAdditionalBaseUrls(String[] additionalBaseUrls) {
+        this.additionalBaseUrls = additionalBaseUrls;
+    }
+
     @ConfigurationProperty(order = 20, displayMessageKey = "username.display", helpMessageKey = "username.help", required = true)
     public String getUsername() {
         return username;
@@ -102,6 +146,53 @@ public class GrouperConfiguration extends AbstractConfiguration implements State
         this.ignoreSslValidation = ignoreSslValidation;
     }
 
+    /**
+     * Trust store (e.g. PKCS12 or JKS file) holding the certificates used to validate the Grouper REST service.
+     * If not specified, the default JVM trust store is used.
+     */
+    @ConfigurationProperty(order = 42, displayMessageKey = "trustStorePath.display", helpMessageKey = "trustStorePath.help")
+    public String getTrustStorePath() {
+        return trustStorePath;
+    }
+
+    public void setTrustStorePath(String trustStorePath) {
+        this.trustStorePath = trustStorePath;
+    }
+
+    @ConfigurationProperty(order = 44, displayMessageKey = "trustStorePassword.display", helpMessageKey = "trustStorePassword.help", confidential = true)
+    public GuardedString getTrustStorePassword() {
+        return trustStorePassword;
+    }
+
+    public void setTrustStorePassword(GuardedString trustStorePassword) {
+        this.trustStorePassword = trustStorePassword;
+    }
+
+    public char[] getTrustStorePasswordPlain() {
+        if (trustStorePassword == null) {
+            return null;
+        }
+        StringBuilder plain = new StringBuilder();
+        trustStorePassword.access(clearChars -> plain.append(new String(clearChars)));
+        return plain.toString().toCharArray();
+    }
+
+    /**
+     * Type of the trust store, e.g. PKCS12 or JKS. The default is the JVM default keystore type.
+     */
+    @ConfigurationProperty(order = 46, displayMessageKey = "trustStoreType.display", helpMessageKey = "trustStoreType.help")
+    public String getTrustStoreType() {
+        if (trustStoreType != null && !trustStoreType.isBlank()) {
+            return trustStoreType;
+        } else {
+            return KeyStore.getDefaultType();
+        }
+    }
+
+    public void setTrustStoreType(String trustStoreType) {
+        this.trustStoreType = trustStoreType;
+    }
+
     /**
      * Used to specify stem that is fetched during Test Connection (if any).
      */
@@ -142,6 +233,22 @@ public class GrouperConfiguration extends AbstractConfiguration implements State
         this.pageSize = pageSize;
     }
 
+    /**
+     * Page size used when paging through members of a group. Defaults to the page size.
+     */
+    @ConfigurationProperty(order = 75, displayMessageKey = "memberPageSize.display", helpMessageKey = "memberPageSize.help")
+    public Integer getMemberPageSize() {
+        if (memberPageSize != null && memberPageSize > 0) {
+            return memberPageSize;
+        } else {
+            return getPageSize();
+        }
+    }
+
+    public void setMemberPageSize(Integer memberPageSize) {
+        this.memberPageSize = memberPageSize;
+    }
+
     /**
      * Used in case the Grouper WS Base Path Changes
      * @return
@@ -202,6 +309,19 @@ public class GrouperConfiguration extends AbstractConfiguration implements State
         this.groupAttribute = groupAttribute;
     }
 
+    /**
+     * Should groups filtered by attribute (see groupAttribute) be discovered page by page under the base stem,
+     * instead of using a single unpaged attribute assignments query per attribute?
+     */
+    @ConfigurationProperty(order = 115, displayMessageKey = "pagedAttributeDiscovery.display", helpMessageKey = "pagedAttributeDiscovery.help")
+    public Boolean getPagedAttributeDiscovery() {
+        return pagedAttributeDiscovery;
+    }
+
+    public void setPagedAttributeDiscovery(Boolean pagedAttributeDiscovery) {
+        this.pagedAttributeDiscovery = pagedAttributeDiscovery;
+    }
+
     /**
      * Which groups should be visible to this connector?
      */
@@ -238,6 +358,248 @@ public class GrouperConfiguration extends AbstractConfiguration implements State
         this.subjectSource = subjectSource;
     }
 
+    /**
+     * Which memberships are returned when fetching group members: All, Effective, Immediate, Composite or NonImmediate.
+     * If not specified, Grouper default (All) is used.
+     */
+    @ConfigurationProperty(order = 145, displayMessageKey = "memberFilter.display", helpMessageKey = "memberFilter.help")
+    public String getMemberFilter() {
+        return memberFilter;
+    }
+
+    public void setMemberFilter(String memberFilter) {
+        this.memberFilter = memberFilter;
+    }
+
+    /**
+     * Subject attributes that are provided by the Subject object class. They are requested from Grouper by name.
+     */
+    @ConfigurationProperty(order = 146, displayMessageKey = "subjectAttributes.display", helpMessageKey = "subjectAttributes.help")
+    public String[] getSubjectAttributes() {
+        return subjectAttributes;
+    }
+
+    public void setSubjectAttributes(String[] subjectAttributes) {
+        this.subjectAttributes = subjectAttributes;
+    }
+
+    /**
+     * Maximal number of resolved subjects kept in memory. Zero turns the cache off.
+     */
+    @ConfigurationProperty(order = 147, displayMessageKey = "subjectCacheSize.display", helpMessageKey = "subjectCacheSize.help")
+    public Integer getSubjectCacheSize() {
+        if (subjectCacheSize != null && subjectCacheSize >= 0) {
+            return subjectCacheSize;
+        } else {
+            return DEFAULT_SUBJECT_CACHE_SIZE;
+        }
+    }
+
+    public void setSubjectCacheSize(Integer subjectCacheSize) {
+        this.subjectCacheSize = subjectCacheSize;
+    }
+
+    /**
+     * Should effective members of groups in a full listing be computed locally from immediate memberships?
+     */
+    @ConfigurationProperty(order = 149, displayMessageKey = "nestedGroupGraph.display", helpMessageKey = "nestedGroupGraph.help")
+    public Boolean getNestedGroupGraph() {
+        return nestedGroupGraph;
+    }
+
+    public void setNestedGroupGraph(Boolean nestedGroupGraph) {
+        this.nestedGroupGraph = nestedGroupGraph;
+    }
+
+    /**
+     * How long (in seconds) are the stems known to this connector kept in memory. Zero turns the stem cache off.
+     */
+    @ConfigurationProperty(order = 148, displayMessageKey = "stemCacheTtl.display", helpMessageKey = "stemCacheTtl.help")
+    public Integer getStemCacheTtl() {
+        if (stemCacheTtl != null && stemCacheTtl >= 0) {
+            return stemCacheTtl;
+        } else {
+            return DEFAULT_STEM_CACHE_TTL;
+        }
+    }
+
+    public void setStemCacheTtl(Integer stemCacheTtl) {
+        this.stemCacheTtl = stemCacheTtl;
+    }
+
+    /**
+     * Maximal number of requests this connector instance sends to Grouper WS concurrently, e.g. when
+     * fanning out queries for more group attributes.
+     */
+    @ConfigurationProperty(order = 150, displayMessageKey = "maxConcurrentRequests.display", helpMessageKey = "maxConcurrentRequests.help")
+    public Integer getMaxConcurrentRequests() {
+        if (maxConcurrentRequests != null && maxConcurrentRequests > 0) {
+            return maxConcurrentRequests;
+        } else {
+            return DEFAULT_MAX_CONCURRENT_REQUESTS;
+        }
+    }
+
+    public void setMaxConcurrentRequests(Integer maxConcurrentRequests) {
+        this.maxConcurrentRequests = maxConcurrentRequests;
+    }
+
+    /**
+     * Should a full listing of groups be split by child stems of the base stem into independent queries
+     * that are run in parallel?
+     */
+    @ConfigurationProperty(order = 152, displayMessageKey = "parallelStemScan.display", helpMessageKey = "parallelStemScan.help")
+    public Boolean getParallelStemScan() {
+        return parallelStemScan;
+    }
+
+    public void setParallelStemScan(Boolean parallelStemScan) {
+        this.parallelStemScan = parallelStemScan;
+    }
+
+    /**
+     * Maximal rate of requests sent to Grouper WS by all connector instances using the same base URL.
+     * Zero means no limit.
+     */
+    @ConfigurationProperty(order = 151, displayMessageKey = "maxRequestsPerSecond.display", helpMessageKey = "maxRequestsPerSecond.help")
+    public Integer getMaxRequestsPerSecond() {
+        return maxRequestsPerSecond != null && maxRequestsPerSecond > 0 ? maxRequestsPerSecond : 0;
+    }
+
+    public void setMaxRequestsPerSecond(Integer maxRequestsPerSecond) {
+        this.maxRequestsPerSecond = maxRequestsPerSecond;
+    }
+
+    /**
+     * Upper bound of the adaptive limit of requests in flight to Grouper WS, shared by all connector instances
+     * using the same base URL. Zero turns the adaptive limit off.
+     */
+    @ConfigurationProperty(order = 156, displayMessageKey = "adaptiveConcurrencyLimit.display", helpMessageKey = "adaptiveConcurrencyLimit.help")
+    public Integer getAdaptiveConcurrencyLimit() {
+        return adaptiveConcurrencyLimit != null && adaptiveConcurrencyLimit > 0 ? adaptiveConcurrencyLimit : 0;
+    }
+
+    public void setAdaptiveConcurrencyLimit(Integer adaptiveConcurrencyLimit) {
+        this.adaptiveConcurrencyLimit = adaptiveConcurrencyLimit;
+    }
+
+    /**
+     * How many of the requests in flight allowed by the adaptive concurrency limit are kept for single object
+     * lookups, i.e. cannot be used by bulk listings. Needs the adaptive concurrency limit.
+     */
+    @ConfigurationProperty(order = 161, displayMessageKey = "reservedLookupRequests.display", helpMessageKey = "reservedLookupRequests.help")
+    public Integer getReservedLookupRequests() {
+        if (reservedLookupRequests != null && reservedLookupRequests >= 0) {
+            return reservedLookupRequests;
+        } else {
+            return DEFAULT_RESERVED_LOOKUP_REQUESTS;
+        }
+    }
+
+    public void setReservedLookupRequests(Integer reservedLookupRequests) {
+        this.reservedLookupRequests = reservedLookupRequests;
+    }
+
+    /**
+     * Maximal number of subjects added to (or removed from) a group in one request.
+     */
+    @ConfigurationProperty(order = 153, displayMessageKey = "membershipChunkSize.display", helpMessageKey = "membershipChunkSize.help")
+    public Integer getMembershipChunkSize() {
+        if (membershipChunkSize != null && membershipChunkSize > 0) {
+            return membershipChunkSize;
+        } else {
+            return DEFAULT_MEMBERSHIP_CHUNK_SIZE;
+        }
+    }
+
+    public void setMembershipChunkSize(Integer membershipChunkSize) {
+        this.membershipChunkSize = membershipChunkSize;
+    }
+
+    /**
+     * How long (in milliseconds) a group creation or deletion waits for other ones to be sent together with it.
+     * Zero turns batching off.
+     */
+    @ConfigurationProperty(order = 154, displayMessageKey = "writeBatchWindow.display", helpMessageKey = "writeBatchWindow.help")
+    public Integer getWriteBatchWindow() {
+        if (writeBatchWindow != null && writeBatchWindow >= 0) {
+            return writeBatchWindow;
+        } else {
+            return DEFAULT_WRITE_BATCH_WINDOW;
+        }
+    }
+
+    public void setWriteBatchWindow(Integer writeBatchWindow) {
+        this.writeBatchWindow = writeBatchWindow;
+    }
+
+    /**
+     * Should we ask Grouper WS only for the data this connector really uses, i.e. no subject or group detail?
+     */
+    @ConfigurationProperty(order = 155, displayMessageKey = "slimPayloads.display", helpMessageKey = "slimPayloads.help")
+    public Boolean getSlimPayloads() {
+        return slimPayloads;
+    }
+
+    public void setSlimPayloads(Boolean slimPayloads) {
+        this.slimPayloads = slimPayloads;
+    }
+
+    /**
+     * How long (in seconds) after a successful response from Grouper WS a pooled connector instance is considered
+     * alive without checking. Zero means always checking.
+     */
+    @ConfigurationProperty(order = 157, displayMessageKey = "aliveCheckInterval.display", helpMessageKey = "aliveCheckInterval.help")
+    public Integer getAliveCheckInterval() {
+        if (aliveCheckInterval != null && aliveCheckInterval >= 0) {
+            return aliveCheckInterval;
+        } else {
+            return DEFAULT_ALIVE_CHECK_INTERVAL;
+        }
+    }
+
+    public void setAliveCheckInterval(Integer aliveCheckInterval) {
+        this.aliveCheckInterval = aliveCheckInterval;
+    }
+
+    /**
+     * Directory where the group snapshot used by synchronization is kept. Synchronization is not available without it.
+     */
+    @ConfigurationProperty(order = 158, displayMessageKey = "snapshotDirectory.display", helpMessageKey = "snapshotDirectory.help")
+    public String getSnapshotDirectory() {
+        return snapshotDirectory;
+    }
+
+    public void setSnapshotDirectory(String snapshotDirectory) {
+        this.snapshotDirectory = snapshotDirectory;
+    }
+
+    /**
+     * Directory where progress of full group scans is recorded, so that a failed scan can be resumed by a retried
+     * search. Scans are not checkpointed if not set.
+     */
+    @ConfigurationProperty(order = 159, displayMessageKey = "checkpointDirectory.display", helpMessageKey = "checkpointDirectory.help")
+    public String getCheckpointDirectory() {
+        return checkpointDirectory;
+    }
+
+    public void setCheckpointDirectory(String checkpointDirectory) {
+        this.checkpointDirectory = checkpointDirectory;
+    }
+
+    /**
+     * Directory where exports of groups are written. Files to export to are given relative to it; export is not
+     * available without it.
+     */
+    @ConfigurationProperty(order = 162, displayMessageKey = "exportDirectory.display", helpMessageKey = "exportDirectory.help")
+    public String getExportDirectory() {
+        return exportDirectory;
+    }
+
+    public void setExportDirectory(String exportDirectory) {
+        this.exportDirectory = exportDirectory;
+    }
+
     /**
      * Should we log request/response logs to/from Grouper WS.
      */
@@ -256,10 +618,21 @@ public class GrouperConfiguration extends AbstractConfiguration implements State
         String exceptionMsg;
         if (StringUtil.isBlank(baseUrl)) {
             exceptionMsg = "Base URL is not provided.";
+        } else if (!isValidUrl(baseUrl)) {
+            exceptionMsg = "Invalid base URL: " + baseUrl + ".";
+        } else if (additionalBaseUrls != null && Arrays.stream(additionalBaseUrls).anyMatch(url -> !isValidUrl(url))) {
+            exceptionMsg = "Invalid additional base URL in " + Arrays.toString(additionalBaseUrls) + ".";
         } else if (StringUtil.isBlank(username)) {
             exceptionMsg = "Name is not provided.";
         } else if (password == null) {
             exceptionMsg = "Password is not provided.";
+        } else if (StringUtil.isNotBlank(memberFilter) && !MEMBER_FILTERS.contains(memberFilter)) {
+            exceptionMsg = "Unsupported member filter: " + memberFilter + ", expected one of " + MEMBER_FILTERS + ".";
+        } else if (reservedLookupRequests != null && reservedLookupRequests > 0 && getAdaptiveConcurrencyLimit() == 0) {
+            exceptionMsg = "Reserved lookup requests need the adaptive concurrency limit to be set.";
+        } else if (reservedLookupRequests != null && getAdaptiveConcurrencyLimit() > 0 && reservedLookupRequests >= getAdaptiveConcurrencyLimit()) {
+            exceptionMsg = "Reserved lookup requests (" + reservedLookupRequests + ") must be fewer than the adaptive concurrency limit ("
+                    + getAdaptiveConcurrencyLimit() + ").";
         } else {
             return;
         }
@@ -267,22 +640,53 @@ public class GrouperConfiguration extends AbstractConfiguration implements State
         throw new ConfigurationException(exceptionMsg);
     }
 
+    private static boolean isValidUrl(String url) {
+        try {
+            return url != null && new URI(url.trim()).getHost() != null;
+        } catch (URISyntaxException e) {
+            return false;
+        }
+    }
+
     @Override
     public void release() {
         this.baseUrl = null;
+        this.additionalBaseUrls = null;
         this.uriBasePath = null;
         this.username = null;
         this.password = null;
         this.ignoreSslValidation = null;
+        this.trustStorePath = null;
+        this.trustStorePassword = null;
+        this.trustStoreType = null;
         this.contentType = null;
         this.baseStem = null;
         this.groupIncludePattern = null;
         this.groupExcludePattern = null;
         this.groupAttribute = null;
+        this.pagedAttributeDiscovery = null;
         this.subjectSource = null;
+        this.memberFilter = null;
+        this.subjectAttributes = null;
+        this.subjectCacheSize = null;
+        this.nestedGroupGraph = null;
+        this.stemCacheTtl = null;
         this.testStem = null;
         this.testGroup = null;
         this.pageSize = null;
+        this.memberPageSize = null;
+        this.maxConcurrentRequests = null;
+        this.maxRequestsPerSecond = null;
+        this.adaptiveConcurrencyLimit = null;
+        this.reservedLookupRequests = null;
+        this.aliveCheckInterval = null;
+        this.parallelStemScan = null;
+        this.membershipChunkSize = null;
+        this.writeBatchWindow = null;
+        this.slimPayloads = null;
+        this.snapshotDirectory = null;
+        this.checkpointDirectory = null;
+        this.exportDirectory = null;
         this.logRequestResponses = null;
     }
 
@@ -290,18 +694,40 @@ public class GrouperConfiguration extends AbstractConfiguration implements State
     public String toString() {
         return "GrouperConfiguration{" +
                 "baseUrl='" + baseUrl + '\'' +
+                ", additionalBaseUrls=" + Arrays.toString(additionalBaseUrls) +
                 ", username='" + username + '\'' +
                 ", ignoreSslValidation=" + ignoreSslValidation +
+                ", trustStorePath='" + trustStorePath + '\'' +
+                ", trustStoreType='" + trustStoreType + '\'' +
                 ", baseStem='" + baseStem + '\'' +
                 ", groupIncludePattern=" + Arrays.toString(groupIncludePattern) +
                 ", groupExcludePattern=" + Arrays.toString(groupExcludePattern) +
                 ", subjectSource='" + subjectSource + '\'' +
+                ", memberFilter='" + memberFilter + '\'' +
+                ", subjectAttributes=" + Arrays.toString(subjectAttributes) +
+                ", subjectCacheSize='" + subjectCacheSize + '\'' +
+                ", nestedGroupGraph='" + nestedGroupGraph + '\'' +
+                ", stemCacheTtl='" + stemCacheTtl + '\'' +
                 ", testStem='" + testStem + '\'' +
                 ", testGroup='" + testGroup + '\'' +
                 ", pageSize='" + pageSize + '\'' +
+                ", memberPageSize='" + memberPageSize + '\'' +
+                ", maxConcurrentRequests='" + maxConcurrentRequests + '\'' +
+                ", maxRequestsPerSecond='" + maxRequestsPerSecond + '\'' +
+                ", adaptiveConcurrencyLimit='" + adaptiveConcurrencyLimit + '\'' +
+                ", reservedLookupRequests='" + reservedLookupRequests + '\'' +
+                ", aliveCheckInterval='" + aliveCheckInterval + '\'' +
+                ", parallelStemScan='" + parallelStemScan + '\'' +
+                ", membershipChunkSize='" + membershipChunkSize + '\'' +
+                ", writeBatchWindow='" + writeBatchWindow + '\'' +
+                ", slimPayloads='" + slimPayloads + '\'' +
+                ", snapshotDirectory='" + snapshotDirectory + '\'' +
+                ", checkpointDirectory='" + checkpointDirectory + '\'' +
+                ", exportDirectory='" + exportDirectory + '\'' +
                 ", uriBasePath='" + uriBasePath + '\'' +
                 ", contentType='" + contentType + '\'' +
                 ", groupAttribute='" + groupAttribute + '\'' +
+                ", pagedAttributeDiscovery='" + pagedAttributeDiscovery + '\'' +
                 ", logRequestResponses='" + logRequestResponses + '\'' +
                 '}';
     }
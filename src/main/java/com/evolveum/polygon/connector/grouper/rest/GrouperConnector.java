@@ -18,27 +18,41 @@ package com.evolveum.polygon.connector.grouper.rest;
 import org.identityconnectors.common.CollectionUtil;
 import org.identityconnectors.common.logging.Log;
 import org.identityconnectors.framework.common.exceptions.ConfigurationException;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
 import org.identityconnectors.framework.common.exceptions.InvalidAttributeValueException;
 import org.identityconnectors.framework.common.objects.*;
 import org.identityconnectors.framework.common.objects.filter.Filter;
 import org.identityconnectors.framework.common.objects.filter.FilterTranslator;
 import org.identityconnectors.framework.spi.Configuration;
-import org.identityconnectors.framework.spi.Connector;
 import org.identityconnectors.framework.spi.ConnectorClass;
+import org.identityconnectors.framework.spi.PoolableConnector;
+import org.identityconnectors.framework.spi.operations.CreateOp;
+import org.identityconnectors.framework.spi.operations.DeleteOp;
 import org.identityconnectors.framework.spi.operations.SchemaOp;
+import org.identityconnectors.framework.spi.operations.ScriptOnConnectorOp;
 import org.identityconnectors.framework.spi.operations.SearchOp;
+import org.identityconnectors.framework.spi.operations.SyncOp;
 import org.identityconnectors.framework.spi.operations.TestOp;
+import org.identityconnectors.framework.spi.operations.UpdateDeltaOp;
+
+import java.util.Set;
 
 /**
  * Configuration for the Grouper connector.
  */
 @ConnectorClass(displayNameKey = "GrouperConnector.rest.display", configurationClass = GrouperConfiguration.class)
-public class GrouperConnector implements TestOp, SchemaOp, Connector, SearchOp<Filter> {
+public class GrouperConnector implements TestOp, SchemaOp, PoolableConnector, SearchOp<Filter>, UpdateDeltaOp,
+        CreateOp, DeleteOp, SyncOp, ScriptOnConnectorOp {
 
     private static final Log LOG = Log.getLog(GrouperConnector.class);
 
     private GrouperConfiguration configuration;
+    private ConnectionManager connectionManager;
     private GroupProcessor groupProcessor;
+    private SubjectProcessor subjectProcessor;
+    private StemProcessor stemProcessor;
+    private GroupSynchronizer groupSynchronizer;
+    private GroupExporter groupExporter;
 
     @Override
     public GrouperConfiguration getConfiguration() {
@@ -54,26 +68,66 @@ public class GrouperConnector implements TestOp, SchemaOp, Connector, SearchOp<F
         }
         this.configuration = (GrouperConfiguration) configuration;
         this.configuration.validate();
-        this.groupProcessor = new GroupProcessor(this.configuration);
+        this.connectionManager = new ConnectionManager(this.configuration);
+        SubjectCache subjectCache = new SubjectCache(this.configuration.getSubjectCacheSize());
+        this.stemProcessor = new StemProcessor(this.configuration, connectionManager);
+        this.groupProcessor = new GroupProcessor(this.configuration, connectionManager, subjectCache, stemProcessor);
+        this.subjectProcessor = new SubjectProcessor(this.configuration, connectionManager, subjectCache, groupProcessor);
+        this.groupSynchronizer = new GroupSynchronizer(this.configuration, groupProcessor);
+        this.groupExporter = new GroupExporter(this.configuration, groupProcessor);
     }
 
     @Override
     public void dispose() {
+        if (connectionManager != null) {
+            LOG.info("Disposing connector, {0}", connectionManager.getMetrics());
+            connectionManager.close();
+        }
         configuration = null;
+        connectionManager = null;
         groupProcessor = null;
+        subjectProcessor = null;
+        stemProcessor = null;
+        groupSynchronizer = null;
+        groupExporter = null;
+    }
+
+    /**
+     * A pooled instance is considered alive if Grouper WS responded successfully recently (within aliveCheckInterval);
+     * otherwise a lightweight stem lookup is sent.
+     */
+    @Override
+    public void checkAlive() {
+        if (connectionManager == null) {
+            throw new ConnectorException("Connector is not initialized");
+        }
+        if (connectionManager.isRecentlyAlive(configuration.getAliveCheckInterval() * 1000L)) {
+            return;
+        }
+        LOG.ok("Checking that Grouper WS is alive");
+        stemProcessor.ping();
     }
 
     @Override
     public void test() {
         LOG.info("Testing connection...");
         groupProcessor.test();
-        LOG.ok("Testing finished successfully.");
+        LOG.ok("Testing finished successfully, {0}", connectionManager.getMetrics());
     }
 
     @Override
     public Schema schema() {
         SchemaBuilder schemaBuilder = new SchemaBuilder(GrouperConnector.class);
         schemaBuilder.defineObjectClass(groupProcessor.buildSchema().build());
+        schemaBuilder.defineObjectClass(subjectProcessor.buildSchema().build());
+        schemaBuilder.defineObjectClass(stemProcessor.buildSchema().build());
+        schemaBuilder.defineOperationOption(OperationOptionInfoBuilder.buildAttributesToGet(), SearchOp.class);
+        schemaBuilder.defineOperationOption(OperationOptionInfoBuilder.buildPageSize(), SearchOp.class);
+        schemaBuilder.defineOperationOption(OperationOptionInfoBuilder.buildPagedResultsOffset(), SearchOp.class);
+        schemaBuilder.defineOperationOption(OperationOptionInfoBuilder.buildPagedResultsCookie(), SearchOp.class);
+        schemaBuilder.defineOperationOption(OperationOptionInfoBuilder.buildContainer(), SearchOp.class);
+        schemaBuilder.defineOperationOption(OperationOptionInfoBuilder.buildScope(), SearchOp.class);
+        schemaBuilder.defineOperationOption(OperationOptionInfoBuilder.build(GroupProcessor.OP_RESUME_SCAN, Boolean.class), SearchOp.class);
         return schemaBuilder.build();
     }
 
@@ -88,7 +142,9 @@ public class GrouperConnector implements TestOp, SchemaOp, Connector, SearchOp<F
         if (objClass == null) {
             LOG.error("Get operation failed: object class is not provided.");
             throw new InvalidAttributeValueException("Object class is not provided.");
-        } else if (!objClass.is(groupProcessor.getObjectClass().getObjectClassValue())) {
+        } else if (!objClass.is(groupProcessor.getObjectClass().getObjectClassValue())
+                && !objClass.is(subjectProcessor.getObjectClass().getObjectClassValue())
+                && !objClass.is(stemProcessor.getObjectClass().getObjectClassValue())) {
             throw new IllegalArgumentException("Unsupported object class: " + objClass);
         } else {
             LOG.info("ObjectClass: {0}", objClass);
@@ -111,6 +167,87 @@ public class GrouperConnector implements TestOp, SchemaOp, Connector, SearchOp<F
         LOG.info("Filter: {0}", filter);
         LOG.info("\n~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~");
 
-        groupProcessor.read(filter, handler, options);
+        if (filter == null || NameSlice.of(filter, GroupProcessor.ATTR_NAME) != null) {
+            // a full listing (or a bucket of it): its requests give way to single object lookups
+            RequestKind.bulk(() -> read(objClass, filter, handler, options));
+        } else {
+            read(objClass, filter, handler, options);
+        }
+    }
+
+    private void read(ObjectClass objClass, Filter filter, ResultsHandler handler, OperationOptions options) {
+        if (objClass.is(subjectProcessor.getObjectClass().getObjectClassValue())) {
+            subjectProcessor.read(filter, handler, options);
+        } else if (objClass.is(stemProcessor.getObjectClass().getObjectClassValue())) {
+            stemProcessor.read(filter, handler, options);
+        } else {
+            groupProcessor.read(filter, handler, options);
+        }
+    }
+
+    @Override
+    public Uid create(ObjectClass objClass, Set<Attribute> attributes, OperationOptions options) {
+        LOG.info("Create of {0}: {1}", objClass, attributes);
+        checkGroupObjectClass(objClass, "create");
+        if (attributes == null || attributes.isEmpty()) {
+            throw new InvalidAttributeValueException("Attributes are not provided.");
+        }
+        return groupProcessor.create(attributes);
+    }
+
+    @Override
+    public void delete(ObjectClass objClass, Uid uid, OperationOptions options) {
+        LOG.info("Delete of {0} {1}", objClass, uid);
+        checkGroupObjectClass(objClass, "delete");
+        if (uid == null) {
+            throw new InvalidAttributeValueException("Uid is not provided.");
+        }
+        groupProcessor.delete(uid);
+    }
+
+    @Override
+    public Set<AttributeDelta> updateDelta(ObjectClass objClass, Uid uid, Set<AttributeDelta> modifications, OperationOptions options) {
+        LOG.info("Update delta of {0} {1}: {2}", objClass, uid, modifications);
+        checkGroupObjectClass(objClass, "update");
+        if (uid == null) {
+            throw new InvalidAttributeValueException("Uid is not provided.");
+        }
+        return groupProcessor.updateDelta(uid, modifications);
+    }
+
+    @Override
+    public void sync(ObjectClass objClass, SyncToken token, SyncResultsHandler handler, OperationOptions options) {
+        LOG.info("Sync of {0} from token {1}", objClass, token);
+        checkGroupObjectClass(objClass, "sync");
+        if (handler == null) {
+            throw new InvalidAttributeValueException("Result handler is not provided.");
+        }
+        RequestKind.bulk(() -> groupSynchronizer.sync(token, handler));
+    }
+
+    @Override
+    public SyncToken getLatestSyncToken(ObjectClass objClass) {
+        checkGroupObjectClass(objClass, "sync");
+        return groupSynchronizer.getLatestSyncToken();
+    }
+
+    /**
+     * The only script supported is the export of groups (script language {@value GroupExporter#SCRIPT_LANGUAGE}),
+     * the script text being the file to export to (relative to the export directory).
+     */
+    @Override
+    public Object runScriptOnConnector(ScriptContext request, OperationOptions options) {
+        LOG.info("Run script on connector: {0}", request);
+        if (request == null || !GroupExporter.SCRIPT_LANGUAGE.equals(request.getScriptLanguage())) {
+            throw new IllegalArgumentException("Unsupported script language: " + (request != null ? request.getScriptLanguage() : null)
+                    + ", expected " + GroupExporter.SCRIPT_LANGUAGE);
+        }
+        return RequestKind.bulk(() -> groupExporter.export(request.getScriptText(), request.getScriptArguments()));
+    }
+
+    private void checkGroupObjectClass(ObjectClass objClass, String operation) {
+        if (objClass == null || !objClass.is(groupProcessor.getObjectClass().getObjectClassValue())) {
+            throw new IllegalArgumentException("Unsupported object class for " + operation + ": " + objClass);
+        }
     }
 }
@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.grouper.rest;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Counts group members and computes a digest of their IDs incrementally, while members are being paged through,
+ * without keeping the list of members in memory.
+ *
+ * The digest is the sum (modulo 2^256) of SHA-256 hashes of individual member IDs. Because addition is commutative,
+ * it does not depend on the order in which Grouper returns the members, i.e. it is the same as if it was computed over
+ * the sorted list of IDs. IDs are not deduplicated (that would need to keep them all): an ID added twice counts
+ * twice, in both the digest and the count, so callers must add each member once.
+ */
+class MembershipDigest {
+
+	private static final String ALGORITHM = "SHA-256";
+	private static final int WORDS = 4;
+
+	private final MessageDigest messageDigest;
+	private final long[] sum = new long[WORDS];
+	private int count;
+
+	MembershipDigest() {
+		try {
+			messageDigest = MessageDigest.getInstance(ALGORITHM);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(ALGORITHM + " is not available", e);
+		}
+	}
+
+	void add(String memberId) {
+		ByteBuffer hash = ByteBuffer.wrap(messageDigest.digest(memberId.getBytes(StandardCharsets.UTF_8)));
+		long carry = 0;
+		for (int i = WORDS - 1; i >= 0; i--) {
+			long word = hash.getLong(i * Long.BYTES);
+			long partial = sum[i] + word;
+			long carryOut = Long.compareUnsigned(partial, sum[i]) < 0 ? 1 : 0;
+			long total = partial + carry;
+			if (Long.compareUnsigned(total, partial) < 0) {
+				carryOut = 1;
+			}
+			sum[i] = total;
+			carry = carryOut;
+		}
+		count++;
+	}
+
+	int getCount() {
+		return count;
+	}
+
+	/**
+	 * @return the digest as 64 hexadecimal digits
+	 */
+	String getDigest() {
+		StringBuilder sb = new StringBuilder(WORDS * 16);
+		for (long word : sum) {
+			sb.append(String.format("%016x", word));
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) 2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.grouper.rest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * In-memory graph of immediate memberships: for each group its immediate subject members and its immediate member
+ * groups. Subject IDs and group UUIDs are dictionary-encoded to ints, and members are kept in int arrays.
+ *
+ * Effective members of a group (subjects that are members of the group itself or of any group nested in it) are
+ * computed as a transitive closure over the graph. The result is memoized for every group visited, so a group nested
+ * in many others is expanded only once. Not thread-safe.
+ */
+class MembershipGraph {
+
+	private static final int[] EMPTY = new int[0];
+
+	private final Map<String, Integer> subjectIndex = new HashMap<>();
+	private final List<String> subjects = new ArrayList<>();
+	private final Map<String, Integer> groupIndex = new HashMap<>();
+	private final List<int[]> subjectMembers = new ArrayList<>();
+	private final List<int[]> groupMembers = new ArrayList<>();
+	private final List<int[]> effectiveMembers = new ArrayList<>();
+
+	/**
+	 * Records immediate members of a group. Member groups that are not (yet) in the graph count as empty.
+	 */
+	void addGroup(String groupUuid, Collection<String> subjectIds, Collection<String> memberGroupUuids) {
+		final int group = getGroup(groupUuid);
+		final int[] encodedSubjects = new int[subjectIds.size()];
+		int i = 0;
+		for (String subjectId : subjectIds) {
+			encodedSubjects[i++] = subjectIndex.computeIfAbsent(subjectId, id -> {
+				subjects.add(id);
+				return subjects.size() - 1;
+			});
+		}
+		final int[] encodedGroups = new int[memberGroupUuids.size()];
+		i = 0;
+		for (String memberGroupUuid : memberGroupUuids) {
+			encodedGroups[i++] = getGroup(memberGroupUuid);
+		}
+		subjectMembers.set(group, sortedDistinct(encodedSubjects, encodedSubjects.length));
+		groupMembers.set(group, encodedGroups);
+	}
+
+	int getGroupCount() {
+		return groupIndex.size();
+	}
+
+	int getSubjectCount() {
+		return subjects.size();
+	}
+
+	/**
+	 * @return IDs of effective (direct or nested) subject members of the group, sorted by their dictionary codes
+	 */
+	List<String> getEffectiveMembers(String groupUuid) {
+		final Integer group = groupIndex.get(groupUuid);
+		if (group == null) {
+			return List.of();
+		}
+		final int[] members = computeEffective(group, new boolean[groupIndex.size()]);
+		final List<String> ids = new ArrayList<>(members.length);
+		for (int member : members) {
+			ids.add(subjects.get(member));
+		}
+		return ids;
+	}
+
+	private int[] computeEffective(int group, boolean[] inProgress) {
+		final int[] memoized = effectiveMembers.get(group);
+		if (memoized != null) {
+			return memoized;
+		}
+		final int[] direct = subjectMembers.get(group) != null ? subjectMembers.get(group) : EMPTY;
+		final int[] nested = groupMembers.get(group) != null ? groupMembers.get(group) : EMPTY;
+		if (nested.length == 0) {
+			effectiveMembers.set(group, direct);
+			return direct;
+		}
+
+		inProgress[group] = true;
+		final List<int[]> parts = new ArrayList<>(nested.length + 1);
+		parts.add(direct);
+		int total = direct.length;
+		boolean complete = true;
+		for (int memberGroup : nested) {
+			if (inProgress[memberGroup]) {
+				// a cycle; members of the groups on the cycle are collected by the group that entered it first
+				complete = false;
+				continue;
+			}
+			final int[] part = computeEffective(memberGroup, inProgress);
+			if (effectiveMembers.get(memberGroup) == null) {
+				complete = false;
+			}
+			parts.add(part);
+			total += part.length;
+		}
+		inProgress[group] = false;
+
+		final int[] all = new int[total];
+		int position = 0;
+		for (int[] part : parts) {
+			System.arraycopy(part, 0, all, position, part.length);
+			position += part.length;
+		}
+		final int[] result = sortedDistinct(all, total);
+		if (complete) {
+			effectiveMembers.set(group, result);
+		}
+		return result;
+	}
+
+	private int getGroup(String groupUuid) {
+		return groupIndex.computeIfAbsent(groupUuid, uuid -> {
+			subjectMembers.add(null);
+			groupMembers.add(null);
+			effectiveMembers.add(null);
+			return groupIndex.size();
+		});
+	}
+
+	private static int[] sortedDistinct(int[] values, int length) {
+		if (length == 0) {
+			return EMPTY;
+		}
+		Arrays.sort(values, 0, length);
+		int distinct = 1;
+		for (int i = 1; i < length; i++) {
+			if (values[i] != values[distinct - 1]) {
+				values[distinct++] = values[i];
+			}
+		}
+		return distinct == values.length ? values : Arrays.copyOf(values, distinct);
+	}
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.grouper.rest;
+
+import org.identityconnectors.framework.common.objects.Attribute;
+import org.identityconnectors.framework.common.objects.Name;
+import org.identityconnectors.framework.common.objects.filter.AndFilter;
+import org.identityconnectors.framework.common.objects.filter.AttributeFilter;
+import org.identityconnectors.framework.common.objects.filter.Filter;
+import org.identityconnectors.framework.common.objects.filter.GreaterThanFilter;
+import org.identityconnectors.framework.common.objects.filter.GreaterThanOrEqualFilter;
+import org.identityconnectors.framework.common.objects.filter.LessThanFilter;
+import org.identityconnectors.framework.common.objects.filter.LessThanOrEqualFilter;
+import org.identityconnectors.framework.common.objects.filter.StartsWithFilter;
+
+import java.util.List;
+
+/**
+ * A slice of objects by name: names with a prefix and/or in an interval, as used by midPoint to split a search
+ * into buckets for multi-node tasks. Built from a StartsWith filter, greater/less than filters on the name, or an And
+ * of these. Names are compared as strings.
+ */
+class NameSlice {
+
+	private String prefix;
+	private String lower;
+	private boolean lowerInclusive;
+	private String upper;
+	private boolean upperInclusive;
+
+	private NameSlice() {
+	}
+
+	/**
+	 * @param nativeName native name of the name attribute
+	 * @return the slice, or null if the filter is not a name slice filter
+	 */
+	static NameSlice of(Filter filter, String nativeName) {
+		final NameSlice slice = new NameSlice();
+		return slice.add(filter, nativeName) ? slice : null;
+	}
+
+	private boolean add(Filter filter, String nativeName) {
+		if (filter instanceof AndFilter) {
+			for (Filter component : ((AndFilter) filter).getFilters()) {
+				if (!add(component, nativeName)) {
+					return false;
+				}
+			}
+			return true;
+		}
+		// other filters (e.g. Equals, possibly multi-valued) are not slices, whatever their values
+		if (!(filter instanceof StartsWithFilter || filter instanceof GreaterThanFilter || filter instanceof GreaterThanOrEqualFilter
+				|| filter instanceof LessThanFilter || filter instanceof LessThanOrEqualFilter)) {
+			return false;
+		}
+		final Attribute attribute = ((AttributeFilter) filter).getAttribute();
+		if (attribute == null || !attribute.is(Name.NAME) && !attribute.is(nativeName)) {
+			return false;
+		}
+		final List<Object> values = attribute.getValue();
+		if (values == null || values.size() != 1 || !(values.get(0) instanceof String)) {
+			throw new IllegalArgumentException("Expected exactly one string value of " + attribute.getName() + " in " + filter);
+		}
+		final String value = (String) values.get(0);
+
+		if (filter instanceof StartsWithFilter) {
+			if (prefix == null || value.startsWith(prefix)) {
+				prefix = value;
+			} else if (!prefix.startsWith(value)) {
+				// disjoint prefixes: nothing can match
+				upper = "";
+				upperInclusive = false;
+			}
+		} else if (filter instanceof GreaterThanFilter || filter instanceof GreaterThanOrEqualFilter) {
+			final boolean inclusive = filter instanceof GreaterThanOrEqualFilter;
+			if (lower == null || value.compareTo(lower) > 0 || value.equals(lower) && !inclusive) {
+				lower = value;
+				lowerInclusive = inclusive;
+			}
+		} else if (filter instanceof LessThanFilter || filter instanceof LessThanOrEqualFilter) {
+			final boolean inclusive = filter instanceof LessThanOrEqualFilter;
+			if (upper == null || value.compareTo(upper) < 0 || value.equals(upper) && !inclusive) {
+				upper = value;
+				upperInclusive = inclusive;
+			}
+		}
+		return true;
+	}
+
+	boolean contains(String name) {
+		if (name == null) {
+			return false;
+		}
+		if (prefix != null && !name.startsWith(prefix)) {
+			return false;
+		}
+		if (lower != null) {
+			final int comparison = name.compareTo(lower);
+			if (comparison < 0 || comparison == 0 && !lowerInclusive) {
+				return false;
+			}
+		}
+		if (upper != null) {
+			final int comparison = name.compareTo(upper);
+			if (comparison > 0 || comparison == 0 && !upperInclusive) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns a prefix all names in the slice have: the required prefix, or the common prefix of the interval bounds
+	 * (whichever is longer).
+	 */
+	String getCommonPrefix() {
+		String common = "";
+		if (lower != null && upper != null) {
+			int length = 0;
+			while (length < lower.length() && length < upper.length() && lower.charAt(length) == upper.charAt(length)) {
+				length++;
+			}
+			common = lower.substring(0, length);
+		}
+		if (prefix != null && prefix.length() >= common.length()) {
+			return prefix;
+		}
+		return common;
+	}
+
+	@Override
+	public String toString() {
+		return "NameSlice{" +
+				"prefix='" + prefix + '\'' +
+				", lower='" + lower + '\'' + (lowerInclusive ? " (inclusive)" : "") +
+				", upper='" + upper + '\'' + (upperInclusive ? " (inclusive)" : "") +
+				'}';
+	}
+}
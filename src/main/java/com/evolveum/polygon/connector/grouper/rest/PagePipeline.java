@@ -0,0 +1,287 @@
+/*
+ * Copyright (c) 2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.grouper.rest;
+
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.Predicate;
+
+/**
+ * A paged listing run as a pipeline of stages connected by bounded queues:
+ * <ul>
+ *   <li>fetch: requests the pages one after another, with their responses parsed (worker thread),</li>
+ *   <li>build: turns each page into what is delivered, e.g. connector objects (worker thread),</li>
+ *   <li>deliver: passes the built pages to the consumer (calling thread).</li>
+ * </ul>
+ * So the next page is being fetched and built while the consumer (ultimately the ResultsHandler) processes the
+ * current one. Each queue holds at most {@link #CAPACITY} pages: when the consumer is slow, the other stages wait
+ * instead of buffering the rest of the listing. When the consumer stops or any stage fails (with any throwable,
+ * which is then rethrown to the consumer), the remaining stages are cancelled.
+ *
+ * Without an executor, the stages run one after another on the calling thread (used for unpaged requests).
+ *
+ * @param <P> fetched page
+ * @param <T> built page
+ */
+class PagePipeline<P, T> {
+
+	private static final int CAPACITY = 2;
+
+	private static final Object END = new Object();
+
+	private final ExecutorService executor;
+	private final Fetcher<P> fetcher;
+	private final Builder<P, T> builder;
+
+	/**
+	 * @param executor executor for the fetch and build stages (two threads per pipeline), or null to run them on
+	 *                 the calling thread
+	 */
+	PagePipeline(ExecutorService executor, Fetcher<P> fetcher, Builder<P, T> builder) {
+		this.executor = executor;
+		this.fetcher = fetcher;
+		this.builder = builder;
+	}
+
+	/**
+	 * Wraps a fetcher so that, once the first page is fetched, the following pages are fetched concurrently on
+	 * the executor, up to the given number of them at a time. Pages are still returned in order. As the number of
+	 * pages is not known in advance, up to window - 1 pages beyond the last one are requested in vain.
+	 *
+	 * @param fetcher fetcher that can be called from more threads at once
+	 * @param isLast tells if a page is the last one, so no more pages are to be fetched
+	 */
+	static <P> Fetcher<P> concurrent(Fetcher<P> fetcher, ExecutorService executor, int window, Predicate<P> isLast) {
+		return new ConcurrentFetcher<>(fetcher, executor, window, isLast);
+	}
+
+	/**
+	 * Fetches the pages starting with the given one until the fetcher finds no more of them, or the consumer stops.
+	 *
+	 * @return false if the consumer stopped the listing
+	 */
+	boolean run(int firstPage, Consumer<T> consumer) {
+		if (executor == null) {
+			try {
+				for (int pageNumber = firstPage;; pageNumber++) {
+					final P page = fetcher.fetch(pageNumber);
+					if (page == null) {
+						return true;
+					}
+					if (!consumer.accept(builder.build(page))) {
+						return false;
+					}
+				}
+			} finally {
+				fetcher.close();
+			}
+		}
+
+		final BlockingQueue<Object> fetched = new ArrayBlockingQueue<>(CAPACITY);
+		final BlockingQueue<Object> built = new ArrayBlockingQueue<>(CAPACITY);
+		final Future<?> fetching = executor.submit(RequestKind.propagate(() -> fetch(firstPage, fetched)));
+		final Future<?> building = executor.submit(RequestKind.propagate(() -> build(fetched, built)));
+		try {
+			while (true) {
+				final Object item = built.take();
+				if (item == END) {
+					return true;
+				} else if (item instanceof Failure) {
+					throw ((Failure) item).rethrow();
+				}
+				@SuppressWarnings("unchecked")
+				final T page = (T) item;
+				if (!consumer.accept(page)) {
+					return false;
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ConnectorException("Interrupted while waiting for the next page", e);
+		} finally {
+			fetching.cancel(true);
+			building.cancel(true);
+		}
+	}
+
+	private void fetch(int firstPage, BlockingQueue<Object> fetched) {
+		try {
+			for (int pageNumber = firstPage;; pageNumber++) {
+				final P page;
+				try {
+					page = fetcher.fetch(pageNumber);
+				} catch (Throwable t) {
+					// anything not reported to the consumer would leave it waiting forever
+					fetched.put(new Failure(t));
+					return;
+				}
+				if (page == null) {
+					fetched.put(END);
+					return;
+				}
+				fetched.put(page);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			fetcher.close();
+		}
+	}
+
+	private void build(BlockingQueue<Object> fetched, BlockingQueue<Object> built) {
+		try {
+			while (true) {
+				final Object item = fetched.take();
+				if (item == END || item instanceof Failure) {
+					built.put(item);
+					return;
+				}
+				try {
+					@SuppressWarnings("unchecked")
+					final P page = (P) item;
+					built.put(builder.build(page));
+				} catch (Throwable t) {
+					built.put(new Failure(t));
+					return;
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@FunctionalInterface
+	interface Fetcher<P> {
+
+		/**
+		 * @return the page, or null if there are no more pages
+		 */
+		P fetch(int pageNumber);
+
+		/**
+		 * Called when no more pages are needed.
+		 */
+		default void close() {
+		}
+	}
+
+	@FunctionalInterface
+	interface Builder<P, T> {
+
+		T build(P page);
+	}
+
+	@FunctionalInterface
+	interface Consumer<T> {
+
+		/**
+		 * @return false to stop the listing
+		 */
+		boolean accept(T page);
+	}
+
+	/**
+	 * Fetcher requesting pages ahead concurrently; called from one thread (the fetch stage) at a time.
+	 */
+	private static class ConcurrentFetcher<P> implements Fetcher<P> {
+
+		private final Fetcher<P> fetcher;
+		private final ExecutorService executor;
+		private final int window;
+		private final Predicate<P> isLast;
+		private final Deque<Future<P>> ahead = new ArrayDeque<>();
+		private int nextPage = -1;
+		private boolean finished;
+
+		private ConcurrentFetcher(Fetcher<P> fetcher, ExecutorService executor, int window, Predicate<P> isLast) {
+			this.fetcher = fetcher;
+			this.executor = executor;
+			this.window = Math.max(1, window);
+			this.isLast = isLast;
+		}
+
+		@Override
+		public P fetch(int pageNumber) {
+			if (finished) {
+				return null;
+			}
+			final P page;
+			if (nextPage < 0) {
+				// the first page tells whether there are more pages at all
+				nextPage = pageNumber + 1;
+				page = fetcher.fetch(pageNumber);
+			} else {
+				while (nextPage < pageNumber + window) {
+					final int aheadPage = nextPage++;
+					ahead.add(executor.submit(RequestKind.propagate(() -> fetcher.fetch(aheadPage))));
+				}
+				page = await(ahead.poll());
+			}
+			if (page == null || isLast.test(page)) {
+				close();
+			}
+			return page;
+		}
+
+		private P await(Future<P> future) {
+			try {
+				return future.get();
+			} catch (InterruptedException e) {
+				close();
+				Thread.currentThread().interrupt();
+				throw new ConnectorException("Interrupted while waiting for a page", e);
+			} catch (ExecutionException e) {
+				close();
+				throw new Failure(e.getCause()).rethrow();
+			}
+		}
+
+		@Override
+		public void close() {
+			finished = true;
+			ahead.forEach(future -> future.cancel(true));
+			ahead.clear();
+		}
+	}
+
+	private static class Failure {
+
+		private final Throwable error;
+
+		private Failure(Throwable error) {
+			this.error = error;
+		}
+
+		/**
+		 * Throws unchecked errors as they are; checked exceptions (not thrown by the stages normally) are wrapped.
+		 */
+		private RuntimeException rethrow() {
+			if (error instanceof RuntimeException) {
+				throw (RuntimeException) error;
+			} else if (error instanceof Error) {
+				throw (Error) error;
+			}
+			throw new ConnectorException(error);
+		}
+	}
+}
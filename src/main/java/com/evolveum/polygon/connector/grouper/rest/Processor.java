@@ -16,20 +16,16 @@
 package com.evolveum.polygon.connector.grouper.rest;
 
 import org.apache.commons.codec.binary.Base64;
+import org.apache.http.Header;
 import org.apache.http.client.methods.*;
 import org.apache.http.client.utils.URIBuilder;
-import org.apache.http.conn.ssl.NoopHostnameVerifier;
-import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
-import org.apache.http.conn.ssl.TrustStrategy;
 import org.apache.http.entity.ByteArrayEntity;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClientBuilder;
-import org.apache.http.ssl.SSLContextBuilder;
 import org.apache.http.util.EntityUtils;
 import org.identityconnectors.common.CollectionUtil;
 import org.identityconnectors.common.StringUtil;
 import org.identityconnectors.common.logging.Log;
 import org.identityconnectors.framework.common.exceptions.*;
+import org.identityconnectors.framework.common.objects.OperationOptions;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -38,7 +34,10 @@ import java.net.URISyntaxException;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
@@ -50,10 +49,17 @@ public class Processor {
 
 	static final Log LOG = Log.getLog(GrouperConnector.class);
 
+	private static final String J_ID = "id";
+	private static final String J_SUBJECT_SOURCE_ID = "sourceId";
+	private static final String J_SUBJECT_NAME = "name";
+	private static final String J_ATTRIBUTE_VALUES = "attributeValues";
+
 	GrouperConfiguration configuration;
+	ConnectionManager connectionManager;
 
-	Processor(GrouperConfiguration configuration) {
+	Processor(GrouperConfiguration configuration, ConnectionManager connectionManager) {
 		this.configuration = configuration;
+		this.connectionManager = connectionManager;
 	}
 
 	CallResponse callRequest(HttpEntityEnclosingRequestBase request, JSONObject payload, ErrorHandler errorHandler) {
@@ -65,17 +71,23 @@ public class Processor {
 			request.addHeader("Authorization", "Basic " + getAuthEncoded());
 		}
 
-		request.setEntity(new ByteArrayEntity(payload.toString().getBytes(StandardCharsets.UTF_8)));
+		final String body = payload.toString();
+		request.setEntity(new ByteArrayEntity(body.getBytes(StandardCharsets.UTF_8)));
 
 		if (Boolean.TRUE.equals(configuration.getLogRequestResponses())) {
-			LOG.info("Payload: {0}", payload);      // we don't log the whole request, as it contains the (encoded) password
+			LOG.info("Payload: {0}", body);      // we don't log the whole request, as it contains the (encoded) password
 		}
-		try (CloseableHttpResponse response = execute(request)) {
-			if (Boolean.TRUE.equals(configuration.getLogRequestResponses())) {
-				LOG.info("Response: {0}", response);
+		try {
+			final RequestKind kind = RequestKind.of(payload);
+			final Exchange exchange;
+			if (isReadOnly(payload)) {
+				// the path only, as the request may be sent to any of the nodes
+				final String key = getEndpointKey() + " " + request.getURI().getRawPath() + " " + canonicalize(payload);
+				exchange = SingleFlight.execute(key, () -> exchange(request, kind, true), () -> connectionManager.getMetrics().recordSharedRequest());
+			} else {
+				exchange = exchange(request, kind, false);
 			}
-
-			return processResponse(response, errorHandler);
+			return processResponse(exchange, errorHandler);
 		} catch (Exception e) {
 			String msg = "Request failed: problem occurred during execute request with uri: " + request.getURI() + ": \n\t" + e.getLocalizedMessage();
 			LOG.error("{0}", msg);
@@ -83,6 +95,145 @@ public class Processor {
 		}
 	}
 
+	/**
+	 * Sends the request to a Grouper WS node chosen by the {@link EndpointBalancer} and reads the whole response.
+	 * If the node fails (see {@link #isOverloaded(int)}), a retriable request is sent to the next node not tried yet.
+	 * Each attempt sends a copy of the request routed to its node; the request itself is left as it is.
+	 *
+	 * @param retriable true if the request only reads data, so it can be safely sent again
+	 */
+	private Exchange exchange(HttpRequestBase request, RequestKind kind, boolean retriable) {
+		final EndpointBalancer balancer = connectionManager.getBalancer();
+		final List<EndpointBalancer.Node> tried = new ArrayList<>();
+		while (true) {
+			final EndpointBalancer.Node node = balancer.acquire(tried);
+			tried.add(node);
+			final long start = System.nanoTime();
+			Exchange exchange = null;
+			ConnectorIOException error = null;
+			try {
+				exchange = send(RequestBuilder.copy(request).setUri(node.route(request.getURI())).build(), kind);
+			} catch (ConnectorIOException e) {
+				error = e;
+			} catch (URISyntaxException e) {
+				throw new IllegalStateException(e.getMessage(), e);
+			} finally {
+				balancer.release(node, start, error != null || exchange != null && isOverloaded(exchange.statusCode));
+			}
+			final boolean failed = error != null || isOverloaded(exchange.statusCode);
+			if (!failed || !retriable || tried.size() >= balancer.size()) {
+				if (error != null) {
+					throw error;
+				}
+				return exchange;
+			}
+			LOG.warn("Request to Grouper WS node {0} failed ({1}), retrying on another node", node,
+					error != null ? error.getMessage() : "HTTP " + exchange.statusCode);
+			connectionManager.getMetrics().recordFailover();
+		}
+	}
+
+	/**
+	 * Tells that Grouper WS (or a proxy in front of it) is unavailable or overloaded, rather than that the request
+	 * failed: no response at all, or HTTP 429, 502, 503 or 504. Grouper reports its own errors (e.g. a group not found)
+	 * as 500, so that is not one. Used both to fail over to another node and to lower the concurrency limit.
+	 *
+	 * @param statusCode HTTP status code of the response, or a negative value if there was none
+	 */
+	static boolean isOverloaded(int statusCode) {
+		return statusCode < 0 || statusCode == 429 || statusCode == 502 || statusCode == 503 || statusCode == 504;
+	}
+
+	/**
+	 * Sends the request and reads the whole response.
+	 */
+	private Exchange send(HttpUriRequest request, RequestKind kind) {
+		final RequestGovernor governor = connectionManager.getGovernor();
+		final long waitStart = System.nanoTime();
+		final long start = governor.acquire(kind);
+		connectionManager.getMetrics().recordThrottle(start - waitStart);
+		int statusCode = -1;
+		try (CloseableHttpResponse response = execute(request)) {
+			if (Boolean.TRUE.equals(configuration.getLogRequestResponses())) {
+				LOG.info("Response: {0}", response);
+			}
+			statusCode = response.getStatusLine().getStatusCode();
+			LOG.info("Status code: {0}", statusCode);
+			if (statusCode >= 200 && statusCode <= 299) {
+				connectionManager.recordSuccess();
+			}
+			// with more nodes, an unavailable node is rather avoided by the balancer than paused for
+			if (statusCode == 429 || statusCode == 503 && connectionManager.getBalancer().size() == 1) {
+				governor.pause(getRetryAfter(response));
+			}
+
+			String result = null;
+			try {
+				result = EntityUtils.toString(response.getEntity());
+				LOG.info("Response body: {0}", result);
+			} catch (IOException e) {
+				if (statusCode >= 200 && statusCode <= 299) {
+					throw e;
+				} else {
+					LOG.warn("cannot read response body: {0}", e, e);
+				}
+			}
+			return new Exchange(statusCode, response.getStatusLine().getReasonPhrase(), result);
+		} catch (IOException e) {
+			throw new ConnectorIOException("Couldn't read response: " + e.getLocalizedMessage(), e);
+		} finally {
+			governor.release(start, statusCode);
+		}
+	}
+
+	/**
+	 * Requests that only read data (find and get requests) can be shared by identical concurrent calls.
+	 */
+	private boolean isReadOnly(JSONObject payload) {
+		for (String root : payload.keySet()) {
+			if (!root.startsWith("WsRestFind") && !root.startsWith("WsRestGet")) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Serializes JSON with object keys sorted, so equal requests produce equal strings.
+	 */
+	static String canonicalize(Object value) {
+		if (value instanceof JSONObject) {
+			final JSONObject object = (JSONObject) value;
+			final List<String> keys = new ArrayList<>(object.keySet());
+			Collections.sort(keys);
+			return keys.stream()
+					.map(key -> JSONObject.quote(key) + ":" + canonicalize(object.get(key)))
+					.collect(Collectors.joining(",", "{", "}"));
+		} else if (value instanceof JSONArray) {
+			final JSONArray array = (JSONArray) value;
+			return IntStream.range(0, array.length())
+					.mapToObj(i -> canonicalize(array.get(i)))
+					.collect(Collectors.joining(",", "[", "]"));
+		} else {
+			return JSONObject.valueToString(value);
+		}
+	}
+
+	/**
+	 * @return delay (in seconds) requested by the Retry-After header, or 0 if there is none (or it is an HTTP date)
+	 */
+	private long getRetryAfter(CloseableHttpResponse response) {
+		Header header = response.getFirstHeader("Retry-After");
+		if (header == null) {
+			return 0;
+		}
+		try {
+			return Long.parseLong(header.getValue().trim());
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
 	private String getAuthEncoded() {
 		String username = configuration.getUsername();
 		String password = configuration.getPasswordPlain();
@@ -101,16 +252,7 @@ public class Processor {
 
 	private CloseableHttpResponse execute(HttpUriRequest request) {
 		try {
-			HttpClientBuilder clientBuilder = HttpClientBuilder.create();
-			if (Boolean.TRUE.equals(configuration.getIgnoreSslValidation())) {
-				SSLContextBuilder sslCtxBuilder = new SSLContextBuilder();
-				sslCtxBuilder.loadTrustMaterial(null, (TrustStrategy) (chain, authType) -> true);
-				SSLConnectionSocketFactory factory = new SSLConnectionSocketFactory(sslCtxBuilder.build(), NoopHostnameVerifier.INSTANCE);
-				clientBuilder.setSSLSocketFactory(factory);
-				LOG.warn("Ignoring SSL validation: avoid this in production");
-			}
-			CloseableHttpClient client = clientBuilder.build();
-			CloseableHttpResponse response = client.execute(request);
+			CloseableHttpResponse response = connectionManager.execute(request);
 			LOG.ok("response code: {0}", response.getStatusLine().getStatusCode());
 			// DO NOT CLOSE response HERE !!!
 			return response;
@@ -128,36 +270,22 @@ public class Processor {
 	 *
 	 * @return true if the processing can continue
 	 */
-	private CallResponse processResponse(CloseableHttpResponse response, ErrorHandler errorHandler) throws IOException {
-		int statusCode = response.getStatusLine().getStatusCode();
-		LOG.info("Status code: {0}", statusCode);
-
-		String result = null;
-		try {
-			result = EntityUtils.toString(response.getEntity());
-			LOG.info("Response body: {0}", result);
-		} catch (IOException e) {
-			if (statusCode >= 200 && statusCode <= 299) {
-				throw e;
-			} else {
-				LOG.warn("cannot read response body: {0}", e, e);
-			}
-		}
+	private CallResponse processResponse(Exchange exchange, ErrorHandler errorHandler) {
+		int statusCode = exchange.statusCode;
+		String result = exchange.body;
 
 		if (statusCode >= 200 && statusCode <= 299) {
-			return CallResponse.ok(result);
+			return CallResponse.ok(exchange.getJson());
 		}
 
 		if (statusCode == 401 || statusCode == 403) {
 			// sometimes there are binary data in responseBody
-			closeResponse(response);
-			String msg = "HTTP error " + statusCode + " " + response.getStatusLine().getReasonPhrase() + " : Authentication failure.";
+			String msg = "HTTP error " + statusCode + " " + exchange.reasonPhrase + " : Authentication failure.";
 			LOG.error("{0}", msg);
 			throw new InvalidCredentialException(msg);
 		}
 
-		String msg = "HTTP error " + statusCode + " " + response.getStatusLine().getReasonPhrase() + " : " + result;
-		closeResponse(response);
+		String msg = "HTTP error " + statusCode + " " + exchange.reasonPhrase + " : " + result;
 		try {
 			if (statusCode == 400 || statusCode == 405 || statusCode == 406) {
 				throw new ConnectorIOException(msg);
@@ -192,12 +320,27 @@ public class Processor {
 		}
 	}
 
-	private void closeResponse(CloseableHttpResponse response) {
-		// to avoid pool waiting
-		try {
-			response.close();
-		} catch (IOException e) {
-			LOG.warn("Failed to close response: {0}", response, e);
+	/**
+	 * A response read completely, so it can be shared by identical concurrent calls. The body of a successful
+	 * response is parsed only once; the parsed object must not be modified.
+	 */
+	private static class Exchange {
+		private final int statusCode;
+		private final String reasonPhrase;
+		private final String body;
+		private JSONObject json;
+
+		private Exchange(int statusCode, String reasonPhrase, String body) {
+			this.statusCode = statusCode;
+			this.reasonPhrase = reasonPhrase;
+			this.body = body;
+		}
+
+		private synchronized JSONObject getJson() {
+			if (json == null) {
+				json = new JSONObject(body);
+			}
+			return json;
 		}
 	}
 
@@ -233,6 +376,10 @@ public class Processor {
 			return new CallResponse(true, new JSONObject(text));
 		}
 
+		static CallResponse ok(JSONObject response) {
+			return new CallResponse(true, response);
+		}
+
 		static CallResponse error(String text) {
 			return new CallResponse(false, new JSONObject(text));
 		}
@@ -381,6 +528,57 @@ public class Processor {
 		return new ConnectorException(msg, e);
 	}
 
+	/**
+	 * Identifies the Grouper endpoint (and account) this processor talks to; used to share state among connector
+	 * instances configured the same way.
+	 */
+	String getEndpointKey() {
+		return configuration.getBaseUrl() + configuration.getUriBasePath() + "|" + configuration.getUsername();
+	}
+
+	/**
+	 * Returns 1-based offset of the requested page, taken from the paged results cookie (if present) or the offset.
+	 */
+	int getPagedResultsOffset(final OperationOptions options) {
+		final String cookie = options.getPagedResultsCookie();
+		if (StringUtil.isNotBlank(cookie)) {
+			try {
+				return Math.max(1, Integer.parseInt(cookie));
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Invalid paged results cookie: " + cookie);
+			}
+		}
+		final Integer offset = options.getPagedResultsOffset();
+		return offset != null && offset > 0 ? offset : 1;
+	}
+
+	/**
+	 * Subject attributes (as configured) that are requested from Grouper by name.
+	 */
+	List<String> getSubjectAttributeNames() {
+		String[] names = configuration.getSubjectAttributes();
+		return names != null ? Arrays.asList(names) : List.of();
+	}
+
+	/**
+	 * Converts a WsSubject into a subject cache entry. Attribute values are matched with attribute names
+	 * provided at the level of the whole response.
+	 */
+	SubjectCache.Entry toSubjectEntry(final JSONObject subject, final JSONArray attributeNames) {
+		final Map<String, String> attributes = new HashMap<>();
+		final JSONArray attributeValues = subject.optJSONArray(J_ATTRIBUTE_VALUES);
+		if (attributeNames != null && attributeValues != null) {
+			for (int i = 0; i < attributeNames.length() && i < attributeValues.length(); i++) {
+				final Object value = attributeValues.opt(i);
+				if (value instanceof String) {
+					attributes.put(attributeNames.getString(i), (String) value);
+				}
+			}
+		}
+		return new SubjectCache.Entry(getStringOrNull(subject, J_ID), getStringOrNull(subject, J_SUBJECT_SOURCE_ID),
+				getStringOrNull(subject, J_SUBJECT_NAME), attributes);
+	}
+
 	String getStringOrNull(final JSONObject object, final String item) {
 		if (object.has(item)) {
 			return (String) object.get(item); //TODO any safety or other processing details needed here?!?
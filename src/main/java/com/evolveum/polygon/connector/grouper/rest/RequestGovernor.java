@@ -0,0 +1,233 @@
+/*
+ * Copyright (c) 2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.grouper.rest;
+
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Protects a Grouper WS endpoint from being overloaded by requests of all connector instances in this JVM.
+ *
+ * Two independent limits are applied before a request is sent:
+ * <ul>
+ *   <li>a token bucket limiting the request rate (with bursts of up to one second worth of requests),</li>
+ *   <li>an adaptive limit of requests in flight, adjusted by AIMD: it grows by one per window of successful
+ *   requests and is halved when Grouper signals overload (see {@link Processor#isOverloaded(int)}) or when smoothed
+ *   latency is well above its long-term average. At most one decrease happens per smoothed latency interval, so a
+ *   burst of failures of requests sent at the same time counts once.</li>
+ * </ul>
+ * A Retry-After returned with 429 or 503 holds all requests back for the given time.
+ *
+ * Waiting requests are dispatched by priority of their {@link RequestKind}: a request is not sent while one of a more
+ * important kind waits. In addition, a part of the concurrency limit is reserved for single object lookups, so that
+ * e.g. a group read from the GUI is sent at once even while a reconciliation keeps all the other slots busy.
+ */
+class RequestGovernor {
+
+	private static final Map<String, RequestGovernor> GOVERNORS = new ConcurrentHashMap<>();
+
+	/**
+	 * Shared by all endpoints without limits, so it must not synchronize their requests.
+	 */
+	private static final RequestGovernor UNLIMITED = new RequestGovernor(0, 0, 0) {
+
+		@Override
+		long acquire(RequestKind kind) {
+			return System.nanoTime();
+		}
+
+		@Override
+		void release(long start, int statusCode) {
+		}
+
+		@Override
+		void pause(long seconds) {
+		}
+	};
+
+	private static final double DECREASE_FACTOR = 0.5;
+	private static final double LATENCY_TOLERANCE = 2.0;
+	private static final double LATENCY_SMOOTHING = 0.2;
+	private static final double BASELINE_SMOOTHING = 0.01;
+	private static final long MAX_RETRY_AFTER_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+	private final int maxRequestsPerSecond;
+	private final int maxConcurrency;
+	private final int reservedForLookups;
+
+	// token bucket
+	private double tokens;
+	private long refilledAt = System.nanoTime();
+
+	// adaptive concurrency
+	private double limit;
+	private int inFlight;
+	private double smoothedLatency;
+	private double baselineLatency;
+	private long lastDecreaseAt;
+	private long pausedUntil;
+
+	// priority scheduling
+	private final int[] waiting = new int[RequestKind.values().length];
+
+	private RequestGovernor(int maxRequestsPerSecond, int maxConcurrency, int reservedForLookups) {
+		this.maxRequestsPerSecond = maxRequestsPerSecond;
+		this.maxConcurrency = maxConcurrency;
+		this.reservedForLookups = reservedForLookups;
+		this.tokens = maxRequestsPerSecond;
+		this.limit = maxConcurrency;
+		this.lastDecreaseAt = refilledAt;
+		this.pausedUntil = refilledAt;
+	}
+
+	/**
+	 * Returns the governor shared by all connector instances sending requests to the given endpoint with the same
+	 * limits. Zero (or negative) values turn the respective limit off.
+	 *
+	 * @param reservedForLookups part of the concurrency limit that bulk requests cannot use
+	 */
+	static RequestGovernor get(String endpoint, int maxRequestsPerSecond, int maxConcurrency, int reservedForLookups) {
+		if (maxRequestsPerSecond <= 0 && maxConcurrency <= 0) {
+			return UNLIMITED;
+		}
+		return GOVERNORS.computeIfAbsent(endpoint + "|" + maxRequestsPerSecond + "|" + maxConcurrency + "|" + reservedForLookups,
+				k -> new RequestGovernor(maxRequestsPerSecond, maxConcurrency, reservedForLookups));
+	}
+
+	/**
+	 * Waits until a request of the given kind may be sent.
+	 *
+	 * @return start time of the request, to be passed to {@link #release(long, int)}
+	 */
+	synchronized long acquire(RequestKind kind) {
+		waiting[kind.ordinal()]++;
+		try {
+			for (;;) {
+				final long now = System.nanoTime();
+				long waitNanos = pausedUntil - now;
+				if (waitNanos <= 0 && (isPrecededByWaiting(kind) || maxConcurrency > 0 && inFlight >= getLimit(kind))) {
+					waitNanos = Long.MAX_VALUE;
+				}
+				if (waitNanos <= 0 && maxRequestsPerSecond > 0) {
+					refill(now);
+					if (tokens < 1) {
+						waitNanos = (long) ((1 - tokens) * TimeUnit.SECONDS.toNanos(1) / maxRequestsPerSecond) + 1;
+					}
+				}
+				if (waitNanos <= 0) {
+					if (maxRequestsPerSecond > 0) {
+						tokens--;
+					}
+					inFlight++;
+					waiting[kind.ordinal()]--;
+					// requests of less important kinds may go now
+					notifyAll();
+					return now;
+				}
+				if (waitNanos == Long.MAX_VALUE) {
+					wait();
+				} else {
+					TimeUnit.NANOSECONDS.timedWait(this, waitNanos);
+				}
+			}
+		} catch (InterruptedException e) {
+			waiting[kind.ordinal()]--;
+			notifyAll();
+			Thread.currentThread().interrupt();
+			throw new ConnectorException("Interrupted while waiting for a request slot", e);
+		}
+	}
+
+	private boolean isPrecededByWaiting(RequestKind kind) {
+		for (int i = 0; i < kind.ordinal(); i++) {
+			if (waiting[i] > 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return number of requests in flight up to which a request of the given kind can be sent
+	 */
+	private int getLimit(RequestKind kind) {
+		if (kind == RequestKind.LOOKUP) {
+			return (int) limit;
+		}
+		return Math.max(1, (int) limit - reservedForLookups);
+	}
+
+	/**
+	 * Records the outcome of a request.
+	 *
+	 * @param start value returned by {@link #acquire(RequestKind)}
+	 * @param statusCode HTTP status code of the response, or a negative value if there was none
+	 */
+	synchronized void release(long start, int statusCode) {
+		inFlight--;
+		final long now = System.nanoTime();
+		final double latency = now - start;
+		final boolean failed = Processor.isOverloaded(statusCode);
+		if (!failed) {
+			smoothedLatency = smoothedLatency == 0 ? latency : smoothedLatency + LATENCY_SMOOTHING * (latency - smoothedLatency);
+			baselineLatency = baselineLatency == 0 ? latency : baselineLatency + BASELINE_SMOOTHING * (latency - baselineLatency);
+		}
+		if (maxConcurrency > 0) {
+			final boolean slow = smoothedLatency > LATENCY_TOLERANCE * baselineLatency;
+			if (failed || slow) {
+				if (now - lastDecreaseAt > smoothedLatency) {
+					limit = Math.max(1, limit * DECREASE_FACTOR);
+					lastDecreaseAt = now;
+					Processor.LOG.info("Grouper WS seems to be overloaded (status: {0}, latency: {1} ms, baseline: {2} ms), lowering concurrency limit to {3}",
+							statusCode, TimeUnit.NANOSECONDS.toMillis((long) smoothedLatency),
+							TimeUnit.NANOSECONDS.toMillis((long) baselineLatency), (int) limit);
+				}
+			} else if (limit < maxConcurrency) {
+				limit = Math.min(maxConcurrency, limit + 1 / limit);
+			}
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Holds all requests back for the time requested by Grouper WS (Retry-After header, in seconds).
+	 */
+	synchronized void pause(long seconds) {
+		if (seconds <= 0) {
+			return;
+		}
+		final long until = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.min(TimeUnit.SECONDS.toMillis(seconds), MAX_RETRY_AFTER_MILLIS));
+		if (until - pausedUntil > 0) {
+			pausedUntil = until;
+			Processor.LOG.info("Grouper WS asked to retry after {0} s, holding requests back", seconds);
+		}
+	}
+
+	/**
+	 * @return current adaptive limit of requests in flight (zero if there is none)
+	 */
+	synchronized int getConcurrencyLimit() {
+		return (int) limit;
+	}
+
+	private void refill(long now) {
+		tokens = Math.min(maxRequestsPerSecond, tokens + (double) (now - refilledAt) * maxRequestsPerSecond / TimeUnit.SECONDS.toNanos(1));
+		refilledAt = now;
+	}
+}
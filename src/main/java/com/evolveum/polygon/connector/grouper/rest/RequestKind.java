@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.grouper.rest;
+
+import org.json.JSONObject;
+
+import java.util.concurrent.Callable;
+import java.util.function.Supplier;
+
+/**
+ * Kind of a request to Grouper WS, in the order of priority used by {@link RequestGovernor}.
+ *
+ * Requests are single object lookups unless they are sent while a bulk operation (a search without filter or by
+ * a name slice, synchronization or export) is being executed: then find requests are listings and get members
+ * requests are member paging. Tasks of a bulk operation running on other threads must be wrapped by
+ * {@link #propagate(Callable)}.
+ */
+enum RequestKind {
+
+	LOOKUP,
+	MEMBER_PAGING,
+	LISTING;
+
+	private static final ThreadLocal<Boolean> BULK = new ThreadLocal<>();
+
+	/**
+	 * Executes a bulk operation.
+	 */
+	static <T> T bulk(Supplier<T> operation) {
+		final Boolean previous = BULK.get();
+		BULK.set(Boolean.TRUE);
+		try {
+			return operation.get();
+		} finally {
+			BULK.set(previous);
+		}
+	}
+
+	static void bulk(Runnable operation) {
+		bulk(() -> {
+			operation.run();
+			return null;
+		});
+	}
+
+	/**
+	 * Wraps a task, so that it is a part of a bulk operation if the calling thread executes one.
+	 */
+	static <T> Callable<T> propagate(Callable<T> task) {
+		if (!Boolean.TRUE.equals(BULK.get())) {
+			return task;
+		}
+		return () -> {
+			final Boolean previous = BULK.get();
+			BULK.set(Boolean.TRUE);
+			try {
+				return task.call();
+			} finally {
+				BULK.set(previous);
+			}
+		};
+	}
+
+	static Runnable propagate(Runnable task) {
+		if (!Boolean.TRUE.equals(BULK.get())) {
+			return task;
+		}
+		return () -> bulk(task);
+	}
+
+	/**
+	 * @return true if the calling thread executes a bulk operation
+	 */
+	static boolean isBulk() {
+		return Boolean.TRUE.equals(BULK.get());
+	}
+
+	static RequestKind of(JSONObject payload) {
+		if (!Boolean.TRUE.equals(BULK.get())) {
+			return LOOKUP;
+		}
+		return payload.keySet().stream().anyMatch(root -> root.startsWith("WsRestGetMembers")) ? MEMBER_PAGING : LISTING;
+	}
+}
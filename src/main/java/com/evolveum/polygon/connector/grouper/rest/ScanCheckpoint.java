@@ -0,0 +1,318 @@
+/*
+ * Copyright (c) 2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.grouper.rest;
+
+import org.identityconnectors.common.StringUtil;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Progress of a paged full scan, kept in a file so that a scan that failed can be resumed by a search with the same
+ * parameters that explicitly asks for it.
+ *
+ * Every scan has its own checkpoint file, locked (by a companion lock file) while the scan runs. A resuming scan
+ * takes over the most recent unlocked checkpoint of the same query, so neither a running scan nor another scan
+ * resuming at the same time can use the same checkpoint.
+ *
+ * The checkpoint records the page in progress and UUIDs of groups delivered on it and on the two pages before.
+ * A resumed scan starts one page before the failed one and skips the groups recorded as delivered until it gets
+ * past the page after the failed one, so a shift of the listing by up to a page either way (groups created or
+ * deleted meanwhile) causes neither duplicates nor gaps. The checkpoint is written after each page and when the scan
+ * fails, and it is deleted when the scan finishes. Checkpoints older than {@link #MAX_AGE_MILLIS} are not resumed
+ * and are deleted.
+ */
+class ScanCheckpoint {
+
+	private static final long MAX_AGE_MILLIS = TimeUnit.HOURS.toMillis(1);
+	private static final String FILE_PREFIX = "grouper-scan-";
+	private static final String FILE_SUFFIX = ".checkpoint";
+	private static final String LOCK_SUFFIX = ".lock";
+	private static final String HASH_ALGORITHM = "SHA-256";
+
+	private static final String PROP_QUERY = "query";
+	private static final String PROP_PAGE = "page";
+	private static final String PROP_LAST_UUID = "lastUuid";
+	private static final String PROP_DELIVERED = "delivered";
+
+	private final Path file;
+	private final FileChannel lockChannel;
+	private final String query;
+	private final int resumedPage;
+	private final Set<String> skipped;
+	private int page;
+	private Set<String> olderPage = new HashSet<>();
+	private Set<String> previousPage = new HashSet<>();
+	private Set<String> currentPage = new HashSet<>();
+	private String lastUuid;
+
+	private ScanCheckpoint(Path file, FileChannel lockChannel, String query, int page, Set<String> skipped) {
+		this.file = file;
+		this.lockChannel = lockChannel;
+		this.query = query;
+		this.page = page;
+		this.resumedPage = page;
+		this.skipped = skipped;
+	}
+
+	/**
+	 * Returns the checkpoint of a scan identified by the query.
+	 *
+	 * @param resume if true, the most recent checkpoint of the same query that is not used by another scan is resumed
+	 *               (if there is none, the scan starts from the beginning)
+	 * @return null if checkpointing is not configured
+	 */
+	static ScanCheckpoint open(String directory, String query, boolean resume) {
+		if (StringUtil.isBlank(directory)) {
+			return null;
+		}
+		final String prefix = FILE_PREFIX + hash(query) + "-";
+		final Path dir = Paths.get(directory);
+		if (resume) {
+			for (Path file : listCheckpoints(dir, prefix)) {
+				final ScanCheckpoint checkpoint = resume(file, query);
+				if (checkpoint != null) {
+					return checkpoint;
+				}
+			}
+			Processor.LOG.info("No scan checkpoint to resume, starting from the beginning");
+		}
+		final Path file = dir.resolve(prefix + UUID.randomUUID() + FILE_SUFFIX);
+		return new ScanCheckpoint(file, lock(file), query, 1, new HashSet<>());
+	}
+
+	/**
+	 * Hash of the query used in names of its checkpoint files (the first 64 bits of its SHA-256, in hex). The query
+	 * itself is stored in the checkpoint and compared on resume, so a collision only costs reading the other file.
+	 */
+	private static String hash(String query) {
+		try {
+			final byte[] digest = MessageDigest.getInstance(HASH_ALGORITHM).digest(query.getBytes(StandardCharsets.UTF_8));
+			return String.format("%016x", ByteBuffer.wrap(digest).getLong());
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(HASH_ALGORITHM + " is not available", e);
+		}
+	}
+
+	/**
+	 * @return checkpoint files of the query, the most recent first
+	 */
+	private static List<Path> listCheckpoints(Path dir, String prefix) {
+		final List<Path> files = new ArrayList<>();
+		if (!Files.isDirectory(dir)) {
+			return files;
+		}
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, prefix + "*" + FILE_SUFFIX)) {
+			for (Path file : stream) {
+				files.add(file);
+			}
+		} catch (IOException e) {
+			Processor.LOG.warn("Couldn't list scan checkpoints in {0}: {1}", dir, e.getMessage());
+		}
+		files.sort(Comparator.comparingLong(ScanCheckpoint::getLastModified).reversed());
+		return files;
+	}
+
+	private static long getLastModified(Path file) {
+		try {
+			return Files.getLastModifiedTime(file).toMillis();
+		} catch (IOException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * Takes over the checkpoint of a failed scan.
+	 *
+	 * @return null if the checkpoint is used by another scan, or it is not usable
+	 */
+	private static ScanCheckpoint resume(Path file, String query) {
+		final FileChannel lockChannel = lock(file);
+		if (lockChannel == null) {
+			return null;
+		}
+		try {
+			if (Files.isRegularFile(file) && System.currentTimeMillis() - Files.getLastModifiedTime(file).toMillis() < MAX_AGE_MILLIS) {
+				final Properties properties = new Properties();
+				try (InputStream in = Files.newInputStream(file)) {
+					properties.load(in);
+				}
+				if (query.equals(properties.getProperty(PROP_QUERY))) {
+					final int failedPage = Integer.parseInt(properties.getProperty(PROP_PAGE));
+					final String delivered = properties.getProperty(PROP_DELIVERED, "");
+					final Set<String> skipped = delivered.isEmpty() ? new HashSet<>() : new HashSet<>(Arrays.asList(delivered.split(",")));
+					Processor.LOG.info("Resuming scan from page {0} (failed at page {1}, last delivered group {2})",
+							Math.max(1, failedPage - 1), failedPage, properties.getProperty(PROP_LAST_UUID));
+					return new ScanCheckpoint(file, lockChannel, query, Math.max(1, failedPage - 1), skipped);
+				}
+				unlock(file, lockChannel, false);
+				return null;
+			}
+			Processor.LOG.info("Deleting expired scan checkpoint {0}", file);
+			Files.deleteIfExists(file);
+		} catch (IOException | RuntimeException e) {
+			Processor.LOG.warn("Ignoring unreadable scan checkpoint {0}: {1}", file, e.getMessage());
+		}
+		unlock(file, lockChannel, !Files.exists(file));
+		return null;
+	}
+
+	/**
+	 * Locks the checkpoint for the current scan.
+	 *
+	 * @return channel holding the lock, or null if the checkpoint is locked by another scan (or cannot be locked)
+	 */
+	private static FileChannel lock(Path file) {
+		FileChannel channel = null;
+		try {
+			Files.createDirectories(file.getParent());
+			channel = FileChannel.open(getLockFile(file), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+			final FileLock lock = channel.tryLock();
+			if (lock != null) {
+				return channel;
+			}
+		} catch (IOException | OverlappingFileLockException e) {
+			// locked by another scan in this JVM, or not lockable at all
+		}
+		closeQuietly(channel);
+		return null;
+	}
+
+	private static void unlock(Path file, FileChannel lockChannel, boolean deleteLockFile) {
+		try {
+			if (deleteLockFile) {
+				Files.deleteIfExists(getLockFile(file));
+			}
+		} catch (IOException e) {
+			Processor.LOG.warn("Couldn't delete scan checkpoint lock {0}: {1}", getLockFile(file), e.getMessage());
+		}
+		closeQuietly(lockChannel);
+	}
+
+	private static Path getLockFile(Path file) {
+		return file.resolveSibling(file.getFileName() + LOCK_SUFFIX);
+	}
+
+	private static void closeQuietly(FileChannel channel) {
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// nothing to do
+			}
+		}
+	}
+
+	/**
+	 * @return the page to start the scan with
+	 */
+	int getStartPage() {
+		return resumedPage;
+	}
+
+	/**
+	 * @return true if the group was delivered by the scan being resumed, so it must not be delivered again
+	 */
+	boolean isDelivered(String uuid) {
+		return skipped.contains(uuid);
+	}
+
+	void delivered(String uuid) {
+		currentPage.add(uuid);
+		lastUuid = uuid;
+	}
+
+	void pageDone() {
+		olderPage = previousPage;
+		previousPage = currentPage;
+		currentPage = new HashSet<>();
+		page++;
+		// the groups delivered on the failed page may have moved to the page after it
+		if (page > resumedPage + 2) {
+			skipped.clear();
+		}
+		save();
+	}
+
+	/**
+	 * Records the progress of a scan that failed and releases the checkpoint, so that a search can resume it.
+	 */
+	void failed() {
+		save();
+		Processor.LOG.info("Scan failed at page {0}, a search with the {1} option will continue from there", page, GroupProcessor.OP_RESUME_SCAN);
+		unlock(file, lockChannel, false);
+	}
+
+	/**
+	 * Removes the checkpoint of a scan that finished (or was stopped by the client).
+	 */
+	void finished() {
+		try {
+			Files.deleteIfExists(file);
+		} catch (IOException e) {
+			Processor.LOG.warn("Couldn't delete scan checkpoint {0}: {1}", file, e.getMessage());
+		}
+		unlock(file, lockChannel, true);
+	}
+
+	private void save() {
+		final Set<String> delivered = new HashSet<>(skipped);
+		delivered.addAll(olderPage);
+		delivered.addAll(previousPage);
+		delivered.addAll(currentPage);
+		final Properties properties = new Properties();
+		properties.setProperty(PROP_QUERY, query);
+		properties.setProperty(PROP_PAGE, String.valueOf(page));
+		if (lastUuid != null) {
+			properties.setProperty(PROP_LAST_UUID, lastUuid);
+		}
+		properties.setProperty(PROP_DELIVERED, String.join(",", delivered));
+		try {
+			Files.createDirectories(file.getParent());
+			final Path temporary = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+			try (OutputStream out = Files.newOutputStream(temporary)) {
+				properties.store(out, "Grouper connector scan checkpoint");
+			}
+			Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			// the scan itself can go on, it just won't be resumable
+			Processor.LOG.warn("Couldn't write scan checkpoint {0}: {1}", file, e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.grouper.rest;
+
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Supplier;
+
+/**
+ * Deduplicates identical calls in flight: while a call with a given key is running (in any connector instance),
+ * other calls with the same key do not start their own, but wait for it and share its result (or exception).
+ * A call arriving after the running one finished starts a new one, so no result is reused afterwards.
+ */
+class SingleFlight {
+
+	private static final Map<String, CompletableFuture<Object>> IN_FLIGHT = new ConcurrentHashMap<>();
+
+	private SingleFlight() {
+	}
+
+	/**
+	 * @param onJoin invoked when the call joins one already in flight instead of being executed
+	 */
+	@SuppressWarnings("unchecked")
+	static <T> T execute(String key, Supplier<T> call, Runnable onJoin) {
+		final CompletableFuture<Object> own = new CompletableFuture<>();
+		final CompletableFuture<Object> running = IN_FLIGHT.putIfAbsent(key, own);
+		if (running != null) {
+			onJoin.run();
+			return (T) await(running);
+		}
+		try {
+			final T result = call.get();
+			own.complete(result);
+			return result;
+		} catch (RuntimeException | Error e) {
+			own.completeExceptionally(e);
+			throw e;
+		} finally {
+			IN_FLIGHT.remove(key, own);
+		}
+	}
+
+	private static Object await(CompletableFuture<Object> running) {
+		try {
+			return running.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ConnectorException("Interrupted while waiting for an identical request", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new ConnectorException(e.getCause());
+		}
+	}
+}
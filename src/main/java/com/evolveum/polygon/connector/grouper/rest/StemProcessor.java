@@ -0,0 +1,447 @@
+/*
+ * Copyright (c) 2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.grouper.rest;
+
+import com.evolveum.polygon.connector.grouper.rest.StemTreeCache.Stem;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.utils.URIBuilder;
+import org.identityconnectors.common.StringUtil;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.identityconnectors.framework.common.objects.*;
+import org.identityconnectors.framework.common.objects.filter.AttributeFilter;
+import org.identityconnectors.framework.common.objects.filter.EqualsFilter;
+import org.identityconnectors.framework.common.objects.filter.Filter;
+import org.identityconnectors.framework.spi.SearchResultsHandler;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Contains logic for handling operations on Stem object class.
+ *
+ * Stems are kept in the stem tree cache, so that repeated stem lookups (e.g. resolving the container of a scoped group
+ * search) and listings of child stems do not have to query Grouper every time.
+ */
+public class StemProcessor extends Processor {
+
+	private static final String J_WS_REST_FIND_STEMS_REQUEST = "WsRestFindStemsRequest";
+	private static final String J_WS_FIND_STEMS_RESULTS = "WsFindStemsResults";
+	private static final String J_WS_STEM_QUERY_FILTER = "wsStemQueryFilter";
+	private static final String J_STEM_QUERY_FILTER_TYPE = "stemQueryFilterType";
+	private static final String J_STEM_NAME = "stemName";
+	private static final String J_STEM_UUID = "stemUuid";
+	private static final String J_PARENT_STEM_NAME = "parentStemName";
+	private static final String J_PARENT_STEM_NAME_SCOPE = "parentStemNameScope";
+	private static final String J_STEM_RESULTS = "stemResults";
+	private static final String J_RESULT_METADATA = "resultMetadata";
+	private static final String J_SUCCESS = "success";
+	private static final String J_PAGE_SIZE = "pageSize";
+	private static final String J_PAGE_NUMBER = "pageNumber";
+	private static final String J_UUID = "uuid";
+	private static final String J_NAME = "name";
+	private static final String J_EXTENSION = "extension";
+	private static final String J_DISPLAY_NAME = "displayName";
+	private static final String J_DESCRIPTION = "description";
+
+	private static final String VAL_T = "T";
+	private static final String VAL_FIND_BY_STEM_NAME = "FIND_BY_STEM_NAME";
+	private static final String VAL_FIND_BY_STEM_UUID = "FIND_BY_STEM_UUID";
+	private static final String VAL_FIND_BY_PARENT_STEM_NAME = "FIND_BY_PARENT_STEM_NAME";
+	private static final String VAL_ONE_LEVEL = "ONE_LEVEL";
+	private static final String VAL_ALL_IN_SUBTREE = "ALL_IN_SUBTREE";
+
+	private static final String PATH_STEMS = "/stems";
+
+	public static final String OBJECT_CLASS_NAME = "Stem";
+	public static final String ATTR_NAME = "name";
+	public static final String ATTR_UUID = "uuid";
+	public static final String ATTR_EXTENSION = J_EXTENSION;
+	public static final String ATTR_DISPLAY_NAME = J_DISPLAY_NAME;
+	public static final String ATTR_DESCRIPTION = J_DESCRIPTION;
+	public static final String ATTR_PARENT_STEM = "parentStem";
+
+	private final StemTreeCache stemTreeCache;
+
+	StemProcessor(GrouperConfiguration configuration, ConnectionManager connectionManager) {
+		super(configuration, connectionManager);
+		this.stemTreeCache = new StemTreeCache(configuration.getStemCacheTtl() * 1000L);
+	}
+
+	ObjectClass getObjectClass() {
+		return new ObjectClass(OBJECT_CLASS_NAME);
+	}
+
+	void read(Filter filter, ResultsHandler handler, OperationOptions options) {
+		final SearchScope scope = resolveContainer(options);
+		if (filter == null) {
+			listStems(scope != null ? scope : new SearchScope(getBaseStemName(), true), handler, options);
+		} else if (filter instanceof EqualsFilter) {
+			final Attribute attribute = ((AttributeFilter) filter).getAttribute();
+			if (attribute == null) {
+				throw new IllegalArgumentException("Equal filter used with no attribute: " + filter);
+			}
+			final List<Object> values = attribute.getValue();
+			if (values == null || values.isEmpty()) {
+				throw new IllegalArgumentException("No attribute value to look for: " + attribute);
+			} else if (values.size() > 1) {
+				throw new IllegalArgumentException("More than one attribute value to look for: " + attribute);
+			}
+			final String value = (String) values.get(0);
+			final Stem stem;
+			if (attribute.is(Name.NAME) || attribute.is(ATTR_NAME)) {
+				stem = getStemByName(value);
+			} else if (attribute.is(Uid.NAME) || attribute.is(ATTR_UUID)) {
+				stem = getStemByUuid(value);
+			} else if (attribute.is(ATTR_PARENT_STEM)) {
+				if (!isInBaseStem(value)) {
+					LOG.info("Parent stem {0} is outside the base stem, returning no stems", value);
+					return;
+				}
+				listStems(new SearchScope(value, false), handler, options);
+				return;
+			} else {
+				throw new IllegalArgumentException("Equal filter used on unsupported attribute: " + attribute);
+			}
+			if (stem != null && isInBaseStem(stem.getName()) && (scope == null || scope.contains(stem.getName()))) {
+				handler.handle(toConnectorObject(stem));
+			}
+		} else {
+			throw new IllegalArgumentException("Unsupported filter: " + filter);
+		}
+	}
+
+	/**
+	 * Returns the stem (and scope) a search is restricted to by the container option, or null if there is no container.
+	 * The container must be a stem within the base stem.
+	 */
+	SearchScope resolveContainer(OperationOptions options) {
+		final QualifiedUid container = options != null ? options.getContainer() : null;
+		if (container == null) {
+			return null;
+		}
+		if (container.getObjectClass() != null && !container.getObjectClass().is(OBJECT_CLASS_NAME)) {
+			throw new IllegalArgumentException("Unsupported container object class: " + container.getObjectClass());
+		}
+		final String scope = options.getScope();
+		final boolean subtree;
+		if (scope == null || OperationOptions.SCOPE_SUBTREE.equals(scope)) {
+			subtree = true;
+		} else if (OperationOptions.SCOPE_ONE_LEVEL.equals(scope)) {
+			subtree = false;
+		} else {
+			throw new IllegalArgumentException("Unsupported search scope: " + scope);
+		}
+		final Stem stem = getStemByUuid(container.getUid().getUidValue());
+		if (stem == null) {
+			throw new IllegalArgumentException("Container stem not found: " + container.getUid().getUidValue());
+		}
+		if (!isInBaseStem(stem.getName())) {
+			throw new IllegalArgumentException("Container stem " + stem.getName() + " is outside the base stem " + getBaseStemName());
+		}
+		return new SearchScope(stem.getName(), subtree);
+	}
+
+	Stem getStemByName(String name) {
+		final Stem cached = stemTreeCache.getByName(name);
+		if (cached != null) {
+			return cached;
+		}
+		return cacheSingle(findStemsByName(name));
+	}
+
+	Stem getStemByUuid(String uuid) {
+		final Stem cached = stemTreeCache.getByUuid(uuid);
+		if (cached != null) {
+			return cached;
+		}
+		final List<Stem> stems = findStems(new JSONObject()
+				.put(J_STEM_QUERY_FILTER_TYPE, VAL_FIND_BY_STEM_UUID)
+				.put(J_STEM_UUID, uuid), false);
+		return cacheSingle(stems);
+	}
+
+	/**
+	 * Sends a lightweight request (lookup of the base stem, bypassing the stem cache) to check that Grouper WS
+	 * is reachable and accepts our credentials.
+	 */
+	void ping() {
+		findStemsByName(getBaseStemName());
+	}
+
+	/**
+	 * Checks that the stem exists in Grouper; the stem cache is bypassed, so that the check (part of Test connection)
+	 * really talks to Grouper WS.
+	 */
+	void checkStemExists(String name) {
+		if (cacheSingle(findStemsByName(name)) == null) {
+			throw new ConnectorException("Expected to find the stem '" + name + "', found none");
+		}
+	}
+
+	private List<Stem> findStemsByName(String name) {
+		return findStems(new JSONObject()
+				.put(J_STEM_QUERY_FILTER_TYPE, VAL_FIND_BY_STEM_NAME)
+				.put(J_STEM_NAME, name), false);
+	}
+
+	private Stem cacheSingle(List<Stem> stems) {
+		if (stems.isEmpty()) {
+			return null;
+		}
+		stemTreeCache.put(stems.get(0));
+		return stems.get(0);
+	}
+
+	/**
+	 * Returns the immediate child stems of the given stem; used also to partition full scans by child stem.
+	 */
+	List<Stem> getChildStems(String parentName) {
+		final List<Stem> cached = stemTreeCache.getChildren(parentName);
+		if (cached != null) {
+			return cached;
+		}
+		final List<Stem> children = findChildStems(parentName, VAL_ONE_LEVEL);
+		stemTreeCache.putChildren(parentName, children);
+		return children;
+	}
+
+	/**
+	 * Returns all stems under the given stem (the stem itself excluded).
+	 */
+	List<Stem> getDescendantStems(String rootName) {
+		final List<Stem> cached = new ArrayList<>();
+		if (collectCachedDescendants(rootName, cached)) {
+			return cached;
+		}
+		final List<Stem> descendants = findChildStems(rootName, VAL_ALL_IN_SUBTREE);
+		stemTreeCache.putSubtree(rootName, descendants);
+		return descendants;
+	}
+
+	private boolean collectCachedDescendants(String parentName, List<Stem> result) {
+		final List<Stem> children = stemTreeCache.getChildren(parentName);
+		if (children == null) {
+			return false;
+		}
+		for (Stem child : children) {
+			result.add(child);
+			if (!collectCachedDescendants(child.getName(), result)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private List<Stem> findChildStems(String parentName, String parentStemNameScope) {
+		final List<Stem> stems = findStems(new JSONObject()
+				.put(J_STEM_QUERY_FILTER_TYPE, VAL_FIND_BY_PARENT_STEM_NAME)
+				.put(J_PARENT_STEM_NAME, parentName)
+				.put(J_PARENT_STEM_NAME_SCOPE, parentStemNameScope), true);
+		stems.removeIf(stem -> stem.getName().equals(parentName));
+		return stems;
+	}
+
+	/**
+	 * Lists stems in the given scope. The whole listing is taken from the stem tree cache (or fetched into it), so that
+	 * a paged search only slices it; the cookie is the offset of the next page. Paging is not passed to Grouper, as
+	 * some versions ignore it for stem queries (see {@link #findStems(JSONObject, boolean)}): the first page of a
+	 * subtree loads the whole subtree, the following ones are served from the cache.
+	 */
+	private void listStems(SearchScope scope, ResultsHandler handler, OperationOptions options) {
+		LOG.info("Retrieving stems under {0} (subtree: {1})...", scope.getStemName(), scope.isSubtree());
+		final List<Stem> stems = scope.isSubtree() ? getDescendantStems(scope.getStemName()) : getChildStems(scope.getStemName());
+
+		final Integer pageSize = options != null ? options.getPageSize() : null;
+		final boolean paged = pageSize != null && pageSize > 0;
+		final int from = paged ? Math.min(getPagedResultsOffset(options) - 1, stems.size()) : 0;
+		final int to = paged ? Math.min(from + pageSize, stems.size()) : stems.size();
+
+		int index = from;
+		for (; index < to; index++) {
+			if (!handler.handle(toConnectorObject(stems.get(index)))) {
+				break;
+			}
+		}
+		LOG.info("Returned {0} of {1} stem(s) under {2}", index - from, stems.size(), scope.getStemName());
+
+		if (paged && handler instanceof SearchResultsHandler) {
+			final boolean allReturned = index >= stems.size();
+			final String cookie = allReturned ? null : String.valueOf(index + 1);
+			((SearchResultsHandler) handler).handleResult(new SearchResult(cookie, stems.size() - index, allReturned));
+		}
+	}
+
+	/**
+	 * Sends a find stems query, page by page if requested. Some Grouper versions ignore paging of stem queries and
+	 * return the full result for every page number; we stop as soon as a page brings no stem we have not seen yet.
+	 */
+	private List<Stem> findStems(JSONObject queryFilter, boolean paged) {
+		final URIBuilder uriBuilder = getUriBuilderRelative(PATH_STEMS);
+		try {
+			final HttpPost request = new HttpPost(uriBuilder.build());
+			final JSONObject body = new JSONObject()
+					.put(J_WS_REST_FIND_STEMS_REQUEST, new JSONObject()
+							.put(J_WS_STEM_QUERY_FILTER, queryFilter));
+			final int pageSize = configuration.getPageSize();
+			final List<Stem> stems = new ArrayList<>();
+			final UuidSet seen = new UuidSet();
+			int pageNumber = 1;
+			boolean done = false;
+
+			while (!done) {
+				if (paged) {
+					queryFilter.put(J_PAGE_SIZE, pageSize).put(J_PAGE_NUMBER, pageNumber);
+				}
+				final JSONObject response = callRequest(request, body, null).getResponse();
+				final JSONObject metadata = (JSONObject) get(response, Collections.singletonList(J_WS_FIND_STEMS_RESULTS), List.of(J_RESULT_METADATA));
+				if (!VAL_T.equals(getStringOrNull(metadata, J_SUCCESS))) {
+					throw new IllegalStateException("Request was not successful: " + metadata);
+				}
+				final JSONArray stemResults = getArray(response, false, List.of(J_WS_FIND_STEMS_RESULTS), List.of(J_STEM_RESULTS));
+				final int count = stemResults != null ? stemResults.length() : 0;
+				int added = 0;
+				for (int i = 0; i < count; i++) {
+					final JSONObject stem = stemResults.getJSONObject(i);
+					if (seen.add(getStringOrNull(stem, J_UUID))) {
+						stems.add(toStem(stem));
+						added++;
+					}
+				}
+				if (paged && count > 0 && added == 0) {
+					LOG.warn("Page {0} of stems brought no new stems, the server probably does not support paging of stems", pageNumber);
+				}
+				done = !paged || count < pageSize || added == 0;
+				pageNumber++;
+			}
+			return stems;
+		} catch (RuntimeException | URISyntaxException e) {
+			throw processException(e, uriBuilder, "Find stems");
+		}
+	}
+
+	private Stem toStem(JSONObject stem) {
+		return new Stem(getStringOrNull(stem, J_UUID), getStringOrNull(stem, J_NAME), getStringOrNull(stem, J_EXTENSION),
+				getStringOrNull(stem, J_DISPLAY_NAME), getStringOrNull(stem, J_DESCRIPTION));
+	}
+
+	private ConnectorObject toConnectorObject(Stem stem) {
+		final ConnectorObjectBuilder builder = new ConnectorObjectBuilder();
+		builder.setObjectClass(getObjectClass());
+		builder.setUid(stem.getUuid());
+		builder.setName(stem.getName());
+		builder.addAttribute(ATTR_EXTENSION, stem.getExtension());
+		builder.addAttribute(ATTR_PARENT_STEM, stem.getParentName());
+		if (stem.getDisplayName() != null) {
+			builder.addAttribute(ATTR_DISPLAY_NAME, stem.getDisplayName());
+		}
+		if (stem.getDescription() != null) {
+			builder.addAttribute(ATTR_DESCRIPTION, stem.getDescription());
+		}
+		return builder.build();
+	}
+
+	String getBaseStemName() {
+		return StringUtil.isNotBlank(configuration.getBaseStem()) ? configuration.getBaseStem() : StemTreeCache.ROOT_STEM;
+	}
+
+	boolean isInBaseStem(String stemName) {
+		return new SearchScope(getBaseStemName(), true).contains(stemName) || stemName.equals(getBaseStemName());
+	}
+
+	public ObjectClassInfoBuilder buildSchema() {
+		ObjectClassInfoBuilder builder = new ObjectClassInfoBuilder();
+		builder.setType(OBJECT_CLASS_NAME);
+		builder.setContainer(true);
+		builder.addAttributeInfo(
+				new AttributeInfoBuilder(Name.NAME, String.class)
+						.setNativeName(ATTR_NAME)
+						.setRequired(true)
+						.build());
+		builder.addAttributeInfo(
+				new AttributeInfoBuilder(Uid.NAME, String.class)
+						.setNativeName(ATTR_UUID)
+						.setRequired(true)
+						.build());
+		builder.addAttributeInfo(
+				new AttributeInfoBuilder(ATTR_EXTENSION, String.class)
+						.build());
+		builder.addAttributeInfo(
+				new AttributeInfoBuilder(ATTR_DISPLAY_NAME, String.class)
+						.build());
+		builder.addAttributeInfo(
+				new AttributeInfoBuilder(ATTR_DESCRIPTION, String.class)
+						.build());
+		builder.addAttributeInfo(
+				new AttributeInfoBuilder(ATTR_PARENT_STEM, String.class)
+						.build());
+		return builder;
+	}
+
+	/**
+	 * Stem a search is restricted to: either its immediate children (one level) or everything under it (subtree).
+	 */
+	static class SearchScope {
+
+		private final String stemName;
+		private final boolean subtree;
+		private final NameSlice nameSlice;
+
+		SearchScope(String stemName, boolean subtree) {
+			this(stemName, subtree, null);
+		}
+
+		/**
+		 * @param nameSlice if not null, only objects with names in the slice lie in the scope
+		 */
+		SearchScope(String stemName, boolean subtree, NameSlice nameSlice) {
+			this.stemName = stemName;
+			this.subtree = subtree;
+			this.nameSlice = nameSlice;
+		}
+
+		String getStemName() {
+			return stemName;
+		}
+
+		boolean isSubtree() {
+			return subtree;
+		}
+
+		NameSlice getNameSlice() {
+			return nameSlice;
+		}
+
+		/**
+		 * Whether an object (stem or group) with the given name lies in this scope.
+		 */
+		boolean contains(String name) {
+			if (name == null) {
+				return false;
+			} else if (nameSlice != null && !nameSlice.contains(name)) {
+				return false;
+			} else if (!subtree) {
+				return StemTreeCache.getParentName(name).equals(stemName);
+			} else if (StemTreeCache.ROOT_STEM.equals(stemName)) {
+				return !StemTreeCache.ROOT_STEM.equals(name);
+			} else {
+				return name.startsWith(stemName + ":");
+			}
+		}
+	}
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.grouper.rest;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * In-memory tree of stems known to this connector instance. Stems are indexed by name and UUID; for a stem whose
+ * children were fully listed, the names of its children are known as well. The whole tree is dropped once it gets
+ * older than the configured time to live.
+ */
+class StemTreeCache {
+
+	static final String ROOT_STEM = ":";
+
+	private final long ttlMillis;
+	private final Map<String, Stem> byName = new HashMap<>();
+	private final Map<String, String> nameByUuid = new HashMap<>();
+	private final Map<String, Set<String>> childrenByName = new HashMap<>();
+	private long createdAt = System.currentTimeMillis();
+
+	StemTreeCache(long ttlMillis) {
+		this.ttlMillis = ttlMillis;
+	}
+
+	synchronized Stem getByName(String name) {
+		expireIfNeeded();
+		return byName.get(name);
+	}
+
+	synchronized Stem getByUuid(String uuid) {
+		expireIfNeeded();
+		String name = nameByUuid.get(uuid);
+		return name != null ? byName.get(name) : null;
+	}
+
+	/**
+	 * @return children of the given stem, or null if they are not known
+	 */
+	synchronized List<Stem> getChildren(String parentName) {
+		expireIfNeeded();
+		Set<String> childNames = childrenByName.get(parentName);
+		if (childNames == null) {
+			return null;
+		}
+		List<Stem> children = new ArrayList<>(childNames.size());
+		for (String childName : childNames) {
+			Stem child = byName.get(childName);
+			if (child == null) {
+				return null;
+			}
+			children.add(child);
+		}
+		return children;
+	}
+
+	synchronized void put(Stem stem) {
+		if (ttlMillis <= 0) {
+			return;
+		}
+		expireIfNeeded();
+		byName.put(stem.getName(), stem);
+		if (stem.getUuid() != null) {
+			nameByUuid.put(stem.getUuid(), stem.getName());
+		}
+	}
+
+	/**
+	 * Records the complete list of children of the given stem.
+	 */
+	synchronized void putChildren(String parentName, Collection<Stem> children) {
+		if (ttlMillis <= 0) {
+			return;
+		}
+		Set<String> childNames = new LinkedHashSet<>();
+		for (Stem child : children) {
+			put(child);
+			childNames.add(child.getName());
+		}
+		childrenByName.put(parentName, childNames);
+	}
+
+	/**
+	 * Records the complete subtree under the given stem: every stem found there has all its children in the collection.
+	 */
+	synchronized void putSubtree(String rootName, Collection<Stem> descendants) {
+		if (ttlMillis <= 0) {
+			return;
+		}
+		Map<String, List<Stem>> byParent = new HashMap<>();
+		byParent.put(rootName, new ArrayList<>());
+		for (Stem stem : descendants) {
+			byParent.computeIfAbsent(stem.getName(), name -> new ArrayList<>());
+		}
+		for (Stem stem : descendants) {
+			List<Stem> siblings = byParent.get(stem.getParentName());
+			if (siblings != null) {
+				siblings.add(stem);
+			}
+		}
+		byParent.forEach(this::putChildren);
+	}
+
+	synchronized void clear() {
+		byName.clear();
+		nameByUuid.clear();
+		childrenByName.clear();
+		createdAt = System.currentTimeMillis();
+	}
+
+	private void expireIfNeeded() {
+		if (System.currentTimeMillis() - createdAt > ttlMillis) {
+			clear();
+		}
+	}
+
+	static String getParentName(String stemName) {
+		int i = stemName.lastIndexOf(':');
+		return i > 0 ? stemName.substring(0, i) : ROOT_STEM;
+	}
+
+	/**
+	 * A stem as returned by Grouper (only the data this connector uses).
+	 */
+	static class Stem {
+
+		private final String uuid;
+		private final String name;
+		private final String extension;
+		private final String displayName;
+		private final String description;
+
+		Stem(String uuid, String name, String extension, String displayName, String description) {
+			this.uuid = uuid;
+			this.name = name;
+			this.extension = extension;
+			this.displayName = displayName;
+			this.description = description;
+		}
+
+		String getUuid() {
+			return uuid;
+		}
+
+		String getName() {
+			return name;
+		}
+
+		String getExtension() {
+			return extension;
+		}
+
+		String getDisplayName() {
+			return displayName;
+		}
+
+		String getDescription() {
+			return description;
+		}
+
+		String getParentName() {
+			return StemTreeCache.getParentName(name);
+		}
+	}
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.grouper.rest;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded (LRU) cache of resolved subjects, shared by the Subject object class and the group member path, so that
+ * subjects appearing in many groups are resolved only once. Entries expire after {@link #MAX_AGE_MILLIS}.
+ */
+class SubjectCache {
+
+	private static final long MAX_AGE_MILLIS = 10 * 60 * 1000L;
+
+	private final int maxSize;
+	private final Map<String, Entry> entries;
+
+	SubjectCache(int maxSize) {
+		this.maxSize = maxSize;
+		this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+				return size() > SubjectCache.this.maxSize;
+			}
+		};
+	}
+
+	boolean isEnabled() {
+		return maxSize > 0;
+	}
+
+	synchronized Entry get(String id) {
+		Entry entry = entries.get(id);
+		if (entry != null && System.currentTimeMillis() - entry.timestamp > MAX_AGE_MILLIS) {
+			entries.remove(id);
+			return null;
+		}
+		return entry;
+	}
+
+	synchronized void put(Entry entry) {
+		if (isEnabled()) {
+			entries.put(entry.id, entry);
+		}
+	}
+
+	synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * A resolved subject: its ID, source, name and values of (requested) subject attributes.
+	 */
+	static class Entry {
+
+		private final String id;
+		private final String sourceId;
+		private final String name;
+		private final Map<String, String> attributes;
+		private final long timestamp = System.currentTimeMillis();
+
+		Entry(String id, String sourceId, String name, Map<String, String> attributes) {
+			this.id = id;
+			this.sourceId = sourceId;
+			this.name = name;
+			this.attributes = Collections.unmodifiableMap(attributes);
+		}
+
+		String getId() {
+			return id;
+		}
+
+		String getSourceId() {
+			return sourceId;
+		}
+
+		String getName() {
+			return name;
+		}
+
+		Map<String, String> getAttributes() {
+			return attributes;
+		}
+	}
+}
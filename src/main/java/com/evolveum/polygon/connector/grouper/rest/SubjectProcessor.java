@@ -0,0 +1,271 @@
+/*
+ * Copyright (c) 2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.grouper.rest;
+
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.utils.URIBuilder;
+import org.identityconnectors.common.StringUtil;
+import org.identityconnectors.framework.common.objects.*;
+import org.identityconnectors.framework.common.objects.filter.AttributeFilter;
+import org.identityconnectors.framework.common.objects.filter.EqualsFilter;
+import org.identityconnectors.framework.common.objects.filter.Filter;
+import org.identityconnectors.framework.common.objects.filter.OrFilter;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import java.net.URISyntaxException;
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * Contains logic for handling operations on Subject object class.
+ *
+ * Subjects are looked up by ID in batches (many subject lookups in one getSubjects request) and kept in the subject
+ * cache shared with the group member path.
+ */
+public class SubjectProcessor extends Processor {
+
+	private static final String J_WS_REST_GET_SUBJECTS_REQUEST = "WsRestGetSubjectsRequest";
+	private static final String J_WS_GET_SUBJECTS_RESULTS = "WsGetSubjectsResults";
+	private static final String J_WS_SUBJECT_LOOKUPS = "wsSubjectLookups";
+	private static final String J_WS_SUBJECTS = "wsSubjects";
+	private static final String J_SUBJECT_ID = "subjectId";
+	private static final String J_SUBJECT_SOURCE_ID = "subjectSourceId";
+	private static final String J_INCLUDE_SUBJECT_DETAIL = "includeSubjectDetail";
+	private static final String J_RESULT_METADATA = "resultMetadata";
+	private static final String J_SUCCESS = "success";
+	private static final String J_SUBJECT_ATTRIBUTE_NAMES = "subjectAttributeNames";
+	private static final String J_NAME = "name";
+
+	private static final String VAL_T = "T";
+
+	private static final String PATH_SUBJECTS = "/subjects";
+
+	public static final String OBJECT_CLASS_NAME = "Subject";
+	public static final String ATTR_ID = "id";
+	public static final String ATTR_SOURCE_ID = "sourceId";
+	public static final String ATTR_SUBJECT_NAME = "subjectName";
+
+	private final SubjectCache subjectCache;
+	private final GroupProcessor groupProcessor;
+
+	SubjectProcessor(GrouperConfiguration configuration, ConnectionManager connectionManager, SubjectCache subjectCache,
+			GroupProcessor groupProcessor) {
+		super(configuration, connectionManager);
+		this.subjectCache = subjectCache;
+		this.groupProcessor = groupProcessor;
+	}
+
+	ObjectClass getObjectClass() {
+		return new ObjectClass(OBJECT_CLASS_NAME);
+	}
+
+	void read(Filter filter, ResultsHandler handler, OperationOptions options) {
+		if (filter == null) {
+			getAllSubjects(handler);
+		} else {
+			Set<String> ids = new LinkedHashSet<>();
+			collectIds(filter, ids);
+			LOG.info("Retrieving {0} subject(s) by ID...", ids.size());
+			getSubjects(ids, handler);
+		}
+	}
+
+	/**
+	 * Supports equality filters on the ID, possibly combined by OR (that is what batched lookups look like).
+	 */
+	private void collectIds(Filter filter, Set<String> ids) {
+		if (filter instanceof OrFilter) {
+			for (Filter component : ((OrFilter) filter).getFilters()) {
+				collectIds(component, ids);
+			}
+		} else if (filter instanceof EqualsFilter) {
+			Attribute attribute = ((AttributeFilter) filter).getAttribute();
+			if (attribute == null || !(attribute.is(Uid.NAME) || attribute.is(Name.NAME) || attribute.is(ATTR_ID))) {
+				throw new IllegalArgumentException("Equal filter used on unsupported attribute: " + attribute);
+			}
+			List<Object> values = attribute.getValue();
+			if (values == null || values.isEmpty()) {
+				throw new IllegalArgumentException("No attribute value to look for: " + attribute);
+			}
+			values.forEach(value -> ids.add((String) value));
+		} else {
+			throw new IllegalArgumentException("Unsupported filter: " + filter);
+		}
+	}
+
+	/**
+	 * There is no way of listing all subjects in Grouper, so "all subjects" are the members of groups visible
+	 * to this connector. They are returned group by group, each subject once. To keep memory bounded, only the last
+	 * subjectCacheSize subjects returned are remembered, so with more subjects than that, a subject in more groups
+	 * may be returned again.
+	 */
+	private void getAllSubjects(ResultsHandler handler) {
+		LOG.info("Retrieving all subjects that are members of visible groups...");
+		final int limit = configuration.getSubjectCacheSize();
+		final Set<String> returned = Collections.newSetFromMap(new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+				return size() > limit;
+			}
+		});
+		Map<String, Object> optionsMap = new HashMap<>();
+		optionsMap.put(OperationOptions.OP_ATTRIBUTES_TO_GET, new String[] { GroupProcessor.ATTR_MEMBER });
+		groupProcessor.read(null, group -> {
+			Attribute members = group.getAttributeByName(GroupProcessor.ATTR_MEMBER);
+			if (members == null || members.getValue() == null) {
+				return true;
+			}
+			Set<String> ids = new LinkedHashSet<>();
+			for (Object member : members.getValue()) {
+				if (!returned.contains((String) member)) {
+					ids.add((String) member);
+				}
+			}
+			return getSubjects(ids, subject -> {
+				returned.add(subject.getUid().getUidValue());
+				return handler.handle(subject);
+			});
+		}, new OperationOptions(optionsMap));
+	}
+
+	/**
+	 * @return false if the handler stopped the search
+	 */
+	private boolean getSubjects(Collection<String> ids, ResultsHandler handler) {
+		List<String> toResolve = new ArrayList<>();
+		int cached = 0;
+		for (String id : ids) {
+			SubjectCache.Entry entry = subjectCache.get(id);
+			if (entry != null) {
+				cached++;
+				if (!handler.handle(toConnectorObject(entry))) {
+					return false;
+				}
+			} else {
+				toResolve.add(id);
+			}
+		}
+		LOG.info("{0} subject(s) found in cache, {1} to be resolved", cached, toResolve.size());
+
+		int batchSize = configuration.getPageSize();
+		for (int from = 0; from < toResolve.size(); from += batchSize) {
+			List<String> batch = toResolve.subList(from, Math.min(from + batchSize, toResolve.size()));
+			for (SubjectCache.Entry entry : resolveSubjects(batch)) {
+				subjectCache.put(entry);
+				if (!handler.handle(toConnectorObject(entry))) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Resolves a batch of subjects using a single getSubjects request. Subjects that were not found are skipped.
+	 */
+	private List<SubjectCache.Entry> resolveSubjects(List<String> ids) {
+		URIBuilder uriBuilder = getUriBuilderRelative(PATH_SUBJECTS);
+		try {
+			HttpPost request = new HttpPost(uriBuilder.build());
+			List<JSONObject> lookups = ids.stream()
+					.map(id -> {
+						JSONObject lookup = new JSONObject().put(J_SUBJECT_ID, id);
+						if (StringUtil.isNotBlank(configuration.getSubjectSource())) {
+							lookup.put(J_SUBJECT_SOURCE_ID, configuration.getSubjectSource());
+						}
+						return lookup;
+					})
+					.collect(Collectors.toList());
+			JSONObject requestBody = new JSONObject()
+					.put(J_WS_SUBJECT_LOOKUPS, lookups)
+					.put(J_INCLUDE_SUBJECT_DETAIL, false);
+			if (!getSubjectAttributeNames().isEmpty()) {
+				requestBody.put(J_SUBJECT_ATTRIBUTE_NAMES, getSubjectAttributeNames());
+			}
+			JSONObject body = new JSONObject().put(J_WS_REST_GET_SUBJECTS_REQUEST, requestBody);
+
+			JSONObject response = callRequest(request, body, null).getResponse();
+			JSONObject results = response.getJSONObject(J_WS_GET_SUBJECTS_RESULTS);
+			JSONObject metadata = results.optJSONObject(J_RESULT_METADATA);
+			if (metadata == null || !VAL_T.equals(getStringOrNull(metadata, J_SUCCESS))) {
+				throw new IllegalStateException("Request was not successful: " + metadata);
+			}
+
+			List<SubjectCache.Entry> entries = new ArrayList<>();
+			JSONArray subjects = results.optJSONArray(J_WS_SUBJECTS);
+			if (subjects != null) {
+				JSONArray attributeNames = results.optJSONArray(J_SUBJECT_ATTRIBUTE_NAMES);
+				for (Object subject : subjects) {
+					if (subject instanceof JSONObject && VAL_T.equals(getStringOrNull((JSONObject) subject, J_SUCCESS))) {
+						entries.add(toSubjectEntry((JSONObject) subject, attributeNames));
+					} else {
+						LOG.info("Subject not resolved: {0}", subject);
+					}
+				}
+			}
+			LOG.info("Resolved {0} of {1} subject(s)", entries.size(), ids.size());
+			return entries;
+		} catch (RuntimeException | URISyntaxException e) {
+			throw processException(e, uriBuilder, "Get subjects");
+		}
+	}
+
+	private ConnectorObject toConnectorObject(SubjectCache.Entry entry) {
+		ConnectorObjectBuilder builder = new ConnectorObjectBuilder();
+		builder.setObjectClass(getObjectClass());
+		builder.setUid(entry.getId());
+		builder.setName(entry.getId());
+		builder.addAttribute(ATTR_SOURCE_ID, entry.getSourceId());
+		if (entry.getName() != null) {
+			builder.addAttribute(ATTR_SUBJECT_NAME, entry.getName());
+		}
+		for (String attributeName : getSubjectAttributeNames()) {
+			String value = entry.getAttributes().get(attributeName);
+			if (value != null) {
+				builder.addAttribute(attributeName, value);
+			}
+		}
+		return builder.build();
+	}
+
+	public ObjectClassInfoBuilder buildSchema() {
+		ObjectClassInfoBuilder builder = new ObjectClassInfoBuilder();
+		builder.setType(OBJECT_CLASS_NAME);
+		builder.addAttributeInfo(
+				new AttributeInfoBuilder(Name.NAME, String.class)
+						.setNativeName(ATTR_ID)
+						.setRequired(true)
+						.build());
+		builder.addAttributeInfo(
+				new AttributeInfoBuilder(Uid.NAME, String.class)
+						.setNativeName(ATTR_ID)
+						.setRequired(true)
+						.build());
+		builder.addAttributeInfo(
+				new AttributeInfoBuilder(ATTR_SOURCE_ID, String.class)
+						.build());
+		builder.addAttributeInfo(
+				new AttributeInfoBuilder(ATTR_SUBJECT_NAME, String.class)
+						.setNativeName(J_NAME)
+						.build());
+		for (String attributeName : getSubjectAttributeNames()) {
+			builder.addAttributeInfo(
+					new AttributeInfoBuilder(attributeName, String.class)
+							.build());
+		}
+		return builder;
+	}
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.grouper.rest;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Compact set of already seen Grouper UUIDs, used to deliver each object exactly once when results of several
+ * queries are merged. Grouper UUIDs (32 hex digits, optionally with dashes) are stored as two longs in an open
+ * addressing table; anything else falls back to a regular hash set. Not thread safe.
+ */
+class UuidSet {
+
+	private static final int INITIAL_CAPACITY = 1024;
+
+	private long[] highs = new long[INITIAL_CAPACITY];
+	private long[] lows = new long[INITIAL_CAPACITY];
+	private boolean[] used = new boolean[INITIAL_CAPACITY];
+	private int hexCount;
+	private final Set<String> others = new HashSet<>();
+
+	/**
+	 * @return true if the UUID was not present in the set
+	 */
+	boolean add(String uuid) {
+		long[] parsed = parse(uuid);
+		if (parsed == null) {
+			return others.add(uuid);
+		}
+		if ((hexCount + 1) * 2 > used.length) {
+			resize();
+		}
+		if (insert(parsed[0], parsed[1])) {
+			hexCount++;
+			return true;
+		} else {
+			return false;
+		}
+	}
+
+	boolean contains(String uuid) {
+		long[] parsed = parse(uuid);
+		if (parsed == null) {
+			return others.contains(uuid);
+		}
+		int mask = used.length - 1;
+		for (int i = index(parsed[0], parsed[1], mask); used[i]; i = (i + 1) & mask) {
+			if (highs[i] == parsed[0] && lows[i] == parsed[1]) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	int size() {
+		return hexCount + others.size();
+	}
+
+	private boolean insert(long high, long low) {
+		int mask = used.length - 1;
+		int i = index(high, low, mask);
+		while (used[i]) {
+			if (highs[i] == high && lows[i] == low) {
+				return false;
+			}
+			i = (i + 1) & mask;
+		}
+		used[i] = true;
+		highs[i] = high;
+		lows[i] = low;
+		return true;
+	}
+
+	private void resize() {
+		long[] oldHighs = highs;
+		long[] oldLows = lows;
+		boolean[] oldUsed = used;
+		highs = new long[oldUsed.length * 2];
+		lows = new long[oldUsed.length * 2];
+		used = new boolean[oldUsed.length * 2];
+		for (int i = 0; i < oldUsed.length; i++) {
+			if (oldUsed[i]) {
+				insert(oldHighs[i], oldLows[i]);
+			}
+		}
+	}
+
+	private static int index(long high, long low, int mask) {
+		long h = high * 0x9E3779B97F4A7C15L ^ low;
+		return (int) (h ^ (h >>> 32)) & mask;
+	}
+
+	private static long[] parse(String uuid) {
+		if (uuid == null) {
+			return null;
+		}
+		long high = 0;
+		long low = 0;
+		int digits = 0;
+		for (int i = 0; i < uuid.length(); i++) {
+			char c = uuid.charAt(i);
+			if (c == '-') {
+				continue;
+			}
+			int value = Character.digit(c, 16);
+			if (value < 0 || digits == 32) {
+				return null;
+			}
+			if (digits < 16) {
+				high = (high << 4) | value;
+			} else {
+				low = (low << 4) | value;
+			}
+			digits++;
+		}
+		return digits == 32 ? new long[] { high, low } : null;
+	}
+}
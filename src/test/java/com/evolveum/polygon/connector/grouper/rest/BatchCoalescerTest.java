@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.grouper.rest;
+
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertTrue;
+import static org.testng.AssertJUnit.fail;
+
+/**
+ * Tests batching of concurrent writes by BatchCoalescer.
+ */
+public class BatchCoalescerTest {
+
+	private static final long WINDOW_MILLIS = 5000;
+	private static final int MAX_BATCH_SIZE = 10;
+
+	@Test
+	public void testLoneWriteIsNotDelayed() {
+		BatchCoalescer<String, String> coalescer = BatchCoalescer.get("lone");
+		long start = System.currentTimeMillis();
+		String result = coalescer.submit("a", WINDOW_MILLIS, MAX_BATCH_SIZE, BatchCoalescerTest::echo);
+		assertEquals("Wrong result", "A", result);
+		assertTrue("Lone write waited for the batch window", System.currentTimeMillis() - start < WINDOW_MILLIS / 2);
+		assertFalse("Idle coalescer kept in the registry", coalescer == BatchCoalescer.<String, String>get("lone"));
+	}
+
+	@Test
+	public void testWritesPendingMeanwhileAreBatched() throws Exception {
+		CountDownLatch firstStarted = new CountDownLatch(1);
+		CountDownLatch firstReleased = new CountDownLatch(1);
+		List<List<String>> batches = Collections.synchronizedList(new ArrayList<>());
+		BatchCoalescer.BatchExecutor<String, String> executor = items -> {
+			batches.add(new ArrayList<>(items));
+			if (items.contains("first")) {
+				firstStarted.countDown();
+				await(firstReleased);
+			}
+			return echo(items);
+		};
+		BatchCoalescer<String, String> coalescer = BatchCoalescer.get("pending");
+		ExecutorService threads = Executors.newCachedThreadPool();
+		try {
+			Future<String> first = threads.submit(() -> coalescer.submit("first", WINDOW_MILLIS, 3, executor));
+			assertTrue("First write not sent", firstStarted.await(10, TimeUnit.SECONDS));
+			List<Future<String>> others = new ArrayList<>();
+			for (String item : List.of("b", "c", "d")) {
+				others.add(threads.submit(() -> coalescer.submit(item, WINDOW_MILLIS, 3, executor)));
+			}
+			// the batch of the others is full, so it is sent without waiting for the whole window
+			for (Future<String> other : others) {
+				other.get(WINDOW_MILLIS / 2, TimeUnit.MILLISECONDS);
+			}
+			firstReleased.countDown();
+			assertEquals("Wrong result", "FIRST", first.get(10, TimeUnit.SECONDS));
+			assertEquals("Wrong results", List.of("B", "C", "D"), others.stream().map(BatchCoalescerTest::get).collect(Collectors.toList()));
+			assertEquals("Wrong batches", 2, batches.size());
+			assertEquals("Wrong second batch", 3, batches.get(1).size());
+		} finally {
+			firstReleased.countDown();
+			threads.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testErrorIsReportedToWholeBatch() throws Exception {
+		CountDownLatch firstStarted = new CountDownLatch(1);
+		CountDownLatch firstReleased = new CountDownLatch(1);
+		BatchCoalescer.BatchExecutor<String, String> executor = items -> {
+			if (items.contains("first")) {
+				firstStarted.countDown();
+				await(firstReleased);
+				return echo(items);
+			}
+			throw new AssertionError("batch failed");
+		};
+		BatchCoalescer<String, String> coalescer = BatchCoalescer.get("error");
+		ExecutorService threads = Executors.newCachedThreadPool();
+		try {
+			Future<String> first = threads.submit(() -> coalescer.submit("first", WINDOW_MILLIS, 2, executor));
+			assertTrue("First write not sent", firstStarted.await(10, TimeUnit.SECONDS));
+			List<Future<String>> others = new ArrayList<>();
+			for (String item : List.of("b", "c")) {
+				others.add(threads.submit(() -> coalescer.submit(item, WINDOW_MILLIS, 2, executor)));
+			}
+			for (Future<String> other : others) {
+				try {
+					other.get(WINDOW_MILLIS / 2, TimeUnit.MILLISECONDS);
+					fail("Error not reported");
+				} catch (ExecutionException e) {
+					assertTrue("Wrong error: " + e.getCause(), e.getCause() instanceof AssertionError);
+				}
+			}
+			firstReleased.countDown();
+			assertEquals("Wrong result", "FIRST", first.get(10, TimeUnit.SECONDS));
+		} finally {
+			firstReleased.countDown();
+			threads.shutdownNow();
+		}
+	}
+
+	private static List<BatchCoalescer.Outcome<String>> echo(List<String> items) {
+		return items.stream().map(item -> BatchCoalescer.Outcome.success(item.toUpperCase())).collect(Collectors.toList());
+	}
+
+	private static void await(CountDownLatch latch) {
+		try {
+			latch.await(10, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static String get(Future<String> future) {
+		try {
+			return future.get();
+		} catch (Exception e) {
+			throw new AssertionError(e);
+		}
+	}
+}
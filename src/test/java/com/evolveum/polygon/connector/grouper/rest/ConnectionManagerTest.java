@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.grouper.rest;
+
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+import org.identityconnectors.common.security.GuardedString;
+import org.identityconnectors.framework.common.exceptions.ConfigurationException;
+import org.testng.annotations.Test;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyStore;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertTrue;
+import static org.testng.AssertJUnit.fail;
+
+/**
+ * Tests the HTTP client set up by ConnectionManager. Needs no Grouper: a local HTTP server stands in for it.
+ */
+public class ConnectionManagerTest {
+
+	private static final String TRUST_STORE_PASSWORD = "changeit";
+
+	@Test
+	public void testConnectionsAreReused() throws Exception {
+		Set<Integer> clientPorts = ConcurrentHashMap.newKeySet();
+		HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/", exchange -> {
+			clientPorts.add(exchange.getRemoteAddress().getPort());
+			byte[] body = "{}".getBytes();
+			exchange.sendResponseHeaders(200, body.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(body);
+			}
+		});
+		server.start();
+		ConnectionManager connectionManager = new ConnectionManager(getConfiguration("http://localhost:" + server.getAddress().getPort()));
+		try {
+			for (int i = 0; i < 5; i++) {
+				try (CloseableHttpResponse response = connectionManager.execute(new HttpGet("http://localhost:" + server.getAddress().getPort() + "/"))) {
+					assertEquals("Wrong status", 200, response.getStatusLine().getStatusCode());
+					EntityUtils.consume(response.getEntity());
+				}
+			}
+			assertEquals("Connections were not reused", 1, clientPorts.size());
+			assertEquals("Wrong # of requests counted", 5L, connectionManager.getMetrics().getRequests());
+		} finally {
+			connectionManager.close();
+			server.stop(0);
+		}
+	}
+
+	@Test
+	public void testTrustStore() throws Exception {
+		Path trustStore = Files.createTempFile("grouper-truststore", ".p12");
+		try {
+			KeyStore keyStore = KeyStore.getInstance("PKCS12");
+			keyStore.load(null, TRUST_STORE_PASSWORD.toCharArray());
+			try (OutputStream out = Files.newOutputStream(trustStore)) {
+				keyStore.store(out, TRUST_STORE_PASSWORD.toCharArray());
+			}
+
+			GrouperConfiguration configuration = getConfiguration("https://localhost:9443");
+			configuration.setTrustStorePath(trustStore.toString());
+			configuration.setTrustStoreType("PKCS12");
+			configuration.setTrustStorePassword(new GuardedString(TRUST_STORE_PASSWORD.toCharArray()));
+			new ConnectionManager(configuration).close();
+
+			Files.write(trustStore, "not a trust store".getBytes());
+			assertConfigurationRejected(configuration, trustStore.toString());
+
+			configuration.setTrustStorePath(trustStore + ".missing");
+			assertConfigurationRejected(configuration, trustStore + ".missing");
+		} finally {
+			Files.deleteIfExists(trustStore);
+		}
+	}
+
+	private void assertConfigurationRejected(GrouperConfiguration configuration, String trustStorePath) {
+		try {
+			new ConnectionManager(configuration).close();
+			fail("Trust store " + trustStorePath + " should have been rejected");
+		} catch (ConfigurationException e) {
+			assertTrue("Trust store not reported: " + e.getMessage(), e.getMessage().contains(trustStorePath));
+		}
+	}
+
+	private GrouperConfiguration getConfiguration(String baseUrl) {
+		GrouperConfiguration configuration = new GrouperConfiguration();
+		configuration.setBaseUrl(baseUrl);
+		configuration.setUsername("test");
+		configuration.setPassword(new GuardedString("test".toCharArray()));
+		return configuration;
+	}
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.grouper.rest;
+
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.client.methods.HttpPost;
+import org.identityconnectors.common.security.GuardedString;
+import org.json.JSONObject;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertTrue;
+
+/**
+ * Tests sending requests to more Grouper WS nodes. Needs no Grouper: local HTTP servers stand in for the nodes,
+ * one of them unavailable (HTTP 503), the other one answering with a canned Grouper WS response.
+ */
+public class EndpointFailoverTest {
+
+	private static final String STEMS_RESPONSE = "{\"WsFindStemsResults\":{\"resultMetadata\":{\"success\":\"T\"},"
+			+ "\"stemResults\":[{\"uuid\":\"uuid-1\",\"name\":\"test\",\"extension\":\"test\"}]}}";
+
+	private final AtomicInteger unavailableRequests = new AtomicInteger();
+	private final AtomicInteger availableRequests = new AtomicInteger();
+	private HttpServer unavailable;
+	private HttpServer available;
+
+	@BeforeMethod
+	public void startServers() throws Exception {
+		unavailable = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		unavailable.createContext("/", exchange -> {
+			unavailableRequests.incrementAndGet();
+			exchange.getRequestBody().readAllBytes();
+			exchange.sendResponseHeaders(503, -1);
+			exchange.close();
+		});
+		unavailable.start();
+
+		available = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		available.createContext("/", exchange -> {
+			availableRequests.incrementAndGet();
+			try (InputStream in = exchange.getRequestBody()) {
+				assertTrue("Request body not sent", new JSONObject(new String(in.readAllBytes(), StandardCharsets.UTF_8))
+						.has("WsRestFindStemsRequest"));
+			}
+			byte[] body = STEMS_RESPONSE.getBytes(StandardCharsets.UTF_8);
+			exchange.sendResponseHeaders(200, body.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(body);
+			}
+		});
+		available.start();
+	}
+
+	@AfterMethod
+	public void stopServers() {
+		unavailable.stop(0);
+		available.stop(0);
+	}
+
+	@Test
+	public void testReadRequestFailsOver() throws Exception {
+		GrouperConfiguration configuration = new GrouperConfiguration();
+		configuration.setBaseUrl(getUrl(unavailable));
+		configuration.setAdditionalBaseUrls(new String[] { getUrl(available) });
+		configuration.setUsername("test");
+		configuration.setPassword(new GuardedString("test".toCharArray()));
+		ConnectionManager connectionManager = new ConnectionManager(configuration);
+		try {
+			Processor processor = new Processor(configuration, connectionManager);
+			URI uri = processor.getUriBuilderRelative("/stems").build();
+			HttpPost request = new HttpPost(uri);
+			JSONObject body = new JSONObject().put("WsRestFindStemsRequest", new JSONObject()
+					.put("wsStemQueryFilter", new JSONObject().put("stemQueryFilterType", "FIND_BY_STEM_NAME").put("stemName", "test")));
+
+			Processor.CallResponse response = processor.callRequest(request, body, null);
+
+			assertTrue("Request failed", response.isSuccess());
+			assertEquals("Wrong response", "uuid-1", response.getResponse().getJSONObject("WsFindStemsResults")
+					.getJSONArray("stemResults").getJSONObject(0).getString("uuid"));
+			// nodes having equal scores, the first one (the base URL) is tried first
+			assertEquals("Wrong # of requests to the unavailable node", 1, unavailableRequests.get());
+			assertEquals("Wrong # of requests to the available node", 1, availableRequests.get());
+			assertEquals("Wrong # of failovers", 1L, connectionManager.getMetrics().getFailovers());
+			assertEquals("Request was modified", uri, request.getURI());
+		} finally {
+			connectionManager.close();
+		}
+	}
+
+	private String getUrl(HttpServer server) {
+		return "http://localhost:" + server.getAddress().getPort();
+	}
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright (c) 2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.grouper.rest;
+
+import org.identityconnectors.common.security.GuardedString;
+import org.identityconnectors.framework.common.exceptions.ConfigurationException;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.identityconnectors.framework.common.objects.ConnectorObject;
+import org.identityconnectors.framework.common.objects.ConnectorObjectBuilder;
+import org.identityconnectors.framework.common.objects.OperationOptions;
+import org.identityconnectors.framework.common.objects.ResultsHandler;
+import org.identityconnectors.framework.common.objects.Uid;
+import org.identityconnectors.framework.common.objects.filter.EqualsFilter;
+import org.identityconnectors.framework.common.objects.filter.Filter;
+import org.json.JSONObject;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertTrue;
+import static org.testng.AssertJUnit.fail;
+
+/**
+ * Tests GroupExporter with a stand-in for the group processor, so no Grouper is needed.
+ */
+public class GroupExporterTest {
+
+	private static final Map<String, List<String>> GROUPS = new LinkedHashMap<>();
+
+	static {
+		GROUPS.put("uuid-1", List.of("alice", "bob"));
+		GROUPS.put("uuid-2", List.of("carol"));
+		GROUPS.put("uuid-3", List.of());
+	}
+
+	private Path directory;
+	private ConnectionManager connectionManager;
+	private boolean failing;
+
+	@BeforeMethod
+	public void setUp() throws IOException {
+		directory = Files.createTempDirectory("grouper-export-test");
+		failing = false;
+	}
+
+	@AfterMethod
+	public void tearDown() throws IOException {
+		if (connectionManager != null) {
+			connectionManager.close();
+			connectionManager = null;
+		}
+		try (Stream<Path> files = Files.walk(directory)) {
+			files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+		}
+	}
+
+	@Test
+	public void testExportNdjson() throws IOException {
+		Map<String, Object> report = createExporter(directory.toString()).export("out/groups.ndjson", null);
+
+		assertEquals("Wrong # of groups", 3L, report.get(GroupExporter.REPORT_GROUPS));
+		assertEquals("Wrong # of memberships", 3L, report.get(GroupExporter.REPORT_MEMBERSHIPS));
+		List<String> lines = Files.readAllLines(directory.resolve("out/groups.ndjson"), StandardCharsets.UTF_8);
+		assertEquals("Wrong # of lines", 3, lines.size());
+		int memberships = 0;
+		for (String line : lines) {
+			JSONObject group = new JSONObject(line);
+			assertEquals("Wrong members of " + group, GROUPS.get(group.getString(GroupProcessor.ATTR_UUID)).size(),
+					group.getJSONArray(GroupProcessor.ATTR_MEMBER).length());
+			memberships += group.getJSONArray(GroupProcessor.ATTR_MEMBER).length();
+		}
+		assertEquals("Wrong # of memberships in the file", 3, memberships);
+		assertNoTemporaryFiles();
+	}
+
+	@Test
+	public void testExportBinary() throws IOException {
+		Map<String, Object> report = createExporter(directory.toString())
+				.export(null, Map.of(GroupExporter.ARG_FILE, "groups.bin", GroupExporter.ARG_FORMAT, GroupExporter.FORMAT_BINARY));
+
+		assertEquals("Wrong # of groups", 3L, report.get(GroupExporter.REPORT_GROUPS));
+		assertEquals("Wrong # of memberships", 3L, report.get(GroupExporter.REPORT_MEMBERSHIPS));
+		GroupSnapshot snapshot = GroupSnapshot.open(directory.resolve("groups.bin"));
+		assertEquals("Wrong groups in the file", GROUPS.keySet(), snapshot.getUuids());
+		for (Map.Entry<String, List<String>> group : GROUPS.entrySet()) {
+			assertEquals("Wrong fingerprint of " + group.getKey(), Long.valueOf(GroupSnapshot.fingerprint("test:" + group.getKey(),
+					group.getKey(), group.getValue())), snapshot.getFingerprint(group.getKey()));
+		}
+		assertNoTemporaryFiles();
+	}
+
+	@Test
+	public void testFailedExportKeepsPreviousFile() throws IOException {
+		Path file = directory.resolve("groups.ndjson");
+		Files.write(file, "previous".getBytes(StandardCharsets.UTF_8));
+		failing = true;
+		try {
+			createExporter(directory.toString()).export("groups.ndjson", null);
+			fail("Export should have failed");
+		} catch (ConnectorException e) {
+			// expected
+		}
+		assertEquals("Previous export replaced", List.of("previous"), Files.readAllLines(file, StandardCharsets.UTF_8));
+		assertNoTemporaryFiles();
+	}
+
+	@Test
+	public void testFileOutsideExportDirectoryRejected() {
+		GroupExporter exporter = createExporter(directory.toString());
+		for (String file : List.of(directory.resolve("groups.ndjson").toString(), "../groups.ndjson", "out/../../groups.ndjson", ".")) {
+			try {
+				exporter.export(file, null);
+				fail("File " + file + " should have been rejected");
+			} catch (IllegalArgumentException e) {
+				// expected
+			}
+		}
+	}
+
+	@Test
+	public void testExportDirectoryRequired() {
+		try {
+			createExporter(null).export("groups.ndjson", null);
+			fail("Export without export directory should have been rejected");
+		} catch (ConfigurationException e) {
+			// expected
+		}
+	}
+
+	private GroupExporter createExporter(String exportDirectory) {
+		GrouperConfiguration configuration = new GrouperConfiguration();
+		configuration.setBaseUrl("http://localhost:9");
+		configuration.setUsername("test");
+		configuration.setPassword(new GuardedString("test".toCharArray()));
+		configuration.setExportDirectory(exportDirectory);
+		connectionManager = new ConnectionManager(configuration);
+		GroupProcessor groupProcessor = new GroupProcessor(configuration, connectionManager, new SubjectCache(10), null) {
+			@Override
+			void read(Filter filter, ResultsHandler handler, OperationOptions options) {
+				if (filter == null) {
+					for (String uuid : GROUPS.keySet()) {
+						if (failing && uuid.equals("uuid-3")) {
+							throw new ConnectorException("Listing failed");
+						}
+						handler.handle(createGroup(uuid, null));
+					}
+				} else {
+					String uuid = ((Uid) ((EqualsFilter) filter).getAttribute()).getUidValue();
+					handler.handle(createGroup(uuid, GROUPS.get(uuid)));
+				}
+			}
+		};
+		return new GroupExporter(configuration, groupProcessor);
+	}
+
+	private static ConnectorObject createGroup(String uuid, List<String> members) {
+		ConnectorObjectBuilder builder = new ConnectorObjectBuilder()
+				.setUid(uuid)
+				.setName("test:" + uuid)
+				.addAttribute(GroupProcessor.ATTR_EXTENSION, uuid);
+		if (members != null) {
+			builder.addAttribute(GroupProcessor.ATTR_MEMBER, members);
+		}
+		return builder.build();
+	}
+
+	private void assertNoTemporaryFiles() throws IOException {
+		try (Stream<Path> files = Files.walk(directory)) {
+			assertTrue("Temporary files left", files.noneMatch(file -> file.toString().endsWith(".tmp")));
+		}
+	}
+}
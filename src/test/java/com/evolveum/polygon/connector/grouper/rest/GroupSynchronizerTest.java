@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.grouper.rest;
+
+import org.identityconnectors.common.security.GuardedString;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.identityconnectors.framework.common.objects.ConnectorObjectBuilder;
+import org.identityconnectors.framework.common.objects.OperationOptions;
+import org.identityconnectors.framework.common.objects.ResultsHandler;
+import org.identityconnectors.framework.common.objects.SyncDelta;
+import org.identityconnectors.framework.common.objects.SyncToken;
+import org.identityconnectors.framework.common.objects.filter.Filter;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertTrue;
+import static org.testng.AssertJUnit.fail;
+
+/**
+ * Tests GroupSynchronizer with a stand-in for the group processor, so no Grouper is needed.
+ */
+public class GroupSynchronizerTest {
+
+	private final Map<String, List<String>> groups = new LinkedHashMap<>();
+	private Path directory;
+	private ConnectionManager connectionManager;
+	private CountDownLatch listingStarted;
+	private CountDownLatch listingReleased;
+
+	@BeforeMethod
+	public void setUp() throws IOException {
+		directory = Files.createTempDirectory("grouper-sync-test");
+		groups.clear();
+		groups.put("uuid-1", List.of("alice", "bob"));
+		groups.put("uuid-2", List.of("carol"));
+		listingStarted = null;
+		listingReleased = null;
+	}
+
+	@AfterMethod
+	public void tearDown() throws IOException {
+		if (connectionManager != null) {
+			connectionManager.close();
+			connectionManager = null;
+		}
+		try (Stream<Path> files = Files.walk(directory)) {
+			files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+		}
+	}
+
+	@Test
+	public void testIncrementalSync() {
+		GroupSynchronizer synchronizer = createSynchronizer();
+		List<SyncDelta> deltas = new ArrayList<>();
+		synchronizer.sync(null, deltas::add);
+		assertEquals("Wrong # of changes in the first sync", 2, deltas.size());
+
+		SyncToken token = synchronizer.getLatestSyncToken();
+		deltas.clear();
+		synchronizer.sync(token, deltas::add);
+		assertEquals("Wrong # of changes without modifications", 0, deltas.size());
+
+		groups.put("uuid-2", List.of("carol", "dave"));
+		deltas.clear();
+		synchronizer.sync(synchronizer.getLatestSyncToken(), deltas::add);
+		assertEquals("Wrong # of changes", 1, deltas.size());
+		assertEquals("Wrong group changed", "uuid-2", deltas.get(0).getObject().getUid().getUidValue());
+	}
+
+	@Test
+	public void testConcurrentSyncFails() throws Exception {
+		GroupSynchronizer synchronizer = createSynchronizer();
+		listingStarted = new CountDownLatch(1);
+		listingReleased = new CountDownLatch(1);
+		ExecutorService threads = Executors.newSingleThreadExecutor();
+		try {
+			Future<?> first = threads.submit(() -> synchronizer.sync(null, delta -> true));
+			assertTrue("First sync not started", listingStarted.await(10, TimeUnit.SECONDS));
+			try {
+				createSynchronizer().sync(null, delta -> true);
+				fail("Sync of a locked snapshot should have failed");
+			} catch (ConnectorException e) {
+				assertTrue("Lock not reported: " + e.getMessage(), e.getMessage().contains("locked"));
+			}
+			listingReleased.countDown();
+			first.get(10, TimeUnit.SECONDS);
+		} finally {
+			listingReleased.countDown();
+			threads.shutdownNow();
+		}
+
+		// the lock is released with the sync
+		listingStarted = null;
+		List<SyncDelta> deltas = new ArrayList<>();
+		synchronizer.sync(synchronizer.getLatestSyncToken(), deltas::add);
+		assertEquals("Wrong # of changes", 0, deltas.size());
+	}
+
+	private GroupSynchronizer createSynchronizer() {
+		GrouperConfiguration configuration = new GrouperConfiguration();
+		configuration.setBaseUrl("http://localhost:9");
+		configuration.setUsername("test");
+		configuration.setPassword(new GuardedString("test".toCharArray()));
+		configuration.setSnapshotDirectory(directory.toString());
+		if (connectionManager == null) {
+			connectionManager = new ConnectionManager(configuration);
+		}
+		GroupProcessor groupProcessor = new GroupProcessor(configuration, connectionManager, new SubjectCache(10), null) {
+			@Override
+			void read(Filter filter, ResultsHandler handler, OperationOptions options) {
+				if (listingStarted != null) {
+					listingStarted.countDown();
+					try {
+						listingReleased.await(10, TimeUnit.SECONDS);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+				for (Map.Entry<String, List<String>> group : groups.entrySet()) {
+					handler.handle(new ConnectorObjectBuilder()
+							.setUid(group.getKey())
+							.setName("test:" + group.getKey())
+							.addAttribute(GroupProcessor.ATTR_EXTENSION, group.getKey())
+							.addAttribute(GroupProcessor.ATTR_MEMBER, group.getValue())
+							.build());
+				}
+			}
+		};
+		return new GroupSynchronizer(configuration, groupProcessor);
+	}
+}
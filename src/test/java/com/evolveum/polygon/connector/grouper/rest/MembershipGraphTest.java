@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.grouper.rest;
+
+import org.testng.annotations.Test;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static org.testng.AssertJUnit.assertEquals;
+
+/**
+ * Tests computation of effective members by MembershipGraph.
+ */
+public class MembershipGraphTest {
+
+	@Test
+	public void testDiamond() {
+		// top -> left, right; left -> bottom; right -> bottom
+		MembershipGraph graph = new MembershipGraph();
+		graph.addGroup("top", List.of("t"), List.of("left", "right"));
+		graph.addGroup("left", List.of("l", "shared"), List.of("bottom"));
+		graph.addGroup("right", List.of("r", "shared"), List.of("bottom"));
+		graph.addGroup("bottom", List.of("b"), List.of());
+
+		assertEquals("Wrong members of top", Set.of("t", "l", "r", "shared", "b"), effective(graph, "top"));
+		assertEquals("Wrong number of members of top", 5, graph.getEffectiveMembers("top").size());
+		assertEquals("Wrong members of left", Set.of("l", "shared", "b"), effective(graph, "left"));
+		assertEquals("Wrong members of bottom", Set.of("b"), effective(graph, "bottom"));
+		assertEquals("Wrong group count", 4, graph.getGroupCount());
+		assertEquals("Wrong subject count", 5, graph.getSubjectCount());
+	}
+
+	@Test
+	public void testCycle() {
+		// a -> b -> c -> a, and d -> b
+		MembershipGraph graph = new MembershipGraph();
+		graph.addGroup("a", List.of("1"), List.of("b"));
+		graph.addGroup("b", List.of("2"), List.of("c"));
+		graph.addGroup("c", List.of("3"), List.of("a"));
+		graph.addGroup("d", List.of("4"), List.of("b"));
+
+		Set<String> cycle = Set.of("1", "2", "3");
+		assertEquals("Wrong members of a", cycle, effective(graph, "a"));
+		assertEquals("Wrong members of b", cycle, effective(graph, "b"));
+		assertEquals("Wrong members of c", cycle, effective(graph, "c"));
+		assertEquals("Wrong members of d", Set.of("1", "2", "3", "4"), effective(graph, "d"));
+	}
+
+	@Test
+	public void testSelfMembership() {
+		MembershipGraph graph = new MembershipGraph();
+		graph.addGroup("self", List.of("1"), List.of("self"));
+
+		assertEquals("Wrong members", Set.of("1"), effective(graph, "self"));
+	}
+
+	@Test
+	public void testMissingNestedGroup() {
+		MembershipGraph graph = new MembershipGraph();
+		graph.addGroup("parent", List.of("1"), List.of("missing"));
+
+		assertEquals("Wrong members of parent", Set.of("1"), effective(graph, "parent"));
+		assertEquals("Wrong members of missing group", Set.of(), effective(graph, "missing"));
+		assertEquals("Wrong members of unknown group", List.of(), graph.getEffectiveMembers("unknown"));
+	}
+
+	@Test
+	public void testDuplicateImmediateMembers() {
+		MembershipGraph graph = new MembershipGraph();
+		graph.addGroup("group", List.of("1", "2", "1"), List.of());
+
+		assertEquals("Wrong number of members", 2, graph.getEffectiveMembers("group").size());
+	}
+
+	private static Set<String> effective(MembershipGraph graph, String groupUuid) {
+		Collection<String> members = graph.getEffectiveMembers(groupUuid);
+		return new TreeSet<>(members);
+	}
+}
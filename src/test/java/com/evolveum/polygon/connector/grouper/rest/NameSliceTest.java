@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.grouper.rest;
+
+import org.identityconnectors.framework.common.objects.AttributeBuilder;
+import org.identityconnectors.framework.common.objects.Name;
+import org.identityconnectors.framework.common.objects.filter.ContainsAllValuesFilter;
+import org.identityconnectors.framework.common.objects.filter.EqualsFilter;
+import org.identityconnectors.framework.common.objects.filter.FilterBuilder;
+import org.identityconnectors.framework.common.objects.filter.LessThanOrEqualFilter;
+import org.testng.annotations.Test;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertNull;
+import static org.testng.AssertJUnit.assertTrue;
+
+/**
+ * Tests recognition of name slice filters by NameSlice.
+ */
+public class NameSliceTest {
+
+	private static final String NATIVE_NAME = GroupProcessor.ATTR_NAME;
+
+	@Test
+	public void testInterval() {
+		NameSlice slice = NameSlice.of(FilterBuilder.and(
+				FilterBuilder.greaterThanOrEqualTo(AttributeBuilder.build(Name.NAME, "app:groups:b")),
+				FilterBuilder.lessThan(AttributeBuilder.build(Name.NAME, "app:groups:d"))), NATIVE_NAME);
+
+		assertTrue("Lower bound not included", slice.contains("app:groups:b"));
+		assertTrue("Name in the slice not included", slice.contains("app:groups:c1"));
+		assertFalse("Upper bound included", slice.contains("app:groups:d"));
+		assertFalse("Name below the slice included", slice.contains("app:groups:a"));
+		assertEquals("Wrong common prefix", "app:groups:", slice.getCommonPrefix());
+	}
+
+	@Test
+	public void testPrefix() {
+		NameSlice slice = NameSlice.of(FilterBuilder.and(
+				FilterBuilder.startsWith(AttributeBuilder.build(NATIVE_NAME, "app:x")),
+				new LessThanOrEqualFilter(AttributeBuilder.build(Name.NAME, "app:xz"))), NATIVE_NAME);
+
+		assertTrue("Name with the prefix not included", slice.contains("app:xa"));
+		assertFalse("Name without the prefix included", slice.contains("app:y"));
+		assertEquals("Wrong common prefix", "app:x", slice.getCommonPrefix());
+	}
+
+	@Test
+	public void testOtherFiltersAreNotSlices() {
+		assertNull("Equals is a slice",
+				NameSlice.of(new EqualsFilter(AttributeBuilder.build(Name.NAME, "app:a")), NATIVE_NAME));
+		assertNull("Multi-valued Equals is a slice",
+				NameSlice.of(new EqualsFilter(AttributeBuilder.build(Name.NAME, "app:a", "app:b")), NATIVE_NAME));
+		assertNull("ContainsAllValues is a slice",
+				NameSlice.of(new ContainsAllValuesFilter(AttributeBuilder.build(Name.NAME, "app:a", "app:b")), NATIVE_NAME));
+		assertNull("Slice of another attribute",
+				NameSlice.of(FilterBuilder.startsWith(AttributeBuilder.build(GroupProcessor.ATTR_EXTENSION, "a")), NATIVE_NAME));
+		assertNull("And with a non-slice filter is a slice", NameSlice.of(FilterBuilder.and(
+				FilterBuilder.startsWith(AttributeBuilder.build(Name.NAME, "app:")),
+				new EqualsFilter(AttributeBuilder.build(GroupProcessor.ATTR_MEMBER, "alice", "bob"))), NATIVE_NAME));
+	}
+}
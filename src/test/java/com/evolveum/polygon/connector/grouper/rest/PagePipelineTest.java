@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.grouper.rest;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertSame;
+import static org.testng.AssertJUnit.assertTrue;
+import static org.testng.AssertJUnit.fail;
+
+/**
+ * Tests the stages of PagePipeline: backpressure, stopping and failures.
+ */
+public class PagePipelineTest {
+
+	private final ExecutorService executor = Executors.newCachedThreadPool();
+
+	@AfterClass
+	public void shutDown() {
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void testAllPagesDeliveredInOrder() {
+		for (ExecutorService stages : new ExecutorService[] { null, executor }) {
+			List<Integer> delivered = new ArrayList<>();
+			PagePipeline<Integer, String> pipeline = new PagePipeline<>(stages,
+					pageNumber -> pageNumber <= 5 ? pageNumber : null, String::valueOf);
+
+			assertTrue("Listing stopped", pipeline.run(1, page -> delivered.add(Integer.parseInt(page))));
+			assertEquals("Wrong pages", List.of(1, 2, 3, 4, 5), delivered);
+		}
+	}
+
+	@Test
+	public void testSlowConsumerHoldsFetchingBack() throws Exception {
+		AtomicInteger fetched = new AtomicInteger();
+		CountDownLatch consuming = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		PagePipeline<Integer, Integer> pipeline = new PagePipeline<>(executor, pageNumber -> {
+			fetched.incrementAndGet();
+			return pageNumber;
+		}, page -> page);
+
+		Future<Boolean> run = executor.submit(() -> pipeline.run(1, page -> {
+			consuming.countDown();
+			await(release);
+			return false;
+		}));
+		assertTrue("Consumer not called", consuming.await(10, TimeUnit.SECONDS));
+		Thread.sleep(300);
+		// the page being consumed, two in each queue and one waiting to be put in each of them
+		assertTrue("Pages fetched ahead of a blocked consumer: " + fetched.get(), fetched.get() <= 7);
+		release.countDown();
+		assertFalse("Stop not reported", run.get(10, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void testConsumerStopClosesFetcher() {
+		AtomicInteger fetched = new AtomicInteger();
+		AtomicBoolean closed = new AtomicBoolean();
+		PagePipeline<Integer, Integer> pipeline = new PagePipeline<>(null, new PagePipeline.Fetcher<Integer>() {
+
+			@Override
+			public Integer fetch(int pageNumber) {
+				fetched.incrementAndGet();
+				return pageNumber;
+			}
+
+			@Override
+			public void close() {
+				closed.set(true);
+			}
+		}, page -> page);
+
+		assertFalse("Stop not reported", pipeline.run(1, page -> page < 3));
+		assertEquals("Pages fetched after stop", 3, fetched.get());
+		assertTrue("Fetcher not closed", closed.get());
+	}
+
+	@Test
+	public void testFetchFailureRethrown() {
+		RuntimeException failure = new IllegalStateException("fetch failed");
+		PagePipeline<Integer, Integer> pipeline = new PagePipeline<>(executor, pageNumber -> {
+			if (pageNumber == 3) {
+				throw failure;
+			}
+			return pageNumber;
+		}, page -> page);
+		List<Integer> delivered = new ArrayList<>();
+		try {
+			pipeline.run(1, delivered::add);
+			fail("Failure not rethrown");
+		} catch (IllegalStateException e) {
+			assertSame("Wrong failure", failure, e);
+		}
+		assertEquals("Pages before the failure not delivered", List.of(1, 2), delivered);
+	}
+
+	@Test(timeOut = 10000)
+	public void testErrorInStageRethrown() {
+		PagePipeline<Integer, Integer> pipeline = new PagePipeline<>(executor, pageNumber -> pageNumber, page -> {
+			if (page == 2) {
+				throw new AssertionError("build failed");
+			}
+			return page;
+		});
+		try {
+			pipeline.run(1, page -> true);
+			fail("Error not rethrown");
+		} catch (AssertionError e) {
+			assertEquals("Wrong error", "build failed", e.getMessage());
+		}
+	}
+
+	@Test
+	public void testConcurrentFetcherKeepsOrder() {
+		AtomicInteger requested = new AtomicInteger();
+		PagePipeline.Fetcher<Integer> fetcher = PagePipeline.concurrent(pageNumber -> {
+			requested.incrementAndGet();
+			// later pages come back sooner
+			sleep(20 - pageNumber);
+			return pageNumber <= 10 ? pageNumber : null;
+		}, executor, 4, page -> false);
+		List<Integer> delivered = new ArrayList<>();
+
+		assertTrue("Listing stopped", new PagePipeline<>(executor, fetcher, page -> page).run(1, delivered::add));
+		assertEquals("Wrong pages", List.of(1, 2, 3, 4, 5, 6, 7, 8, 9, 10), delivered);
+		assertTrue("Too many pages requested in vain: " + requested.get(), requested.get() <= 10 + 4);
+	}
+
+	private static void await(CountDownLatch latch) {
+		try {
+			latch.await(10, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static void sleep(long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.grouper.rest;
+
+import org.testng.annotations.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertTrue;
+import static org.testng.AssertJUnit.fail;
+
+/**
+ * Tests the rate and concurrency limits of RequestGovernor.
+ */
+public class RequestGovernorTest {
+
+	@Test
+	public void testUnlimited() {
+		RequestGovernor governor = RequestGovernor.get("unlimited", 0, 0, 0);
+		for (int i = 0; i < 1000; i++) {
+			governor.acquire(RequestKind.LISTING);
+		}
+		governor.release(System.nanoTime(), 503);
+		assertEquals("Wrong limit", 0, governor.getConcurrencyLimit());
+	}
+
+	@Test
+	public void testTokenBucket() {
+		RequestGovernor governor = RequestGovernor.get("rate", 20, 0, 0);
+		long start = System.nanoTime();
+		for (int i = 0; i < 20; i++) {
+			governor.release(governor.acquire(RequestKind.LISTING), 200);
+		}
+		long burst = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		assertTrue("Burst was held back for " + burst + " ms", burst < 200);
+
+		start = System.nanoTime();
+		for (int i = 0; i < 10; i++) {
+			governor.release(governor.acquire(RequestKind.LISTING), 200);
+		}
+		long limited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		assertTrue("10 requests over the burst took only " + limited + " ms", limited >= 400);
+	}
+
+	@Test
+	public void testAdditiveIncreaseMultiplicativeDecrease() throws Exception {
+		RequestGovernor governor = RequestGovernor.get("aimd", 0, 8, 0);
+		assertEquals("Wrong initial limit", 8, governor.getConcurrencyLimit());
+
+		long start = governor.acquire(RequestKind.LISTING);
+		Thread.sleep(200);
+		governor.release(start, 200);
+		Thread.sleep(250);
+
+		governor.release(governor.acquire(RequestKind.LISTING), 500);
+		assertEquals("Limit lowered by an error reported by Grouper", 8, governor.getConcurrencyLimit());
+		governor.release(governor.acquire(RequestKind.LISTING), 503);
+		assertEquals("Limit not halved", 4, governor.getConcurrencyLimit());
+		governor.release(governor.acquire(RequestKind.LISTING), -1);
+		assertEquals("Limit halved twice within one latency interval", 4, governor.getConcurrencyLimit());
+
+		for (int i = 0; i < 5; i++) {
+			governor.release(governor.acquire(RequestKind.LISTING), 200);
+		}
+		assertEquals("Limit not increased by one per window", 5, governor.getConcurrencyLimit());
+	}
+
+	@Test
+	public void testConcurrencyLimit() throws Exception {
+		RequestGovernor governor = RequestGovernor.get("concurrency", 0, 1, 0);
+		long first = governor.acquire(RequestKind.LISTING);
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			Future<Long> second = executor.submit(() -> governor.acquire(RequestKind.LISTING));
+			try {
+				second.get(200, TimeUnit.MILLISECONDS);
+				fail("Limit of requests in flight exceeded");
+			} catch (TimeoutException e) {
+				// expected
+			}
+			governor.release(first, 200);
+			governor.release(second.get(10, TimeUnit.SECONDS), 200);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testLookupJumpsAheadOfBulkRequests() throws Exception {
+		RequestGovernor governor = RequestGovernor.get("priority", 0, 1, 0);
+		List<RequestKind> order = new CopyOnWriteArrayList<>();
+		long first = governor.acquire(RequestKind.LISTING);
+		ExecutorService executor = Executors.newFixedThreadPool(3);
+		try {
+			Future<?> listing = executor.submit(() -> send(governor, RequestKind.LISTING, order));
+			Thread.sleep(100);
+			Future<?> paging = executor.submit(() -> send(governor, RequestKind.MEMBER_PAGING, order));
+			Thread.sleep(100);
+			Future<?> lookup = executor.submit(() -> send(governor, RequestKind.LOOKUP, order));
+			Thread.sleep(100);
+			assertTrue("Request sent over the limit: " + order, order.isEmpty());
+
+			governor.release(first, 200);
+			lookup.get(10, TimeUnit.SECONDS);
+			paging.get(10, TimeUnit.SECONDS);
+			listing.get(10, TimeUnit.SECONDS);
+			assertEquals("Wrong order of requests", List.of(RequestKind.LOOKUP, RequestKind.MEMBER_PAGING, RequestKind.LISTING), order);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testLookupUsesReservedSlot() throws Exception {
+		RequestGovernor governor = RequestGovernor.get("reserved", 0, 2, 1);
+		long bulk = governor.acquire(RequestKind.LISTING);
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			Future<Long> secondBulk = executor.submit(() -> governor.acquire(RequestKind.LISTING));
+			try {
+				secondBulk.get(200, TimeUnit.MILLISECONDS);
+				fail("Bulk request used the slot reserved for lookups");
+			} catch (TimeoutException e) {
+				// expected
+			}
+			// sent at once, although a bulk request waits
+			governor.release(governor.acquire(RequestKind.LOOKUP), 200);
+			governor.release(bulk, 200);
+			governor.release(secondBulk.get(10, TimeUnit.SECONDS), 200);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private static void send(RequestGovernor governor, RequestKind kind, List<RequestKind> order) {
+		long start = governor.acquire(kind);
+		order.add(kind);
+		governor.release(start, 200);
+	}
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.grouper.rest;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertNull;
+import static org.testng.AssertJUnit.assertTrue;
+
+/**
+ * Tests recording and resuming of scans by ScanCheckpoint.
+ */
+public class ScanCheckpointTest {
+
+	private static final String QUERY = "endpoint|groups|{}";
+
+	private Path directory;
+
+	@BeforeMethod
+	public void createDirectory() throws IOException {
+		directory = Files.createTempDirectory("grouper-checkpoint-test");
+	}
+
+	@AfterMethod
+	public void deleteDirectory() throws IOException {
+		try (Stream<Path> files = Files.walk(directory)) {
+			files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+		}
+	}
+
+	@Test
+	public void testNotConfigured() {
+		assertNull("Checkpoint without directory", ScanCheckpoint.open(null, QUERY, true));
+	}
+
+	@Test
+	public void testResumeOnlyWhenRequested() {
+		failAtPage(4);
+
+		ScanCheckpoint fresh = ScanCheckpoint.open(directory.toString(), QUERY, false);
+		assertEquals("Scan resumed without being asked to", 1, fresh.getStartPage());
+		assertFalse("Fresh scan skips groups", fresh.isDelivered("g-3-0"));
+		fresh.finished();
+
+		ScanCheckpoint resumed = ScanCheckpoint.open(directory.toString(), QUERY, true);
+		assertEquals("Wrong page to resume from", 3, resumed.getStartPage());
+		assertTrue("Group from the page before the failed one not skipped", resumed.isDelivered("g-2-0"));
+		assertTrue("Group from the failed page not skipped", resumed.isDelivered("g-4-0"));
+		resumed.finished();
+	}
+
+	@Test
+	public void testOtherQueryNotResumed() {
+		failAtPage(4);
+
+		ScanCheckpoint other = ScanCheckpoint.open(directory.toString(), QUERY + "x", true);
+		assertEquals("Checkpoint of another query resumed", 1, other.getStartPage());
+		other.finished();
+	}
+
+	@Test
+	public void testCheckpointResumedOnce() {
+		failAtPage(4);
+
+		ScanCheckpoint first = ScanCheckpoint.open(directory.toString(), QUERY, true);
+		ScanCheckpoint second = ScanCheckpoint.open(directory.toString(), QUERY, true);
+		assertEquals("Checkpoint not resumed", 3, first.getStartPage());
+		assertEquals("Checkpoint resumed twice", 1, second.getStartPage());
+		first.finished();
+		second.finished();
+	}
+
+	@Test
+	public void testRunningScanNotResumed() {
+		ScanCheckpoint running = ScanCheckpoint.open(directory.toString(), QUERY, false);
+		deliverPage(running, 1);
+		deliverPage(running, 2);
+
+		ScanCheckpoint other = ScanCheckpoint.open(directory.toString(), QUERY, true);
+		assertEquals("Checkpoint of a running scan resumed", 1, other.getStartPage());
+		other.finished();
+		running.finished();
+	}
+
+	@Test
+	public void testGroupsSkippedUntilPageAfterFailedOne() {
+		failAtPage(4);
+
+		ScanCheckpoint resumed = ScanCheckpoint.open(directory.toString(), QUERY, true);
+		deliverPage(resumed, 3);
+		assertTrue("Group from the failed page not skipped on it", resumed.isDelivered("g-4-0"));
+		deliverPage(resumed, 4);
+		assertTrue("Group from the failed page not skipped on the page after it", resumed.isDelivered("g-4-0"));
+		deliverPage(resumed, 5);
+		assertFalse("Groups skipped beyond the page after the failed one", resumed.isDelivered("g-4-0"));
+		resumed.finished();
+	}
+
+	@Test
+	public void testResumedScanFailingAgain() {
+		failAtPage(4);
+
+		ScanCheckpoint resumed = ScanCheckpoint.open(directory.toString(), QUERY, true);
+		deliverPage(resumed, 3);
+		resumed.delivered("g-4-0");
+		resumed.failed();
+
+		ScanCheckpoint again = ScanCheckpoint.open(directory.toString(), QUERY, true);
+		assertEquals("Wrong page to resume from", 3, again.getStartPage());
+		assertTrue("Group delivered before the first failure not skipped", again.isDelivered("g-4-1"));
+		again.finished();
+	}
+
+	@Test
+	public void testFinishedScanLeavesNothing() throws IOException {
+		failAtPage(2);
+		ScanCheckpoint.open(directory.toString(), QUERY, true).finished();
+
+		try (Stream<Path> files = Files.list(directory)) {
+			assertEquals("Files left in the checkpoint directory", 0, files.count());
+		}
+	}
+
+	/**
+	 * Delivers pages up to the given one (half of the last one) and fails.
+	 */
+	private void failAtPage(int page) {
+		ScanCheckpoint checkpoint = ScanCheckpoint.open(directory.toString(), QUERY, false);
+		for (int i = 1; i < page; i++) {
+			deliverPage(checkpoint, i);
+		}
+		checkpoint.delivered("g-" + page + "-0");
+		checkpoint.delivered("g-" + page + "-1");
+		checkpoint.failed();
+	}
+
+	private static void deliverPage(ScanCheckpoint checkpoint, int page) {
+		for (int i = 0; i < 4; i++) {
+			String uuid = "g-" + page + "-" + i;
+			if (!checkpoint.isDelivered(uuid)) {
+				checkpoint.delivered(uuid);
+			}
+		}
+		checkpoint.pageDone();
+	}
+}
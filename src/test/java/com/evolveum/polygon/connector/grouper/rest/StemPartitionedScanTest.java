@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.grouper.rest;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.identityconnectors.common.security.GuardedString;
+import org.identityconnectors.framework.common.objects.ConnectorObject;
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.identityconnectors.framework.common.objects.OperationOptionsBuilder;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.testng.AssertJUnit.assertEquals;
+
+/**
+ * Tests listing of groups with members by a stem partitioned scan. Needs no Grouper: a local HTTP server answers
+ * with canned Grouper WS responses.
+ */
+public class StemPartitionedScanTest {
+
+	private static final String SOURCE = "ldap";
+	private static final int GROUPS = 6;
+	private static final int MEMBERS = 5;
+	private static final int MEMBER_PAGE_SIZE = 2;
+
+	private HttpServer server;
+	private GrouperConnector connector;
+
+	@BeforeMethod
+	public void startServer() throws Exception {
+		server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/", this::respond);
+		server.start();
+	}
+
+	@AfterMethod
+	public void stopServer() {
+		if (connector != null) {
+			connector.dispose();
+			connector = null;
+		}
+		server.stop(0);
+	}
+
+	/**
+	 * With a single worker busy scanning the stem (and waiting for the groups to be taken), the following pages
+	 * of members must not be requested by the workers.
+	 */
+	@Test(timeOut = 20000)
+	public void testMembersWithSingleWorker() {
+		GrouperConfiguration configuration = new GrouperConfiguration();
+		configuration.setBaseUrl("http://localhost:" + server.getAddress().getPort());
+		configuration.setUsername("test");
+		configuration.setPassword(new GuardedString("test".toCharArray()));
+		configuration.setSubjectSource(SOURCE);
+		configuration.setParallelStemScan(true);
+		configuration.setMaxConcurrentRequests(1);
+		configuration.setPageSize(1);
+		configuration.setMemberPageSize(MEMBER_PAGE_SIZE);
+		connector = new GrouperConnector();
+		connector.init(configuration);
+
+		List<ConnectorObject> groups = new ArrayList<>();
+		connector.executeQuery(new ObjectClass(GroupProcessor.OBJECT_CLASS_NAME), null, groups::add,
+				new OperationOptionsBuilder().setAttributesToGet(GroupProcessor.ATTR_MEMBER).build());
+
+		assertEquals("Wrong # of groups", GROUPS, groups.size());
+		for (ConnectorObject group : groups) {
+			assertEquals("Wrong members of " + group.getName().getNameValue(), MEMBERS,
+					group.getAttributeByName(GroupProcessor.ATTR_MEMBER).getValue().size());
+		}
+	}
+
+	private void respond(HttpExchange exchange) throws IOException {
+		JSONObject request;
+		try (InputStream in = exchange.getRequestBody()) {
+			request = new JSONObject(new String(in.readAllBytes(), StandardCharsets.UTF_8));
+		}
+		JSONObject response;
+		if (request.has("WsRestFindStemsRequest")) {
+			response = results("WsFindStemsResults", "stemResults", new JSONArray());
+		} else if (request.has("WsRestFindGroupsRequest")) {
+			int pageNumber = request.getJSONObject("WsRestFindGroupsRequest").getJSONObject("wsQueryFilter").getInt("pageNumber");
+			JSONArray groups = new JSONArray();
+			if (pageNumber <= GROUPS) {
+				groups.put(group(pageNumber));
+			}
+			response = results("WsFindGroupsResults", "groupResults", groups);
+		} else {
+			JSONObject getMembers = request.getJSONObject("WsRestGetMembersRequest");
+			String uuid = getMembers.getJSONArray("wsGroupLookups").getJSONObject(0).getString("uuid");
+			int pageNumber = getMembers.getInt("pageNumber");
+			JSONArray subjects = new JSONArray();
+			for (int i = (pageNumber - 1) * MEMBER_PAGE_SIZE; i < Math.min(pageNumber * MEMBER_PAGE_SIZE, MEMBERS); i++) {
+				subjects.put(new JSONObject().put("id", uuid + "-member-" + i).put("sourceId", SOURCE).put("success", "T"));
+			}
+			JSONObject result = new JSONObject().put("wsGroup", group(Integer.parseInt(uuid.substring("uuid-".length()))));
+			if (subjects.length() > 0) {
+				result.put("wsSubjects", subjects);
+			}
+			response = results("WsGetMembersResults", "results", new JSONArray().put(result));
+		}
+		byte[] body = response.toString().getBytes(StandardCharsets.UTF_8);
+		exchange.sendResponseHeaders(200, body.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(body);
+		}
+	}
+
+	private JSONObject group(int number) {
+		return new JSONObject().put("uuid", "uuid-" + number).put("name", "test:group" + number).put("extension", "group" + number);
+	}
+
+	private JSONObject results(String root, String name, JSONArray values) {
+		return new JSONObject().put(root, new JSONObject()
+				.put("resultMetadata", new JSONObject().put("success", "T"))
+				.put(name, values));
+	}
+}
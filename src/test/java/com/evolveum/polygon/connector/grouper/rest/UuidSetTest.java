@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.grouper.rest;
+
+import org.testng.annotations.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertTrue;
+
+/**
+ * Tests UuidSet against a regular hash set.
+ */
+public class UuidSetTest {
+
+	@Test
+	public void testHexUuids() {
+		UuidSet set = new UuidSet();
+		Set<String> expected = new HashSet<>();
+		// enough to resize the table several times
+		for (int i = 0; i < 10000; i++) {
+			String uuid = UUID.randomUUID().toString().replace("-", "");
+			assertTrue("New UUID reported as present: " + uuid, set.add(uuid));
+			expected.add(uuid);
+		}
+		for (String uuid : expected) {
+			assertTrue("UUID lost: " + uuid, set.contains(uuid));
+			assertFalse("Duplicate UUID added: " + uuid, set.add(uuid));
+		}
+		assertEquals("Wrong size", expected.size(), set.size());
+		assertFalse("Unknown UUID reported as present", set.contains(UUID.randomUUID().toString().replace("-", "")));
+	}
+
+	@Test
+	public void testDashesAreIgnored() {
+		UuidSet set = new UuidSet();
+		String uuid = UUID.randomUUID().toString();
+		assertTrue(set.add(uuid));
+		assertTrue("UUID without dashes not found", set.contains(uuid.replace("-", "")));
+		assertFalse("UUID without dashes added again", set.add(uuid.replace("-", "")));
+		assertEquals("Wrong size", 1, set.size());
+	}
+
+	@Test
+	public void testOtherIdentifiers() {
+		UuidSet set = new UuidSet();
+		String[] others = { "", "etc:sysadmingroup", "0123456789abcdef", "0123456789abcdef0123456789abcdefff", "0123456789abcdef0123456789abcdeg" };
+		for (String other : others) {
+			assertTrue("New identifier reported as present: " + other, set.add(other));
+		}
+		for (String other : others) {
+			assertTrue("Identifier lost: " + other, set.contains(other));
+			assertFalse("Duplicate identifier added: " + other, set.add(other));
+		}
+		assertFalse("Prefix of a stored identifier reported as present", set.contains("0123456789abcdef0123456789abcdef"));
+		assertEquals("Wrong size", others.length, set.size());
+	}
+}
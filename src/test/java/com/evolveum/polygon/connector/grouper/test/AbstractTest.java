@@ -37,6 +37,7 @@ class AbstractTest {
 	static final String TEST_USER = "banderson";
 	static final String TEST_GROUP = "etc:sysadmingroup";
 	static final String TEST_GROUP_NON_EXISTENT = "etc:thisGroupDoesNotExist";
+	static final String TEST_USER_NON_EXISTENT = "thisUserDoesNotExist";
 	static final String TEST_UUID_NON_EXISTENT = "dd089842948329438249284928289XXX";
 
 	// Connector configuration
@@ -59,6 +60,7 @@ class AbstractTest {
 	final OperationOptions options = new OperationOptions(new HashMap<>());
 
 	final ArrayList<ConnectorObject> results = new ArrayList<>();
+	SearchResult searchResult;
 	SearchResultsHandler handler = new SearchResultsHandler() {
 		@Override
 		public boolean handle(ConnectorObject connectorObject) {
@@ -68,6 +70,7 @@ class AbstractTest {
 
 		@Override
 		public void handleResult(SearchResult result) {
+			searchResult = result;
 		}
 	};
 	
@@ -17,18 +17,40 @@
 package com.evolveum.polygon.connector.grouper.test;
 
 import com.evolveum.polygon.connector.grouper.rest.GroupProcessor;
+import com.evolveum.polygon.connector.grouper.rest.GrouperConfiguration;
+import com.evolveum.polygon.connector.grouper.rest.GrouperConnector;
+import com.sun.net.httpserver.HttpServer;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.identityconnectors.framework.common.exceptions.UnknownUidException;
 import org.identityconnectors.framework.common.objects.*;
 import org.identityconnectors.framework.common.objects.filter.AttributeFilter;
+import org.identityconnectors.framework.common.objects.filter.ContainsFilter;
 import org.identityconnectors.framework.common.objects.filter.EqualsFilter;
 import org.identityconnectors.framework.common.objects.filter.FilterBuilder;
 import org.testng.annotations.Test;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 import static com.evolveum.polygon.connector.grouper.rest.GroupProcessor.ATTR_NAME;
 import static com.evolveum.polygon.connector.grouper.rest.GroupProcessor.ATTR_UUID;
 import static org.identityconnectors.framework.common.objects.OperationOptions.OP_ATTRIBUTES_TO_GET;
+import static org.identityconnectors.framework.common.objects.OperationOptions.OP_PAGED_RESULTS_COOKIE;
+import static org.identityconnectors.framework.common.objects.OperationOptions.OP_PAGE_SIZE;
 import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertNotNull;
+import static org.testng.AssertJUnit.assertTrue;
+import static org.testng.AssertJUnit.fail;
 
 /**
  * Tests the group object class using base stem config. See the superclass for the environment needed.
@@ -37,6 +59,8 @@ public class GroupTestBaseStem extends AbstractTest {
 
 	private static final ObjectClass OC_GROUP = new ObjectClass(GroupProcessor.OBJECT_CLASS_NAME);
 
+	private static final String TEST_GROUP_TO_CREATE = "etc:connectorTestGroup";
+
 	private String uuid;
 
 	@Test(priority = 100)
@@ -54,6 +78,21 @@ public class GroupTestBaseStem extends AbstractTest {
 		grouperConnector.test();
 	}
 
+	@Test(priority = 130)
+	public void testCheckAlive() {
+		grouperConnector.checkAlive();
+
+		GrouperConnector pooledConnector = new GrouperConnector();
+		GrouperConfiguration configuration = getConfigurationBaseStem();
+		configuration.setAliveCheckInterval(0);
+		pooledConnector.init(configuration);
+		try {
+			pooledConnector.checkAlive();
+		} finally {
+			pooledConnector.dispose();
+		}
+	}
+
 	@Test(priority = 200)
 	public void testFindByGroupName() {
 		results.clear();
@@ -146,6 +185,21 @@ public class GroupTestBaseStem extends AbstractTest {
 		assertEquals("Wrong # of groups retrieved", results.size(), 0);
 	}
 
+	@Test(priority = 270)
+	public void testFindByMember() {
+		results.clear();
+		AttributeFilter filter = (ContainsFilter) FilterBuilder
+				.contains(AttributeBuilder.build(GroupProcessor.ATTR_MEMBER, TEST_USER));
+
+		grouperConnector.executeQuery(OC_GROUP, filter, handler, options);
+		boolean found = false;
+		for (ConnectorObject group : results) {
+			System.out.println("Found group: " + group);
+			found = found || TEST_GROUP.equals(group.getName().getNameValue());
+		}
+		assertTrue("Group " + TEST_GROUP + " was not found for member " + TEST_USER, found);
+	}
+
 	@Test(priority = 280)
 	public void testGetAllGroups() {
 		results.clear();
@@ -164,6 +218,209 @@ public class GroupTestBaseStem extends AbstractTest {
 		}
 	}
 
+	@Test(priority = 294)
+	public void testGetGroupsInNameBuckets() {
+		results.clear();
+		grouperConnector.executeQuery(OC_GROUP, null, handler, options);
+		Set<String> expected = results.stream().map(group -> group.getName().getNameValue()).collect(Collectors.toSet());
+
+		results.clear();
+		grouperConnector.executeQuery(OC_GROUP, FilterBuilder.lessThan(new Name(TEST_GROUP)), handler, options);
+		grouperConnector.executeQuery(OC_GROUP, FilterBuilder.and(
+				FilterBuilder.greaterThanOrEqualTo(new Name(TEST_GROUP)), FilterBuilder.lessThan(new Name(TEST_GROUP + "~"))), handler, options);
+		grouperConnector.executeQuery(OC_GROUP, FilterBuilder.greaterThanOrEqualTo(new Name(TEST_GROUP + "~")), handler, options);
+		Set<String> names = results.stream().map(group -> group.getName().getNameValue()).collect(Collectors.toSet());
+		assertEquals("Groups returned in more than one bucket", results.size(), names.size());
+		assertEquals("Wrong groups retrieved by name buckets", expected, names);
+
+		results.clear();
+		grouperConnector.executeQuery(OC_GROUP, FilterBuilder.startsWith(new Name(TEST_GROUP)), handler, options);
+		assertTrue("Group " + TEST_GROUP + " was not found by its name prefix",
+				results.stream().anyMatch(group -> TEST_GROUP.equals(group.getName().getNameValue())));
+		for (ConnectorObject group : results) {
+			assertTrue("Group " + group.getName() + " does not start with " + TEST_GROUP, group.getName().getNameValue().startsWith(TEST_GROUP));
+		}
+	}
+
+	@Test(priority = 295)
+	public void testGetAllGroupsPaged() {
+		results.clear();
+		grouperConnector.executeQuery(OC_GROUP, null, handler, options);
+		int allGroups = results.size();
+
+		results.clear();
+		String cookie = null;
+		int pages = 0;
+		do {
+			searchResult = null;
+			grouperConnector.executeQuery(OC_GROUP, null, handler, getPagedOptions(cookie));
+			assertNotNull("No search result reported", searchResult);
+			cookie = searchResult.getPagedResultsCookie();
+			pages++;
+		} while (cookie != null && pages <= allGroups);
+		assertEquals("Wrong # of groups retrieved in pages", allGroups, results.size());
+		assertTrue("All results should be reported as returned", searchResult.isAllResultsReturned());
+	}
+
+	@Test(priority = 296)
+	public void testGetAllGroupsParallelStemScan() {
+		results.clear();
+		grouperConnector.executeQuery(OC_GROUP, null, handler, options);
+		Set<String> expected = results.stream().map(group -> group.getUid().getUidValue()).collect(Collectors.toSet());
+
+		GrouperConnector parallelConnector = new GrouperConnector();
+		GrouperConfiguration configuration = getConfigurationBaseStem();
+		configuration.setParallelStemScan(true);
+		parallelConnector.init(configuration);
+		try {
+			results.clear();
+			parallelConnector.executeQuery(OC_GROUP, null, handler, options);
+			Set<String> uuids = results.stream().map(group -> group.getUid().getUidValue()).collect(Collectors.toSet());
+			assertEquals("Groups returned more than once", results.size(), uuids.size());
+			assertEquals("Wrong groups retrieved by parallel stem scan", expected, uuids);
+		} finally {
+			parallelConnector.dispose();
+		}
+	}
+
+	@Test(priority = 297)
+	public void testAddExistingMember() {
+		grouperConnector.updateDelta(OC_GROUP, new Uid(uuid), Collections.singleton(
+				AttributeDeltaBuilder.build(GroupProcessor.ATTR_MEMBER, Collections.singletonList(TEST_USER), null)), options);
+
+		results.clear();
+		grouperConnector.executeQuery(OC_GROUP, FilterBuilder.equalTo(new Uid(uuid)), handler, getMembersOptions());
+		assertEquals("Wrong members", Collections.singletonList(TEST_USER), getMembers(results.get(0)));
+	}
+
+	@Test(priority = 298)
+	public void testAddNonExistentMember() {
+		try {
+			grouperConnector.updateDelta(OC_GROUP, new Uid(uuid), Collections.singleton(
+					AttributeDeltaBuilder.build(GroupProcessor.ATTR_MEMBER, Collections.singletonList(TEST_USER_NON_EXISTENT), null)), options);
+			fail("Adding a non-existent member should fail");
+		} catch (ConnectorException e) {
+			System.out.println("Expected failure: " + e.getMessage());
+			assertTrue("Failed subject not reported", e.getMessage().contains(TEST_USER_NON_EXISTENT));
+		}
+	}
+
+	@Test(priority = 299)
+	public void testGetAllGroupsNestedGroupGraph() {
+		results.clear();
+		grouperConnector.executeQuery(OC_GROUP, null, handler, getMembersOptions());
+		Map<String, Set<String>> expected = new HashMap<>();
+		results.forEach(group -> expected.put(group.getUid().getUidValue(), new HashSet<>(getMembers(group))));
+
+		GrouperConnector graphConnector = new GrouperConnector();
+		GrouperConfiguration configuration = getConfigurationBaseStem();
+		configuration.setNestedGroupGraph(true);
+		graphConnector.init(configuration);
+		try {
+			results.clear();
+			graphConnector.executeQuery(OC_GROUP, null, handler, getMembersOptions());
+			assertEquals("Wrong # of groups retrieved", expected.size(), results.size());
+			for (ConnectorObject group : results) {
+				assertEquals("Wrong effective members of " + group.getName().getNameValue(),
+						expected.get(group.getUid().getUidValue()), new HashSet<>(getMembers(group)));
+			}
+		} finally {
+			graphConnector.dispose();
+		}
+	}
+
+	@Test(priority = 300)
+	public void testSyncSinceLastSnapshot() throws Exception {
+		GrouperConnector syncConnector = new GrouperConnector();
+		GrouperConfiguration configuration = getConfigurationBaseStem();
+		configuration.setSnapshotDirectory(Files.createTempDirectory("grouper-snapshot").toString());
+		syncConnector.init(configuration);
+		try {
+			List<SyncDelta> deltas = new ArrayList<>();
+			SyncToken initialToken = syncConnector.getLatestSyncToken(OC_GROUP);
+			syncConnector.sync(OC_GROUP, initialToken, deltas::add, options);
+			assertTrue("No groups reported by the first synchronization", !deltas.isEmpty());
+			assertTrue("Test group was not reported", deltas.stream().anyMatch(delta -> delta.getObject() != null && TEST_GROUP.equals(delta.getObject().getName().getNameValue())));
+
+			deltas.clear();
+			SyncToken token = syncConnector.getLatestSyncToken(OC_GROUP);
+			assertTrue("Snapshot was not stored", !token.equals(initialToken));
+			syncConnector.sync(OC_GROUP, token, deltas::add, options);
+			assertEquals("Unchanged groups reported: " + deltas, 0, deltas.size());
+		} finally {
+			syncConnector.dispose();
+		}
+	}
+
+	@Test(priority = 305)
+	public void testFailoverToAnotherNode() throws Exception {
+		// a stand-in for a Grouper WS node that is down
+		AtomicInteger downNodeRequests = new AtomicInteger();
+		HttpServer downNode = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		downNode.createContext("/", exchange -> {
+			downNodeRequests.incrementAndGet();
+			exchange.sendResponseHeaders(503, -1);
+			exchange.close();
+		});
+		downNode.start();
+
+		GrouperConnector failoverConnector = new GrouperConnector();
+		GrouperConfiguration configuration = getConfigurationBaseStem();
+		configuration.setAdditionalBaseUrls(new String[] { configuration.getBaseUrl() });
+		configuration.setBaseUrl("http://localhost:" + downNode.getAddress().getPort());
+		failoverConnector.init(configuration);
+		try {
+			for (int i = 0; i < 5; i++) {
+				results.clear();
+				failoverConnector.executeQuery(OC_GROUP, FilterBuilder.equalTo(new Name(TEST_GROUP)), handler, options);
+				assertEquals("Wrong # of groups retrieved", 1, results.size());
+				assertEquals("Wrong group retrieved", TEST_GROUP, results.get(0).getName().getNameValue());
+			}
+			assertTrue("Node that is down should have been ejected, got " + downNodeRequests + " requests",
+					downNodeRequests.get() <= 2);
+		} finally {
+			failoverConnector.dispose();
+			downNode.stop(0);
+		}
+	}
+
+	@Test(priority = 310)
+	public void testCreateAndDeleteGroups() throws Exception {
+		int count = 5;
+		ExecutorService executor = Executors.newFixedThreadPool(count);
+		try {
+			List<Future<Uid>> created = new ArrayList<>();
+			for (int i = 0; i < count; i++) {
+				String name = TEST_GROUP_TO_CREATE + i;
+				created.add(executor.submit(() -> grouperConnector.create(OC_GROUP,
+						Collections.singleton(new Name(name)), options)));
+			}
+			List<Future<?>> deleted = new ArrayList<>();
+			for (Future<Uid> uid : created) {
+				Uid createdUid = uid.get();
+				results.clear();
+				grouperConnector.executeQuery(OC_GROUP, FilterBuilder.equalTo(createdUid), handler, options);
+				assertEquals("Created group not found", 1, results.size());
+				deleted.add(executor.submit(() -> grouperConnector.delete(OC_GROUP, createdUid, options)));
+			}
+			for (Future<?> future : deleted) {
+				future.get();
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test(priority = 320)
+	public void testDeleteNonExistentGroup() {
+		try {
+			grouperConnector.delete(OC_GROUP, new Uid(TEST_UUID_NON_EXISTENT), options);
+			fail("Deleting a non-existent group should fail");
+		} catch (UnknownUidException e) {
+			System.out.println("Expected failure: " + e.getMessage());
+		}
+	}
+
 	@Test(priority = 900)
 	public void dispose() {
 		 grouperConnector.dispose();
@@ -175,6 +432,15 @@ public class GroupTestBaseStem extends AbstractTest {
 		return new OperationOptions(map);
 	}
 
+	private OperationOptions getPagedOptions(String cookie) {
+		HashMap<String, Object> map = new HashMap<>();
+		map.put(OP_PAGE_SIZE, 2);
+		if (cookie != null) {
+			map.put(OP_PAGED_RESULTS_COOKIE, cookie);
+		}
+		return new OperationOptions(map);
+	}
+
 	private List<String> getMembers(ConnectorObject group) {
 		Attribute attribute = group.getAttributeByName(GroupProcessor.ATTR_MEMBER);
 		//noinspection unchecked
@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.polygon.connector.grouper.test;
+
+import com.evolveum.polygon.connector.grouper.rest.GroupProcessor;
+import com.evolveum.polygon.connector.grouper.rest.StemProcessor;
+import org.identityconnectors.framework.common.objects.*;
+import org.identityconnectors.framework.common.objects.filter.Filter;
+import org.identityconnectors.framework.common.objects.filter.FilterBuilder;
+import org.testng.annotations.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertTrue;
+
+/**
+ * Tests the stem object class (and group searches scoped to stems) using base stem config.
+ * See the superclass for the environment needed.
+ */
+public class StemTest extends AbstractTest {
+
+	private static final ObjectClass OC_STEM = new ObjectClass(StemProcessor.OBJECT_CLASS_NAME);
+	private static final ObjectClass OC_GROUP = new ObjectClass(GroupProcessor.OBJECT_CLASS_NAME);
+	private static final String TEST_STEM = "etc";	// the base stem of getConfigurationBaseStem()
+
+	private String testStemUuid;
+
+	@Test(priority = 2000)
+	public void initialization() {
+		grouperConnector.init(getConfigurationBaseStem());
+	}
+
+	@Test(priority = 2010)
+	public void testFindByName() {
+		results.clear();
+		Filter filter = FilterBuilder.equalTo(new Name(TEST_STEM));
+
+		grouperConnector.executeQuery(OC_STEM, filter, handler, options);
+		assertEquals("Wrong # of stems retrieved", 1, results.size());
+		testStemUuid = results.get(0).getUid().getUidValue();
+		System.out.println("Found stem: " + results.get(0));
+	}
+
+	@Test(priority = 2020)
+	public void testFindByUuid() {
+		results.clear();
+		Filter filter = FilterBuilder.equalTo(new Uid(testStemUuid));
+
+		grouperConnector.executeQuery(OC_STEM, filter, handler, options);
+		assertEquals("Wrong # of stems retrieved", 1, results.size());
+		assertEquals("Wrong stem retrieved", TEST_STEM, results.get(0).getName().getNameValue());
+	}
+
+	@Test(priority = 2030)
+	public void testGetChildStems() {
+		results.clear();
+		Filter filter = FilterBuilder.equalTo(AttributeBuilder.build(StemProcessor.ATTR_PARENT_STEM, TEST_STEM));
+
+		grouperConnector.executeQuery(OC_STEM, filter, handler, options);
+		for (ConnectorObject stem : results) {
+			System.out.println("Found child stem: " + stem);
+			assertEquals("Wrong parent stem", TEST_STEM, stem.getAttributeByName(StemProcessor.ATTR_PARENT_STEM).getValue().get(0));
+		}
+	}
+
+	@Test(priority = 2040)
+	public void testGetAllStems() {
+		results.clear();
+		grouperConnector.executeQuery(OC_STEM, null, handler, options);
+		for (ConnectorObject stem : results) {
+			assertTrue("Stem outside the base stem: " + stem, stem.getName().getNameValue().startsWith(TEST_STEM + ":"));
+		}
+	}
+
+	@Test(priority = 2050)
+	public void testGetGroupsInStemOneLevel() {
+		results.clear();
+		grouperConnector.executeQuery(OC_GROUP, null, handler, getContainerOptions(OperationOptions.SCOPE_ONE_LEVEL));
+		boolean found = false;
+		for (ConnectorObject group : results) {
+			String name = group.getName().getNameValue();
+			assertEquals("Group not directly in the stem: " + name, TEST_STEM + ":", name.substring(0, name.lastIndexOf(':') + 1));
+			found |= TEST_GROUP.equals(name);
+		}
+		assertTrue("Test group was not found", found);
+	}
+
+	@Test(priority = 2060)
+	public void testGetGroupsInStemSubtree() {
+		results.clear();
+		grouperConnector.executeQuery(OC_GROUP, null, handler, getContainerOptions(OperationOptions.SCOPE_SUBTREE));
+		assertTrue("No groups found", !results.isEmpty());
+	}
+
+	@Test(priority = 2900)
+	public void dispose() {
+		grouperConnector.dispose();
+	}
+
+	private OperationOptions getContainerOptions(String scope) {
+		Map<String, Object> map = new HashMap<>();
+		map.put(OperationOptions.OP_CONTAINER, new QualifiedUid(OC_STEM, new Uid(testStemUuid)));
+		map.put(OperationOptions.OP_SCOPE, scope);
+		return new OperationOptions(map);
+	}
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2019 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evolveum.polygon.connector.grouper.test;
+
+import com.evolveum.polygon.connector.grouper.rest.SubjectProcessor;
+import org.identityconnectors.framework.common.objects.*;
+import org.identityconnectors.framework.common.objects.filter.Filter;
+import org.identityconnectors.framework.common.objects.filter.FilterBuilder;
+import org.testng.annotations.Test;
+
+import static org.testng.AssertJUnit.assertEquals;
+
+/**
+ * Tests the subject object class using base stem config. See the superclass for the environment needed.
+ */
+public class SubjectTest extends AbstractTest {
+
+	private static final ObjectClass OC_SUBJECT = new ObjectClass(SubjectProcessor.OBJECT_CLASS_NAME);
+
+	@Test(priority = 1000)
+	public void initialization() {
+		grouperConnector.init(getConfigurationBaseStem());
+	}
+
+	@Test(priority = 1010)
+	public void testFindById() {
+		results.clear();
+		Filter filter = FilterBuilder.equalTo(new Uid(TEST_USER));
+
+		grouperConnector.executeQuery(OC_SUBJECT, filter, handler, options);
+		assertEquals("Wrong # of subjects retrieved", 1, results.size());
+		System.out.println("Found subject: " + results.get(0));
+	}
+
+	@Test(priority = 1020)
+	public void testFindByIdBatched() {
+		results.clear();
+		Filter filter = FilterBuilder.or(
+				FilterBuilder.equalTo(new Uid(TEST_USER)),
+				FilterBuilder.equalTo(new Uid(TEST_USER_NON_EXISTENT)));
+
+		grouperConnector.executeQuery(OC_SUBJECT, filter, handler, options);
+		assertEquals("Wrong # of subjects retrieved", 1, results.size());
+		assertEquals("Wrong subject retrieved", TEST_USER, results.get(0).getUid().getUidValue());
+	}
+
+	@Test(priority = 1030)
+	public void testGetAllSubjects() {
+		results.clear();
+		grouperConnector.executeQuery(OC_SUBJECT, null, handler, options);
+		for (ConnectorObject subject : results) {
+			System.out.println("Found subject: " + subject);
+		}
+	}
+
+	@Test(priority = 1900)
+	public void dispose() {
+		grouperConnector.dispose();
+	}
+}